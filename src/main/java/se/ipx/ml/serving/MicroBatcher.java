@@ -0,0 +1,317 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.ipx.ml.trees.DoubleDecisionTree;
+
+/**
+ * Coalesces concurrent predictions into batches. A request waits at most the
+ * latency window for others to arrive, after which all requests collected so
+ * far, up to the maximum batch size, are predicted together through
+ * {@link DoubleDecisionTree#predict(double[][], double[])} on a single
+ * batching thread. Requests for different models may share a window; they
+ * are predicted as one batch per model. If predicting throws an error the
+ * batching thread stops, and all requests waiting, or made later, fail.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class MicroBatcher {
+
+	private final ModelRegistry<? extends DoubleDecisionTree> registry;
+	private final long windowNanos;
+	private final int maxBatchSize;
+	private final BlockingQueue<Request> queue;
+	private final Thread thread;
+	private final AtomicLong batches;
+	private final AtomicLong rows;
+	private volatile boolean stopped;
+
+	/**
+	 * 
+	 * @param registry
+	 *            the models to predict with, looked up by name per batch
+	 * @param window
+	 *            the longest time a request waits for others to arrive
+	 * @param unit
+	 * @param maxBatchSize
+	 */
+	public MicroBatcher(ModelRegistry<? extends DoubleDecisionTree> registry, long window, TimeUnit unit,
+			int maxBatchSize) {
+		if (registry == null || unit == null) {
+			throw new NullPointerException();
+		}
+
+		if (window < 0L || maxBatchSize < 1) {
+			throw new IllegalArgumentException();
+		}
+
+		this.registry = registry;
+		this.windowNanos = unit.toNanos(window);
+		this.maxBatchSize = maxBatchSize;
+		this.queue = new LinkedBlockingQueue<Request>();
+		this.batches = new AtomicLong();
+		this.rows = new AtomicLong();
+		this.thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				batch();
+			}
+
+		}, "MicroBatcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * 
+	 * @param name
+	 *            of the model
+	 * @param featureVector
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if there is no such model or the feature vector has the
+	 *             wrong length
+	 * @throws InterruptedException
+	 */
+	public double predict(String name, double[] featureVector) throws InterruptedException {
+		return predict(name, new double[][] { featureVector })[0];
+	}
+
+	/**
+	 * Predicts the rows as separate requests, so that they may be batched
+	 * with the requests of others.
+	 * 
+	 * @param name
+	 *            of the model
+	 * @param featureVectors
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if there is no such model or a feature vector has the wrong
+	 *             length
+	 * @throws InterruptedException
+	 */
+	public double[] predict(String name, double[][] featureVectors) throws InterruptedException {
+		if (name == null || featureVectors == null) {
+			throw new NullPointerException();
+		}
+
+		if (stopped) {
+			throw new IllegalStateException("Stopped");
+		}
+
+		final CountDownLatch done = new CountDownLatch(featureVectors.length);
+		final Request[] requests = new Request[featureVectors.length];
+		for (int i = 0; i < featureVectors.length; i++) {
+			if (featureVectors[i] == null) {
+				throw new NullPointerException();
+			}
+
+			requests[i] = new Request(name, featureVectors[i], done);
+			queue.add(requests[i]);
+		}
+
+		if (stopped) {
+			// the batching thread may have drained the queue before our add
+			failRemaining(new IllegalStateException("Stopped"));
+		}
+
+		done.await();
+		final double[] predictions = new double[requests.length];
+		for (int i = 0; i < requests.length; i++) {
+			final RuntimeException error = requests[i].error;
+			if (error != null) {
+				throw error;
+			}
+
+			predictions[i] = requests[i].prediction;
+		}
+
+		return predictions;
+	}
+
+	/**
+	 * Stops the batching thread. Requests still waiting fail.
+	 */
+	public void stop() {
+		thread.interrupt();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * 
+	 * @return the average number of rows per batch
+	 */
+	public double getAverageBatchSize() {
+		final long n = batches.get();
+		return n > 0L ? (double) rows.get() / n : 0D;
+	}
+
+	private void batch() {
+		final List<Request> batch = new ArrayList<Request>(maxBatchSize);
+		try {
+			for (;;) {
+				batch.add(queue.take());
+				final long deadline = System.nanoTime() + windowNanos;
+				while (batch.size() < maxBatchSize) {
+					final long remaining = deadline - System.nanoTime();
+					final Request request = remaining > 0L ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue
+							.poll();
+					if (request == null) {
+						break;
+					}
+
+					batch.add(request);
+				}
+
+				predict(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			stop(batch, new IllegalStateException("Stopped"));
+		} catch (Throwable e) {
+			stop(batch, new IllegalStateException("Stopped", e));
+			if (e instanceof Error) {
+				throw (Error) e;
+			}
+		}
+	}
+
+	private void stop(final List<Request> batch, final RuntimeException error) {
+		stopped = true;
+		fail(batch, error);
+		failRemaining(error);
+	}
+
+	private void failRemaining(final RuntimeException error) {
+		final List<Request> remaining = new ArrayList<Request>();
+		queue.drainTo(remaining);
+		fail(remaining, error);
+	}
+
+	private void predict(final List<Request> batch) {
+		final Map<String, List<Request>> byName = new LinkedHashMap<String, List<Request>>();
+		for (Request request : batch) {
+			List<Request> requests = byName.get(request.name);
+			if (requests == null) {
+				requests = new ArrayList<Request>();
+				byName.put(request.name, requests);
+			}
+
+			requests.add(request);
+		}
+
+		for (Map.Entry<String, List<Request>> entry : byName.entrySet()) {
+			final List<Request> requests = entry.getValue();
+			final ModelRegistry.Model<? extends DoubleDecisionTree> model = registry.acquire(entry.getKey());
+			if (model == null) {
+				fail(requests, new IllegalArgumentException("No such model: " + entry.getKey()));
+				continue;
+			}
+
+			try {
+				predict(model.get(), requests);
+			} catch (RuntimeException e) {
+				fail(requests, e);
+			} finally {
+				model.release();
+			}
+		}
+	}
+
+	private void predict(final DoubleDecisionTree tree, final List<Request> requests) {
+		final int numFeatures = tree.getNumFeatures();
+		final List<Request> valid = new ArrayList<Request>(requests.size());
+		for (Request request : requests) {
+			if (request.featureVector.length == numFeatures) {
+				valid.add(request);
+			} else {
+				request.fail(new IllegalArgumentException("Expected " + numFeatures + " features"));
+			}
+		}
+
+		final double[][] featureVectors = new double[valid.size()][];
+		for (int i = 0; i < featureVectors.length; i++) {
+			featureVectors[i] = valid.get(i).featureVector;
+		}
+
+		final double[] predictions = new double[featureVectors.length];
+		tree.predict(featureVectors, predictions);
+		batches.incrementAndGet();
+		rows.addAndGet(featureVectors.length);
+		for (int i = 0; i < predictions.length; i++) {
+			valid.get(i).complete(predictions[i]);
+		}
+	}
+
+	private static void fail(final List<Request> requests, final RuntimeException error) {
+		for (Request request : requests) {
+			if (!request.completed) {
+				request.fail(error);
+			}
+		}
+	}
+
+	private static final class Request {
+
+		final String name;
+		final double[] featureVector;
+		final CountDownLatch done;
+		double prediction;
+		RuntimeException error;
+		boolean completed;
+
+		Request(String name, double[] featureVector, CountDownLatch done) {
+			this.name = name;
+			this.featureVector = featureVector;
+			this.done = done;
+		}
+
+		void complete(double prediction) {
+			this.prediction = prediction;
+			completed = true;
+			done.countDown();
+		}
+
+		void fail(RuntimeException error) {
+			this.error = error;
+			completed = true;
+			done.countDown();
+		}
+
+	}
+
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds named models for serving. Reads never lock: {@link #acquire(String)}
+ * is a map lookup followed by a reference count increment. Publishing a model
+ * atomically replaces the previous version, which is released once the last
+ * request holding it calls {@link Model#release()}.
+ * 
+ * <pre>
+ * Model&lt;RegressionTree&gt; model = registry.acquire(&quot;price&quot;);
+ * try {
+ * 	return model.get().predict(features);
+ * } finally {
+ * 	model.release();
+ * }
+ * </pre>
+ * 
+ * @author Fredrik Ekelund
+ * 
+ * @param <M>
+ */
+public final class ModelRegistry<M> {
+
+	private final ConcurrentMap<String, Model<M>> models;
+	private final Listener<? super M> listener;
+	private final AtomicLong versions;
+
+	public ModelRegistry() {
+		this(new Listener<M>());
+	}
+
+	public ModelRegistry(Listener<? super M> listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+
+		this.models = new ConcurrentHashMap<String, Model<M>>();
+		this.listener = listener;
+		this.versions = new AtomicLong();
+	}
+
+	/**
+	 * Warms up the model and makes it the current version of the given name.
+	 * The previous version, if any, is released when it is no longer in use.
+	 * 
+	 * @param name
+	 * @param model
+	 * @return the version assigned to the model
+	 */
+	public long publish(String name, M model) {
+		if (name == null || model == null) {
+			throw new NullPointerException();
+		}
+
+		listener.warmUp(name, model);
+		Model<M> current = new Model<M>(name, model, versions.incrementAndGet(), listener);
+		Model<M> previous = models.put(name, current);
+		if (previous != null) {
+			previous.retire();
+		}
+
+		return current.version;
+	}
+
+	/**
+	 * Removes the given name. The current version is released when it is no
+	 * longer in use.
+	 * 
+	 * @param name
+	 * @return <code>true</code> if the name was registered
+	 */
+	public boolean remove(String name) {
+		Model<M> previous = models.remove(name);
+		if (previous == null) {
+			return false;
+		}
+
+		previous.retire();
+		return true;
+	}
+
+	/**
+	 * Returns the current version of the given name, which stays valid until
+	 * {@link Model#release()} is called.
+	 * 
+	 * @param name
+	 * @return the model, or <code>null</code> if there is none with that name
+	 */
+	public Model<M> acquire(String name) {
+		for (;;) {
+			Model<M> model = models.get(name);
+			if (model == null || model.acquire()) {
+				return model;
+			}
+
+			// a model is only released once retired, i.e. replaced or removed
+			if (models.get(name) == model) {
+				throw new IllegalStateException("Released model still published: " + name);
+			}
+		}
+	}
+
+	/**
+	 * Returns the current version of the given name without keeping it from
+	 * being released.
+	 * 
+	 * @param name
+	 * @return the model, or <code>null</code> if there is none with that name
+	 */
+	public M get(String name) {
+		Model<M> model = models.get(name);
+		return model != null ? model.model : null;
+	}
+
+	public long getVersion(String name) {
+		Model<M> model = models.get(name);
+		return model != null ? model.version : -1L;
+	}
+
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(models.keySet());
+	}
+
+	/**
+	 * A published version of a model.
+	 * 
+	 * @param <M>
+	 */
+	public static final class Model<M> {
+
+		private final String name;
+		private final long version;
+		private final Listener<? super M> listener;
+		/**
+		 * Twice the number of client references, plus one while the model
+		 * is published. The model is released when this drops to zero.
+		 */
+		private final AtomicInteger references;
+		private volatile M model;
+
+		Model(String name, M model, long version, Listener<? super M> listener) {
+			this.name = name;
+			this.model = model;
+			this.version = version;
+			this.listener = listener;
+			this.references = new AtomicInteger(1);
+		}
+
+		boolean acquire() {
+			for (;;) {
+				int n = references.get();
+				if (n <= 0) {
+					return false;
+				}
+
+				if (references.compareAndSet(n, n + 2)) {
+					return true;
+				}
+			}
+		}
+
+		void retire() {
+			for (;;) {
+				int n = references.get();
+				if ((n & 1) == 0) {
+					throw new IllegalStateException("Retired more than once");
+				}
+
+				if (references.compareAndSet(n, n - 1)) {
+					if (n == 1) {
+						released();
+					}
+
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Gives up a reference taken by {@link ModelRegistry#acquire(String)}.
+		 * 
+		 * @throws IllegalStateException
+		 *             if there are no references left to give up
+		 */
+		public void release() {
+			for (;;) {
+				int n = references.get();
+				if (n < 2) {
+					throw new IllegalStateException("Released more than once");
+				}
+
+				if (references.compareAndSet(n, n - 2)) {
+					if (n == 2) {
+						released();
+					}
+
+					return;
+				}
+			}
+		}
+
+		private void released() {
+			M released = model;
+			model = null;
+			listener.released(name, released);
+		}
+
+		public M get() {
+			return model;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+	}
+
+	/**
+	 * Receives models before they are published and after they have been
+	 * released. Does nothing by default.
+	 * 
+	 * @param <M>
+	 */
+	public static class Listener<M> {
+
+		public void warmUp(String name, M model) {
+		}
+
+		public void released(String name, M model) {
+		}
+
+	}
+
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.util.Arrays;
+import java.util.List;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.DoubleDecisionTree;
+import se.ipx.ml.util.Util;
+
+/**
+ * A bounded cache of predictions keyed on the feature vector. Entries live in
+ * primitive arrays, grouped into sets of {@link #WAYS} entries. A feature
+ * vector maps to exactly one set and evicts the least recently used entry of
+ * that set, which approximates LRU for the cache as a whole. Sets are spread
+ * over independently locked segments, so concurrent readers rarely contend.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class PredictionCache implements DoubleDecisionTree {
+
+	static final int WAYS = 4;
+
+	private static final int MAX_POWER_OF_TWO = 1 << 30;
+
+	private final DoubleDecisionTree tree;
+	private final int numFeatures;
+	private final Segment[] segments;
+	private final int segmentMask;
+
+	public PredictionCache(DoubleDecisionTree tree, int capacity) {
+		this(tree, capacity, 16);
+	}
+
+	/**
+	 * 
+	 * @param tree
+	 * @param capacity
+	 *            the maximum number of cached predictions, rounded up to a
+	 *            power of two, at most 2^30
+	 * @param concurrencyLevel
+	 *            the number of independently locked segments, rounded up to a
+	 *            power of two, at most 2^30
+	 */
+	public PredictionCache(DoubleDecisionTree tree, int capacity, int concurrencyLevel) {
+		if (tree == null) {
+			throw new NullPointerException();
+		}
+
+		if (capacity < 1 || concurrencyLevel < 1 || capacity > MAX_POWER_OF_TWO
+				|| concurrencyLevel > MAX_POWER_OF_TWO) {
+			throw new IllegalArgumentException();
+		}
+
+		this.tree = tree;
+		this.numFeatures = tree.getNumFeatures();
+
+		final int numSets = Math.max(1, powerOfTwo(capacity) / WAYS);
+		final int numSegments = Math.min(numSets, powerOfTwo(concurrencyLevel));
+		this.segments = new Segment[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			segments[i] = new Segment(numSets / numSegments, numFeatures);
+		}
+
+		this.segmentMask = numSegments - 1;
+	}
+
+	private static int powerOfTwo(final int n) {
+		int power = 1;
+		while (power < n) {
+			power <<= 1;
+		}
+
+		return power;
+	}
+
+	@Override
+	public double predict(double[] featureVector) {
+		if (featureVector == null) {
+			throw new NullPointerException();
+		}
+
+		if (featureVector.length != numFeatures) {
+			throw new IllegalArgumentException();
+		}
+
+		final long hash = hash(featureVector);
+		final Segment segment = segments[(int) hash & segmentMask];
+		final int set = (int) (hash >>> 32);
+		synchronized (segment) {
+			final int slot = segment.find(set, featureVector);
+			if (slot >= 0) {
+				segment.hits++;
+				return segment.values[slot];
+			}
+
+			segment.misses++;
+		}
+
+		final double value = tree.predict(featureVector);
+		synchronized (segment) {
+			segment.put(set, featureVector, value);
+		}
+
+		return value;
+	}
+
+	@Override
+	public void predict(double[][] featureVectors, double[] predictions) {
+		if (featureVectors == null || predictions == null) {
+			throw new NullPointerException();
+		}
+
+		if (predictions.length != featureVectors.length) {
+			throw new IllegalArgumentException();
+		}
+
+		for (int i = 0; i < featureVectors.length; i++) {
+			predictions[i] = predict(featureVectors[i]);
+		}
+	}
+
+	@Override
+	public Double predict(Double... featureVector) {
+		return predict(Util.convert(featureVector));
+	}
+
+	@Override
+	public Double predict(Vector<Double> featureVector) {
+		return predict(Util.convert(featureVector));
+	}
+
+	@Override
+	public Double predict(List<Double> featureVector) {
+		return predict(Util.convert(featureVector));
+	}
+
+	@Override
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public long getHits() {
+		long hits = 0L;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				hits += segment.hits;
+			}
+		}
+
+		return hits;
+	}
+
+	public long getMisses() {
+		long misses = 0L;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				misses += segment.misses;
+			}
+		}
+
+		return misses;
+	}
+
+	public long getEvictions() {
+		long evictions = 0L;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				evictions += segment.evictions;
+			}
+		}
+
+		return evictions;
+	}
+
+	public double getHitRate() {
+		final long hits = getHits();
+		final long total = hits + getMisses();
+		return total > 0 ? (double) hits / total : 0D;
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	static long hash(final double[] featureVector) {
+		long h = 1L;
+		for (double value : featureVector) {
+			h = h * 31 + Double.doubleToLongBits(value);
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Segment {
+
+		final int numSets;
+		final int width;
+		final double[] keys;
+		final double[] values;
+		final long[] stamps;
+		long clock;
+		long hits;
+		long misses;
+		long evictions;
+
+		Segment(int numSets, int width) {
+			this.numSets = numSets;
+			this.width = width;
+			this.keys = new double[numSets * WAYS * width];
+			this.values = new double[numSets * WAYS];
+			this.stamps = new long[numSets * WAYS];
+		}
+
+		int find(final int set, final double[] key) {
+			final int first = (set & (numSets - 1)) * WAYS;
+			for (int slot = first; slot < first + WAYS; slot++) {
+				if (stamps[slot] != 0L && matches(slot, key)) {
+					stamps[slot] = ++clock;
+					return slot;
+				}
+			}
+
+			return -1;
+		}
+
+		void put(final int set, final double[] key, final double value) {
+			final int first = (set & (numSets - 1)) * WAYS;
+			int victim = first;
+			for (int slot = first; slot < first + WAYS; slot++) {
+				if (stamps[slot] != 0L && matches(slot, key)) {
+					return;
+				}
+
+				if (stamps[slot] < stamps[victim]) {
+					victim = slot;
+				}
+			}
+
+			if (stamps[victim] != 0L) {
+				evictions++;
+			}
+
+			System.arraycopy(key, 0, keys, victim * width, width);
+			values[victim] = value;
+			stamps[victim] = ++clock;
+		}
+
+		private boolean matches(final int slot, final double[] key) {
+			final int offset = slot * width;
+			for (int i = 0; i < width; i++) {
+				if (Double.doubleToLongBits(keys[offset + i]) != Double.doubleToLongBits(key[i])) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		void clear() {
+			Arrays.fill(stamps, 0L);
+		}
+
+	}
+
+}
@@ -0,0 +1,375 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import se.ipx.ml.trees.DoubleDecisionTree;
+
+/**
+ * Scores a stream of rows of any length in constant memory. A reader thread
+ * fills blocks of rows from a {@link Source}, the blocks are scored in
+ * parallel on an {@link Executor}, and the calling thread hands the scored
+ * blocks to a {@link Sink} in input order.
+ * 
+ * Blocks are allocated up front and recycled once written, so the reader
+ * waits whenever all of them are being scored or waiting to be written. A
+ * slow sink thereby throttles the source.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class ScoringPipeline {
+
+	private final DoubleDecisionTree tree;
+	private final Executor executor;
+	private final int blockSize;
+	private final int numBlocks;
+
+	/**
+	 * 
+	 * @param tree
+	 * @param executor
+	 *            scoring the blocks
+	 * @param blockSize
+	 *            rows per block
+	 * @param numBlocks
+	 *            blocks being read, scored or written at any time
+	 */
+	public ScoringPipeline(DoubleDecisionTree tree, Executor executor, int blockSize, int numBlocks) {
+		if (tree == null || executor == null) {
+			throw new NullPointerException();
+		}
+
+		if (blockSize < 1 || numBlocks < 1) {
+			throw new IllegalArgumentException();
+		}
+
+		this.tree = tree;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.numBlocks = numBlocks;
+	}
+
+	/**
+	 * Scores all rows of the source, returning once the last block has been
+	 * written to the sink. The first error of the source, the tree or the sink
+	 * stops the pipeline and is rethrown.
+	 * 
+	 * @param source
+	 * @param sink
+	 * @return the number of rows scored
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public long run(final Source source, final Sink sink) throws IOException, InterruptedException {
+		if (source == null || sink == null) {
+			throw new NullPointerException();
+		}
+
+		final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(numBlocks);
+		for (int i = 0; i < numBlocks; i++) {
+			free.add(new Block(tree, blockSize));
+		}
+
+		// one slot more than there are blocks, for the end of the stream
+		final BlockingQueue<Future<Block>> pending = new ArrayBlockingQueue<Future<Block>>(numBlocks + 1);
+		final Thread reader = new Thread(new BlockReader(source, free, pending, executor, blockSize),
+				"ScoringPipeline-reader");
+		reader.setDaemon(true);
+		reader.start();
+		try {
+			long rows = 0L;
+			for (;;) {
+				final Block block;
+				try {
+					block = pending.take().get();
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+
+					throw new IOException(cause);
+				}
+
+				if (block == null) {
+					return rows;
+				}
+
+				sink.write(block.rows, block.predictions, block.length);
+				rows += block.length;
+				free.put(block);
+			}
+		} finally {
+			reader.interrupt();
+		}
+	}
+
+	/**
+	 * Rows of length {@link DoubleDecisionTree#getNumFeatures()} to score.
+	 */
+	public interface Source {
+
+		/**
+		 * Reads the next row into the given array.
+		 * 
+		 * @param row
+		 * @return <code>false</code> at the end of the stream
+		 * @throws IOException
+		 */
+		boolean next(double[] row) throws IOException;
+
+	}
+
+	/**
+	 * Receives the scored blocks in input order.
+	 */
+	public interface Sink {
+
+		/**
+		 * Writes a block. The arrays are reused once this method returns.
+		 * 
+		 * @param rows
+		 * @param predictions
+		 * @param length
+		 *            the number of rows of the block, which is less than the
+		 *            length of the arrays for the last block
+		 * @throws IOException
+		 */
+		void write(double[][] rows, double[] predictions, int length) throws IOException;
+
+	}
+
+	/**
+	 * Reads comma separated rows of feature values.
+	 * 
+	 * @param reader
+	 * @param skipHeader
+	 *            whether the first line holds labels
+	 * @return
+	 */
+	public static Source csv(final Reader reader, final boolean skipHeader) {
+		final BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(
+				reader);
+		return new Source() {
+
+			private int lineNumber;
+
+			@Override
+			public boolean next(double[] row) throws IOException {
+				String line;
+				do {
+					line = in.readLine();
+					lineNumber++;
+					if (line == null) {
+						return false;
+					}
+				} while ((lineNumber == 1 && skipHeader) || line.length() == 0);
+
+				int from = 0;
+				for (int i = 0; i < row.length; i++) {
+					int to = line.indexOf(',', from);
+					if (to < 0) {
+						to = line.length();
+					}
+
+					if (from > line.length() || (to == line.length()) != (i == row.length - 1)) {
+						throw new IOException("Expected " + row.length + " columns on line " + lineNumber);
+					}
+
+					try {
+						row[i] = Double.parseDouble(line.substring(from, to).trim());
+					} catch (NumberFormatException e) {
+						throw new IOException("Malformed value on line " + lineNumber + ": " + e.getMessage());
+					}
+
+					from = to + 1;
+				}
+
+				return true;
+			}
+
+		};
+	}
+
+	/**
+	 * Reads rows stored back to back as big-endian doubles, e.g. written by
+	 * {@link java.io.DataOutputStream#writeDouble(double)}.
+	 * 
+	 * @param in
+	 * @return
+	 */
+	public static Source binary(final InputStream in) {
+		final DataInputStream data = new DataInputStream(in);
+		return new Source() {
+
+			@Override
+			public boolean next(double[] row) throws IOException {
+				for (int i = 0; i < row.length; i++) {
+					try {
+						row[i] = data.readDouble();
+					} catch (EOFException e) {
+						if (i == 0) {
+							return false;
+						}
+
+						throw e;
+					}
+				}
+
+				return true;
+			}
+
+		};
+	}
+
+	public static Source iterator(final Iterator<double[]> rows) {
+		return new Source() {
+
+			@Override
+			public boolean next(double[] row) {
+				if (!rows.hasNext()) {
+					return false;
+				}
+
+				final double[] next = rows.next();
+				if (next.length != row.length) {
+					throw new IllegalArgumentException();
+				}
+
+				System.arraycopy(next, 0, row, 0, row.length);
+				return true;
+			}
+
+		};
+	}
+
+	private static final class Block implements Callable<Block> {
+
+		final DoubleDecisionTree tree;
+		final double[][] rows;
+		final double[] predictions;
+		int length;
+
+		Block(DoubleDecisionTree tree, int size) {
+			this.tree = tree;
+			this.rows = new double[size][tree.getNumFeatures()];
+			this.predictions = new double[size];
+		}
+
+		@Override
+		public Block call() {
+			if (length == rows.length) {
+				tree.predict(rows, predictions);
+			} else {
+				final double[] head = new double[length];
+				tree.predict(Arrays.copyOf(rows, length), head);
+				System.arraycopy(head, 0, predictions, 0, length);
+			}
+
+			return this;
+		}
+
+	}
+
+	private static final class BlockReader implements Runnable {
+
+		private final Source source;
+		private final BlockingQueue<Block> free;
+		private final BlockingQueue<Future<Block>> pending;
+		private final Executor executor;
+		private final int blockSize;
+
+		BlockReader(Source source, BlockingQueue<Block> free, BlockingQueue<Future<Block>> pending, Executor executor,
+				int blockSize) {
+			this.source = source;
+			this.free = free;
+			this.pending = pending;
+			this.executor = executor;
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		public void run() {
+			try {
+				int length = blockSize;
+				while (length == blockSize) {
+					final Block block = free.take();
+					length = 0;
+					while (length < blockSize && source.next(block.rows[length])) {
+						length++;
+					}
+
+					if (length > 0) {
+						block.length = length;
+						final FutureTask<Block> task = new FutureTask<Block>(block);
+						executor.execute(task);
+						pending.put(task);
+					}
+				}
+
+				pending.put(done(null));
+			} catch (InterruptedException e) {
+				// the pipeline has stopped
+			} catch (final Throwable t) {
+				pending.offer(done(t));
+			}
+		}
+
+		private static Future<Block> done(final Throwable t) {
+			final FutureTask<Block> task = new FutureTask<Block>(new Callable<Block>() {
+
+				@Override
+				public Block call() throws Exception {
+					if (t instanceof Exception) {
+						throw (Exception) t;
+					} else if (t instanceof Error) {
+						throw (Error) t;
+					}
+
+					return null;
+				}
+
+			});
+
+			task.run();
+			return task;
+		}
+
+	}
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import se.ipx.ml.trees.DoubleDecisionTree;
+
+/**
+ * Serves the models of a registry over HTTP, on the server built into the
+ * JDK. Feature vectors are posted to <code>/models/&lt;name&gt;</code> as
+ * comma separated values, one row per line, and the predictions are returned
+ * one per line. Rows from concurrent requests are coalesced by a
+ * {@link MicroBatcher}.
+ * 
+ * <pre>
+ * $ curl --data-binary $'1,2.5,0\n3,1,0' http://localhost:8080/models/price
+ * 4.2
+ * 7.9
+ * </pre>
+ * 
+ * Unknown models give 404, malformed rows 400.
+ * 
+ * Run with <code>-Dsun.net.httpserver.nodelay=true</code>. Without it the
+ * JDK server leaves Nagle's algorithm on, and every response of a client
+ * reusing its connection stalls on the delayed ACK of the previous one.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class ScoringServer {
+
+	static final String PATH = "/models/";
+
+	private final ModelRegistry<? extends DoubleDecisionTree> registry;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final MicroBatcher batcher;
+
+	/**
+	 * 
+	 * @param registry
+	 * @param address
+	 *            to bind to, port 0 picks a free port
+	 * @param window
+	 *            the longest time a row waits to be batched with others
+	 * @param unit
+	 * @param maxBatchSize
+	 * @throws IOException
+	 */
+	public ScoringServer(ModelRegistry<? extends DoubleDecisionTree> registry, InetSocketAddress address,
+			long window, TimeUnit unit, int maxBatchSize) throws IOException {
+		this.registry = registry;
+		this.batcher = new MicroBatcher(registry, window, unit, maxBatchSize);
+		this.server = HttpServer.create(address, 0);
+		this.executor = Executors.newCachedThreadPool();
+		this.server.setExecutor(executor);
+		this.server.createContext(PATH, new Handler());
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests, waiting at most the given number of seconds
+	 * for exchanges in progress to finish.
+	 * 
+	 * @param delay
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		batcher.stop();
+		executor.shutdown();
+	}
+
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	public MicroBatcher getBatcher() {
+		return batcher;
+	}
+
+	private final class Handler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					exchange.getResponseHeaders().set("Allow", "POST");
+					respond(exchange, 405, "Method not allowed");
+					return;
+				}
+
+				final String name = exchange.getRequestURI().getPath().substring(PATH.length());
+				if (registry.get(name) == null) {
+					respond(exchange, 404, "No such model: " + name);
+					return;
+				}
+
+				final double[][] rows;
+				try {
+					rows = parse(exchange);
+				} catch (NumberFormatException e) {
+					respond(exchange, 400, "Malformed value: " + e.getMessage());
+					return;
+				}
+
+				final double[] predictions;
+				try {
+					predictions = batcher.predict(name, rows);
+				} catch (IllegalArgumentException e) {
+					respond(exchange, 400, String.valueOf(e.getMessage()));
+					return;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					respond(exchange, 503, "Interrupted");
+					return;
+				} catch (RuntimeException e) {
+					respond(exchange, 500, String.valueOf(e));
+					return;
+				}
+
+				final StringBuilder sb = new StringBuilder();
+				for (double prediction : predictions) {
+					sb.append(prediction).append('\n');
+				}
+
+				respond(exchange, 200, sb.toString());
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private double[][] parse(final HttpExchange exchange) throws IOException {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+			final List<double[]> rows = new ArrayList<double[]>();
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (line.trim().length() == 0) {
+					continue;
+				}
+
+				final String[] values = line.split(",");
+				final double[] row = new double[values.length];
+				for (int i = 0; i < values.length; i++) {
+					row[i] = Double.parseDouble(values[i].trim());
+				}
+
+				rows.add(row);
+			}
+
+			return rows.toArray(new double[rows.size()][]);
+		}
+
+		private void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+			final byte[] bytes = (body.endsWith("\n") ? body : body + "\n").getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.util.concurrent.TimeUnit;
+
+import se.ipx.ml.trees.regression.AbstractRegressionTree;
+import se.ipx.ml.trees.regression.TreeWarmup;
+
+/**
+ * Warms up trees before they are published, so that a new version takes no
+ * traffic until it predicts at a steady pace or the time budget is spent.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public class TreeWarmupListener extends ModelRegistry.Listener<AbstractRegressionTree> {
+
+	private final double[][] featureVectors;
+	private final long budget;
+	private final TimeUnit unit;
+
+	/**
+	 * 
+	 * @param featureVectors
+	 *            recorded traffic, or <code>null</code> to warm up on one
+	 *            feature vector per leaf
+	 * @param budget
+	 * @param unit
+	 */
+	public TreeWarmupListener(double[][] featureVectors, long budget, TimeUnit unit) {
+		if (unit == null) {
+			throw new NullPointerException();
+		}
+
+		this.featureVectors = featureVectors;
+		this.budget = budget;
+		this.unit = unit;
+	}
+
+	@Override
+	public void warmUp(String name, AbstractRegressionTree model) {
+		warmedUp(name, model, model.warmUp(featureVectors, budget, unit));
+	}
+
+	/**
+	 * Called with the outcome of a warmup, before the model is published. Does
+	 * nothing by default.
+	 * 
+	 * @param name
+	 * @param model
+	 * @param warmup
+	 */
+	protected void warmedUp(String name, AbstractRegressionTree model, TreeWarmup warmup) {
+	}
+
+}
@@ -17,31 +17,44 @@
  */
 package se.ipx.ml.trees.regression;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 import se.ipx.ml.data.Instances;
 import se.ipx.ml.data.Vector;
-import se.ipx.ml.trees.DecisionTree;
+import se.ipx.ml.trees.DoubleDecisionTree;
+import se.ipx.ml.trees.FeatureSupplier;
 import se.ipx.ml.util.Pair;
-import se.ipx.ml.util.Util;
 
 /**
  * 
  * @author Fredrik Ekelund
  * 
  */
-public abstract class AbstractRegressionTree implements DecisionTree<Double> {
+public abstract class AbstractRegressionTree implements DoubleDecisionTree {
 
 	private final Node root;
 	private final String targetLabel;
 	private final String[] featureLabels;
 	private final int numFeatures;
+	private volatile FlatTree flat;
 
 	AbstractRegressionTree(Node root, int numFeatures, String targetLabel, String[] featureLabels) {
 		this.root = root;
@@ -50,27 +63,327 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 		this.targetLabel = targetLabel;
 	}
 
+	@Override
 	public double predict(double[] featureVector) {
 		preCheck(featureVector);
 		return root.getValue(featureVector);
 	}
 
+	/**
+	 * Predicts a batch of feature vectors.
+	 * 
+	 * @param featureVectors
+	 * @return
+	 */
+	public double[] predict(double[][] featureVectors) {
+		if (featureVectors == null) {
+			throw new NullPointerException();
+		}
+
+		double[] predictions = new double[featureVectors.length];
+		predict(featureVectors, predictions);
+		return predictions;
+	}
+
+	/**
+	 * Predicts a batch of feature vectors, writing the predictions to the given
+	 * array.
+	 * 
+	 * @param featureVectors
+	 * @param predictions
+	 */
+	@Override
+	public void predict(double[][] featureVectors, double[] predictions) {
+		if (featureVectors == null || predictions == null) {
+			throw new NullPointerException();
+		}
+
+		if (predictions.length != featureVectors.length) {
+			throw new IllegalArgumentException();
+		}
+
+		for (int i = 0; i < featureVectors.length; i++) {
+			preCheck(featureVectors[i]);
+		}
+
+		getFlatTree().getValues(featureVectors, predictions);
+	}
+
 	@Override
 	public Double predict(Double... featureVector) {
-		preCheck(featureVector);
-		return root.getValue(Util.convert(featureVector));
+		return predictDouble(featureVector);
 	}
 
 	@Override
 	public Double predict(List<Double> featureVector) {
-		preCheck(featureVector);
-		return root.getValue(Util.convert(featureVector));
+		return predictDouble(featureVector);
 	}
 
 	@Override
 	public Double predict(Vector<Double> featureVector) {
+		return predictDouble(featureVector);
+	}
+
+	/**
+	 * Same as {@link #predict(Double...)}, but without boxing the prediction.
+	 * The feature values are read in place rather than copied.
+	 * 
+	 * @param featureVector
+	 * @return
+	 */
+	public double predictDouble(Double... featureVector) {
 		preCheck(featureVector);
-		return root.getValue(Util.convert(featureVector));
+		return root.getValue(featureVector);
+	}
+
+	/**
+	 * Same as {@link #predict(List)}, but without boxing the prediction. The
+	 * feature values are read in place rather than copied.
+	 * 
+	 * @param featureVector
+	 * @return
+	 */
+	public double predictDouble(List<Double> featureVector) {
+		preCheck(featureVector);
+		return root.getValue(featureVector);
+	}
+
+	/**
+	 * Same as {@link #predict(Vector)}, but without boxing the prediction. The
+	 * feature values are read in place rather than copied.
+	 * 
+	 * @param featureVector
+	 * @return
+	 */
+	public double predictDouble(Vector<Double> featureVector) {
+		preCheck(featureVector);
+		return root.getValue(featureVector);
+	}
+
+	/**
+	 * Predicts with features computed on demand. Only the features read along
+	 * the path taken are requested, each at most once per call. Leaves of a
+	 * {@link ModelTree} request the features they have a non-zero weight for,
+	 * see {@link #getUsedFeatures()}. A feature with a zero weight therefore
+	 * does not contribute to the prediction even if it is NaN or infinite,
+	 * unlike with {@link #predict(double[])}, where the product is NaN.
+	 * 
+	 * @param featureSupplier
+	 * @return
+	 */
+	public double predict(FeatureSupplier featureSupplier) {
+		if (featureSupplier == null) {
+			throw new NullPointerException();
+		}
+
+		return getFlatTree().getValue(featureSupplier, numFeatures);
+	}
+
+	/**
+	 * 
+	 * @return the indices of the features this tree reads at all, in ascending
+	 *         order
+	 */
+	public int[] getUsedFeatures() {
+		return getFlatTree().getUsedFeatures(numFeatures);
+	}
+
+	/**
+	 * Compiles this tree into a generated class where every split is a
+	 * straight-line comparison against a constant threshold. Trees too large
+	 * to be compiled are returned as is, i.e. they keep being interpreted.
+	 * 
+	 * @return
+	 */
+	public AbstractRegressionTree compile() {
+		if (root instanceof TreeCompiler.CompiledNode) {
+			return this;
+		}
+
+		TreeCompiler.Evaluator evaluator = TreeCompiler.compile(FlatTree.of(root));
+		if (evaluator == null) {
+			return this;
+		}
+
+		return newInstance(new TreeCompiler.CompiledNode(evaluator, root));
+	}
+
+	/**
+	 * Returns an equivalent tree recording which leaf every prediction ends in
+	 * and how long it takes. This tree is left untouched, so predictions on it
+	 * carry no instrumentation overhead.
+	 * 
+	 * Only single-row predictions are recorded.
+	 * 
+	 * @return
+	 * @see #getInstrumentation()
+	 */
+	public AbstractRegressionTree instrument() {
+		if (root instanceof TreeInstrumentation.InstrumentedNode) {
+			return this;
+		}
+
+		TreeInstrumentation instrumentation = new TreeInstrumentation(FlatTree.of(root));
+		return newInstance(new TreeInstrumentation.InstrumentedNode(instrumentation, root));
+	}
+
+	/**
+	 * 
+	 * @return the instrumentation of this tree, or <code>null</code> if it is
+	 *         not instrumented
+	 */
+	public TreeInstrumentation getInstrumentation() {
+		if (root instanceof TreeInstrumentation.InstrumentedNode) {
+			return ((TreeInstrumentation.InstrumentedNode) root).instrumentation;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns an equivalent tree laid out according to the branch frequencies
+	 * observed by an instrumented copy of this tree. The more frequently taken
+	 * child of every node is placed right after it, so that hot paths are
+	 * stored contiguously, and becomes the fall-through branch when the tree
+	 * is compiled.
+	 * 
+	 * @param snapshot
+	 *            taken from {@link #instrument()} on this tree
+	 * @return
+	 */
+	public AbstractRegressionTree reorder(TreeInstrumentation.Snapshot snapshot) {
+		FlatTree tree = FlatTree.of(root);
+		return newInstance(new FlatTree.FlatNode(tree.reorder(snapshot.getNodeHits(), snapshot.getLeafHits())));
+	}
+
+	/**
+	 * Returns an equivalent tree laid out according to the branch frequencies
+	 * of the given feature vectors, e.g. the training set or recorded traffic.
+	 * 
+	 * @param featureVectors
+	 * @return
+	 * @see #reorder(TreeInstrumentation.Snapshot)
+	 */
+	public AbstractRegressionTree reorder(double[][] featureVectors) {
+		FlatTree tree = FlatTree.of(root);
+		long[] leafHits = new long[tree.getNumLeaves()];
+		for (double[] featureVector : featureVectors) {
+			preCheck(featureVector);
+			leafHits[tree.getLeaf(featureVector)]++;
+		}
+
+		return newInstance(new FlatTree.FlatNode(tree.reorder(tree.getNodeHits(leafHits), leafHits)));
+	}
+
+	/**
+	 * Returns an equivalent tree evaluated on a compact encoding of this tree,
+	 * which takes a fraction of the memory of the node objects. Feature indices
+	 * are stored as shorts, thresholds as floats if all of them can be
+	 * represented exactly as such, and identical leaves and subtrees are stored
+	 * once. Predictions are unchanged.
+	 * 
+	 * @return the compacted tree, or this tree if it has more features than
+	 *         the encoding supports
+	 */
+	public AbstractRegressionTree compact() {
+		CompactTree tree = CompactTree.of(FlatTree.of(root).deduplicate());
+		if (tree == null) {
+			return this;
+		}
+
+		return newInstance(new CompactTree.CompactNode(tree));
+	}
+
+	/**
+	 * Returns an equivalent tree where identical leaves, i.e. equal values or
+	 * weight vectors, and identical subtrees are shared node objects instead
+	 * of copies. Predictions are unchanged.
+	 * 
+	 * Representations derived from the returned tree, e.g. by
+	 * {@link #compile()} or {@link #reorder(double[][])}, expand the shared
+	 * subtrees again.
+	 * 
+	 * @return
+	 */
+	public AbstractRegressionTree deduplicate() {
+		return newInstance(FlatTree.of(root).deduplicate().toNode());
+	}
+
+	/**
+	 * Drives the given feature vectors through the single-row and batch
+	 * prediction paths of this tree until they run at a steady pace or the
+	 * time budget is spent, whichever comes first. At least one round is run
+	 * regardless of the budget.
+	 * 
+	 * Warm up the form of the tree that is going to be served, e.g. the
+	 * compiled or loaded tree rather than the one it was derived from.
+	 * 
+	 * @param featureVectors
+	 *            recorded traffic, or <code>null</code> to use one feature
+	 *            vector per leaf, which visits every node
+	 * @param budget
+	 * @param unit
+	 * @return
+	 */
+	public TreeWarmup warmUp(double[][] featureVectors, long budget, TimeUnit unit) {
+		if (featureVectors == null || featureVectors.length == 0) {
+			featureVectors = getFlatTree().getLeafInputs(numFeatures);
+		}
+
+		for (int i = 0; i < featureVectors.length; i++) {
+			preCheck(featureVectors[i]);
+		}
+
+		return TreeWarmup.run(this, featureVectors, unit.toNanos(budget));
+	}
+
+	/**
+	 * Writes this tree in a compact binary format, see {@link #load(File)}.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		BinaryFormat.write(this, out);
+	}
+
+	public void writeTo(File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			BinaryFormat.write(this, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Memory maps a tree written by {@link #writeTo(File)}. The returned tree
+	 * predicts directly from the mapped file, no nodes are materialized.
+	 * 
+	 * @param file
+	 * @return a {@link RegressionTree} or a {@link ModelTree}
+	 * @throws IOException
+	 */
+	public static AbstractRegressionTree load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return BinaryFormat.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a tree written by {@link #writeTo(OutputStream)}. The returned tree
+	 * predicts directly from the buffer, which must not be modified afterwards.
+	 * 
+	 * @param buffer
+	 * @return a {@link RegressionTree} or a {@link ModelTree}
+	 * @throws IOException
+	 */
+	public static AbstractRegressionTree load(ByteBuffer buffer) throws IOException {
+		return BinaryFormat.read(buffer);
 	}
 
 	public String getTargetLabel() {
@@ -81,11 +394,28 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 		return featureLabels;
 	}
 
+	@Override
 	public int getNumFeatures() {
 		return numFeatures;
 	}
 
-	private void preCheck(final double[] vector) {
+	Node getRoot() {
+		return root;
+	}
+
+	FlatTree getFlatTree() {
+		FlatTree tree = flat;
+		if (tree == null) {
+			tree = FlatTree.of(root);
+			flat = tree;
+		}
+
+		return tree;
+	}
+
+	abstract AbstractRegressionTree newInstance(Node root);
+
+	void preCheck(final double[] vector) {
 		if (vector == null) {
 			throw new NullPointerException();
 		}
@@ -156,22 +486,41 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 
 		abstract double getValue(final double[] features);
 
+		abstract double getValue(final Double[] features);
+
+		abstract double getValue(final List<Double> features);
+
+		abstract double getValue(final Vector<Double> features);
+
 		abstract void write(final StringBuilder builder, final int depth, final String prefix, final String[] labels);
 
+		abstract int flatten(final FlatTree.Builder builder);
+
 	}
 
 	static class InternalNode extends Node {
 
 		final Node left;
 		final Node right;
-		final Double value;
+		final double value;
 		final int feature;
+		/**
+		 * Number of training rows reaching each child, zero if unknown.
+		 */
+		final int leftCover;
+		final int rightCover;
+
+		InternalNode(Node left, Node right, int feature, double value) {
+			this(left, right, feature, value, 0, 0);
+		}
 
-		InternalNode(Node left, Node right, int feature, Double value) {
+		InternalNode(Node left, Node right, int feature, double value, int leftCover, int rightCover) {
 			this.left = left;
 			this.right = right;
 			this.value = value;
 			this.feature = feature;
+			this.leftCover = leftCover;
+			this.rightCover = rightCover;
 		}
 
 		@Override
@@ -180,6 +529,24 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 			return child.getValue(features);
 		}
 
+		@Override
+		double getValue(final Double[] features) {
+			Node child = features[feature] >= value ? left : right;
+			return child.getValue(features);
+		}
+
+		@Override
+		double getValue(final List<Double> features) {
+			Node child = features.get(feature) >= value ? left : right;
+			return child.getValue(features);
+		}
+
+		@Override
+		double getValue(final Vector<Double> features) {
+			Node child = features.getValue(feature) >= value ? left : right;
+			return child.getValue(features);
+		}
+
 		@Override
 		void write(StringBuilder sb, int depth, String prefix, String[] labels) {
 			for (int i = 0; i < depth; i++) {
@@ -193,6 +560,13 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 			right.write(sb, depth + 1, labels[feature] + " < " + value, labels);
 			left.write(sb, depth + 1, labels[feature] + " >= " + value, labels);
 		}
+
+		@Override
+		int flatten(FlatTree.Builder builder) {
+			int node = builder.addSplit(feature, value, leftCover, rightCover);
+			builder.setChildren(node, left.flatten(builder), right.flatten(builder));
+			return node;
+		}
 	
 	}
 
@@ -204,6 +578,232 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 
 		protected abstract double getError(Instances<Double> instances);
 
+		/**
+		 * The number of features drawn at random at every node to search for
+		 * a split on. All features are searched by default.
+		 * 
+		 * @param numFeatures
+		 * @return
+		 */
+		protected int getNumCandidateFeatures(int numFeatures) {
+			return numFeatures;
+		}
+
+		/**
+		 * The depth beyond which nodes are not split, the root being at depth
+		 * 0. Unlimited by default.
+		 * 
+		 * @return
+		 */
+		protected int getMaxDepth() {
+			return Integer.MAX_VALUE;
+		}
+
+		/**
+		 * The budget checked while growing trees, none by default.
+		 * 
+		 * @return
+		 */
+		protected TrainingBudget getBudget() {
+			return null;
+		}
+
+		/**
+		 * The monitor told about the progress of training, none by default.
+		 * 
+		 * @return
+		 */
+		protected TrainingMonitor getMonitor() {
+			return null;
+		}
+
+		/**
+		 * Creates a leaf, accounting for it with the monitor if there is one.
+		 * 
+		 * @param set
+		 * @param depth
+		 * @return
+		 */
+		final Node fitLeaf(final Instances<Double> set, final int depth) {
+			final TrainingMonitor monitor = getMonitor();
+			if (monitor == null) {
+				return createLeafNode(set);
+			}
+
+			final long start = System.nanoTime();
+			final Node leaf = createLeafNode(set);
+			monitor.leafFitted(System.nanoTime() - start);
+			monitor.nodeBuilt(depth, set.getNumInstances(), true);
+			return leaf;
+		}
+
+		/**
+		 * 
+		 * @return <code>true</code> if the budget is exhausted and trees
+		 *         should stop growing
+		 * @throws java.util.concurrent.CancellationException
+		 *             if the budget is exhausted and fails fast
+		 */
+		final boolean isOverBudget() {
+			final TrainingBudget budget = getBudget();
+			return budget != null && budget.check();
+		}
+
+		/**
+		 * The number of leaves beyond which trees are not grown. Unlimited by
+		 * default; when limited, trees are grown best first, see
+		 * {@link BestFirstTask}.
+		 * 
+		 * @return
+		 */
+		protected int getMaxLeaves() {
+			return Integer.MAX_VALUE;
+		}
+
+		/**
+		 * 
+		 * @param set
+		 * @param minError
+		 * @param minRowsInSplit
+		 * @param seed
+		 * @return a task growing a tree on the set, best first if the number
+		 *         of leaves is limited and depth first otherwise
+		 */
+		RecursiveTask<Node> newTreeBuildingTask(Instances<Double> set, double minError, int minRowsInSplit,
+				long seed) {
+			final int maxLeaves = getMaxLeaves();
+			if (maxLeaves < Integer.MAX_VALUE) {
+				return new BestFirstTask(set, minError, minRowsInSplit, seed, maxLeaves);
+			}
+
+			return new TreeBuildingTask(set, minError, minRowsInSplit, seed, 0);
+		}
+
+		/**
+		 * The number of thresholds drawn at random per feature at every node
+		 * in the extremely randomized trees mode, see
+		 * {@link #findRandomSplit(Instances, int, int, Random)}. Zero, the
+		 * default, searches every unique value instead.
+		 * 
+		 * @return
+		 */
+		protected int getNumRandomThresholds() {
+			return 0;
+		}
+
+		/**
+		 * Finds the split on the given feature with the least error, by
+		 * evaluating every unique value of the feature in parallel.
+		 * 
+		 * @param set
+		 * @param feature
+		 * @param minRows
+		 *            on either side of the split
+		 * @return the best split, or <code>null</code> if there is none
+		 *         leaving enough rows on both sides
+		 */
+		protected ErrorCalculationResult findBestSplit(Instances<Double> set, int feature, int minRows) {
+			Set<Double> values = set.getFeatures(feature).getUniqueValues();
+			List<ErrorCalculationTask> tasks = new ArrayList<ErrorCalculationTask>(values.size());
+			for (Double value : values) {
+				tasks.add(new ErrorCalculationTask(set, minRows, feature, value));
+			}
+
+			RecursiveTask.invokeAll(tasks);
+			ErrorCalculationResult best = null;
+			long evaluated = 0L;
+			for (ErrorCalculationTask task : tasks) {
+				if (task.evaluated) {
+					evaluated++;
+				}
+
+				try {
+					ErrorCalculationResult result = task.get();
+					if (result != null && (best == null || result.compareTo(best) < 0)) {
+						best = result;
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			// counted once per feature, not by every task on the shared counter
+			final TrainingMonitor monitor = getMonitor();
+			if (monitor != null) {
+				monitor.candidatesEvaluated(evaluated);
+			}
+
+			return best;
+		}
+
+		/**
+		 * Finds the split on the given feature with the least error among
+		 * {@link #getNumRandomThresholds()} thresholds drawn uniformly between
+		 * the smallest and largest value of the feature, exclusive of the
+		 * smallest.
+		 * 
+		 * @param set
+		 * @param feature
+		 * @param minRows
+		 *            on either side of the split
+		 * @param random
+		 * @return the best split, or <code>null</code> if the feature is
+		 *         constant or no threshold leaves enough rows on both sides
+		 */
+		protected ErrorCalculationResult findRandomSplit(Instances<Double> set, int feature, int minRows,
+				Random random) {
+			Vector<Double> values = set.getFeatures(feature);
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < values.getLength(); i++) {
+				double value = values.getValue(i);
+				if (value < min) {
+					min = value;
+				}
+
+				if (value > max) {
+					max = value;
+				}
+			}
+
+			if (!(min < max)) {
+				return null;
+			}
+
+			int k = getNumRandomThresholds();
+			List<ErrorCalculationTask> tasks = new ArrayList<ErrorCalculationTask>(k);
+			for (int i = 0; i < k; i++) {
+				tasks.add(new ErrorCalculationTask(set, minRows, feature, max - random.nextDouble() * (max - min)));
+			}
+
+			RecursiveTask.invokeAll(tasks);
+			ErrorCalculationResult best = null;
+			for (ErrorCalculationTask task : tasks) {
+				ErrorCalculationResult result = task.join();
+				if (result != null && (best == null || result.compareTo(best) < 0)) {
+					best = result;
+				}
+			}
+
+			return best;
+		}
+
+		/**
+		 * Derives the seed of a child node from the seed of its parent, so
+		 * that every node draws the same random numbers regardless of which
+		 * thread builds it.
+		 * 
+		 * @param seed
+		 * @param child
+		 * @return
+		 */
+		static long childSeed(final long seed, final int child) {
+			long z = seed + (child + 1) * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+
 		class TreeBuildingTask extends RecursiveTask<Node> {
 
 			private static final long serialVersionUID = 1L;
@@ -211,78 +811,286 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 			final Instances<Double> set;
 			final double minError;
 			final int minRows;
+			final long seed;
+			final int depth;
+			double error = Double.NaN;
 
 			TreeBuildingTask(Instances<Double> set, double minError, int minRowsInSplit) {
+				this(set, minError, minRowsInSplit, 0L, 0);
+			}
+
+			TreeBuildingTask(Instances<Double> set, double minError, int minRowsInSplit, long seed, int depth) {
 				this.set = set;
 				this.minError = minError;
 				this.minRows = minRowsInSplit;
+				this.seed = seed;
+				this.depth = depth;
 			}
 
 			@Override
 			protected Node compute() {
-				Pair<Integer, ?> split = chooseBestSplit(set);
-				Integer feature = split.getLeft();
-				if (feature == null) {
-					return (Node) split.getRight();
+				final TrainingMonitor monitor = getMonitor();
+				if (monitor != null && depth == 0) {
+					monitor.treeStarted(set.getNumInstances());
 				}
 
-				Double value = (Double) split.getRight();
-				Pair<Instances<Double>, Instances<Double>> sets = set.splitUsing(Criteria.basedOn(feature, value));
-				TreeBuildingTask leftBranch = new TreeBuildingTask(sets.getLeft(), minError, minRows);
+				final Node node = build(monitor);
+				if (monitor != null && depth == 0) {
+					monitor.treeBuilt();
+				}
+
+				return node;
+			}
+
+			private Node build(final TrainingMonitor monitor) {
+				if (isOverBudget()) {
+					return fitLeaf(set, depth);
+				}
+
+				long start = monitor != null ? System.nanoTime() : 0L;
+				ErrorCalculationResult best = findSplit(set);
+				if (monitor != null) {
+					monitor.splitSearched(System.nanoTime() - start);
+				}
+
+				if (best == null) {
+					return fitLeaf(set, depth);
+				}
+
+				start = monitor != null ? System.nanoTime() : 0L;
+				Pair<Instances<Double>, Instances<Double>> sets = set.splitUsing(Criteria.basedOn(best.feature,
+						best.value));
+				if (monitor != null) {
+					monitor.partitioned(System.nanoTime() - start);
+					monitor.nodeBuilt(depth, set.getNumInstances(), false);
+				}
+
+				TreeBuildingTask leftBranch = new TreeBuildingTask(sets.getLeft(), minError, minRows, childSeed(seed,
+						0), depth + 1);
 				leftBranch.fork();
-				TreeBuildingTask rightBranch = new TreeBuildingTask(sets.getRight(), minError, minRows);
+				TreeBuildingTask rightBranch = new TreeBuildingTask(sets.getRight(), minError, minRows, childSeed(
+						seed, 1), depth + 1);
 				Node rightChild = rightBranch.compute();
 				Node leftChild = leftBranch.join();
-				return new InternalNode(leftChild, rightChild, feature, value);
+				return new InternalNode(leftChild, rightChild, best.feature, best.value, sets.getLeft()
+						.getNumInstances(), sets.getRight().getNumInstances());
 			}
 
-			protected Pair<Integer, ?> chooseBestSplit(final Instances<Double> set) {
-				if (set.getTargets().getUniqueValues().size() == 1) {
-					return Pair.with(null, createLeafNode(set));
+			/**
+			 * Sets {@link #error} to the error of the set, unless the node is
+			 * a leaf by depth or by having a single target value.
+			 * 
+			 * @param set
+			 * @return the best split reducing the error by at least minError
+			 *         and leaving enough rows on both sides, or
+			 *         <code>null</code>
+			 */
+			ErrorCalculationResult findSplit(final Instances<Double> set) {
+				if (depth >= getMaxDepth() || set.getTargets().getUniqueValues().size() == 1) {
+					return null;
 				}
 
-				final double error = getError(set);
-				final SortedSet<ErrorCalculationResult> sortedResults = new TreeSet<ErrorCalculationResult>();
-				for (int feature = 0; feature < set.getNumFeatures(); feature++) {
-					Set<Double> values = set.getFeatures(feature).getUniqueValues();
-					List<ErrorCalculationTask> tasks = new ArrayList<ErrorCalculationTask>(values.size());
-					for (Double value : values) {
-						tasks.add(new ErrorCalculationTask(set, minRows, feature, value));
+				error = getError(set);
+				final int numRandomThresholds = getNumRandomThresholds();
+				final Random random = numRandomThresholds > 0 ? new Random(childSeed(seed, 2)) : null;
+				ErrorCalculationResult best = null;
+				for (int feature : getCandidateFeatures(set.getNumFeatures())) {
+					if (isOverBudget()) {
+						return null;
 					}
 
-					invokeAll(tasks);
-					for (ErrorCalculationTask task : tasks) {
-						try {
-							ErrorCalculationResult result = task.get();
-							if (result != null) {
-								sortedResults.add(result);
-							}
-						} catch (Exception e) {
-							throw new RuntimeException(e);
-						}
+					ErrorCalculationResult result = random != null ? findRandomSplit(set, feature, minRows, random)
+							: findBestSplit(set, feature, minRows);
+					if (result != null && (best == null || result.compareTo(best) < 0)) {
+						best = result;
 					}
 				}
 
-				if (sortedResults.isEmpty()) {
-					return Pair.with(null, createLeafNode(set));
-				}
-
-				ErrorCalculationResult best = sortedResults.first();
-				if ((error - best.error) < minError) {
-					return Pair.with(null, createLeafNode(set));
+				// candidates evaluated while the budget ran out may be missing
+				if (best == null || isOverBudget() || (error - best.error) < minError) {
+					return null;
 				}
 
 				Pair<Instances<Double>, Instances<Double>> sets = set.splitUsing(Criteria.basedOn(best.feature,
 						best.value));
 				if (sets.getLeft().getNumInstances() < minRows || sets.getRight().getNumInstances() < minRows) {
-					return Pair.with(null, createLeafNode(set));
+					return null;
+				}
+
+				return best;
+			}
+
+			/**
+			 * 
+			 * @param numFeatures
+			 * @return the features to search, in ascending order
+			 */
+			int[] getCandidateFeatures(final int numFeatures) {
+				final int[] features = new int[numFeatures];
+				for (int i = 0; i < numFeatures; i++) {
+					features[i] = i;
+				}
+
+				final int k = getNumCandidateFeatures(numFeatures);
+				if (k >= numFeatures) {
+					return features;
 				}
 
-				return Pair.with(best.feature, best.value);
+				final Random random = new Random(seed);
+				for (int i = 0; i < k; i++) {
+					final int j = i + random.nextInt(numFeatures - i);
+					final int tmp = features[i];
+					features[i] = features[j];
+					features[j] = tmp;
+				}
+
+				final int[] candidates = Arrays.copyOf(features, k);
+				Arrays.sort(candidates);
+				return candidates;
 			}
 		
 		}
 
+		/**
+		 * Grows a tree best first: the leaves that can be split are kept in a
+		 * queue ordered by the reduction in error of their best split, and
+		 * the best one is split next until the tree has maxLeaves leaves.
+		 * Limits on depth, gain and rows apply as for
+		 * {@link TreeBuildingTask}, and without a leaf budget the trees are
+		 * the same. The two children of a split are searched in parallel.
+		 */
+		class BestFirstTask extends RecursiveTask<Node> {
+
+			private static final long serialVersionUID = 1L;
+
+			final Instances<Double> set;
+			final double minError;
+			final int minRows;
+			final long seed;
+			final int maxLeaves;
+
+			BestFirstTask(Instances<Double> set, double minError, int minRowsInSplit, long seed, int maxLeaves) {
+				if (maxLeaves < 1) {
+					throw new IllegalArgumentException();
+				}
+
+				this.set = set;
+				this.minError = minError;
+				this.minRows = minRowsInSplit;
+				this.seed = seed;
+				this.maxLeaves = maxLeaves;
+			}
+
+			@Override
+			protected Node compute() {
+				final PriorityQueue<Leaf> queue = new PriorityQueue<Leaf>(11, new Comparator<Leaf>() {
+
+					@Override
+					public int compare(Leaf a, Leaf b) {
+						final int order = Double.compare(b.gain, a.gain);
+						if (order != 0) {
+							return order;
+						}
+
+						return a.id < b.id ? -1 : 1;
+					}
+
+				});
+
+				final TrainingMonitor monitor = getMonitor();
+				if (monitor != null) {
+					monitor.treeStarted(set.getNumInstances());
+				}
+
+				final Leaf root = new Leaf(set, seed, 0, 0);
+				root.compute();
+				if (root.split != null) {
+					queue.add(root);
+				}
+
+				int numLeaves = 1;
+				while (numLeaves < maxLeaves && !queue.isEmpty() && !isOverBudget()) {
+					final Leaf leaf = queue.poll();
+					final long start = monitor != null ? System.nanoTime() : 0L;
+					final Pair<Instances<Double>, Instances<Double>> sets = leaf.set.splitUsing(Criteria.basedOn(
+							leaf.split.feature, leaf.split.value));
+					if (monitor != null) {
+						monitor.partitioned(System.nanoTime() - start);
+						monitor.nodeBuilt(leaf.depth, leaf.set.getNumInstances(), false);
+					}
+
+					leaf.left = new Leaf(sets.getLeft(), childSeed(leaf.seed, 0), leaf.depth + 1, 2 * numLeaves - 1);
+					leaf.right = new Leaf(sets.getRight(), childSeed(leaf.seed, 1), leaf.depth + 1, 2 * numLeaves);
+					invokeAll(leaf.left, leaf.right);
+					numLeaves++;
+					if (leaf.left.split != null) {
+						queue.add(leaf.left);
+					}
+
+					if (leaf.right.split != null) {
+						queue.add(leaf.right);
+					}
+				}
+
+				final Node node = root.toNode();
+				if (monitor != null) {
+					monitor.treeBuilt();
+				}
+
+				return node;
+			}
+
+			/**
+			 * A node of the tree being grown, split once it has children.
+			 */
+			final class Leaf extends RecursiveAction {
+
+				private static final long serialVersionUID = 1L;
+
+				final Instances<Double> set;
+				final long seed;
+				final int depth;
+				final int id;
+				ErrorCalculationResult split;
+				double gain;
+				Leaf left;
+				Leaf right;
+
+				Leaf(Instances<Double> set, long seed, int depth, int id) {
+					this.set = set;
+					this.seed = seed;
+					this.depth = depth;
+					this.id = id;
+				}
+
+				@Override
+				protected void compute() {
+					final TrainingMonitor monitor = getMonitor();
+					final long start = monitor != null ? System.nanoTime() : 0L;
+					final TreeBuildingTask task = new TreeBuildingTask(set, minError, minRows, seed, depth);
+					split = task.findSplit(set);
+					if (monitor != null) {
+						monitor.splitSearched(System.nanoTime() - start);
+					}
+
+					if (split != null) {
+						gain = task.error - split.error;
+					}
+				}
+
+				Node toNode() {
+					if (left == null) {
+						return fitLeaf(set, depth);
+					}
+
+					return new InternalNode(left.toNode(), right.toNode(), split.feature, split.value, left.set
+							.getNumInstances(), right.set.getNumInstances());
+				}
+
+			}
+
+		}
+
 		class ErrorCalculationTask extends RecursiveTask<ErrorCalculationResult> {
 
 			private static final long serialVersionUID = 1L;
@@ -291,6 +1099,7 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 			final int minRows;
 			final int feature;
 			final Double value;
+			boolean evaluated;
 
 			ErrorCalculationTask(Instances<Double> set, int minRowsInSplit, int feature, Double value) {
 				this.set = set;
@@ -301,6 +1110,11 @@ public abstract class AbstractRegressionTree implements DecisionTree<Double> {
 
 			@Override
 			protected ErrorCalculationResult compute() {
+				if (isOverBudget()) {
+					return null;
+				}
+
+				evaluated = true;
 				Pair<Instances<Double>, Instances<Double>> sets = set.splitUsing(Criteria.basedOn(feature, value));
 				Instances<Double> lSet = sets.getLeft();
 				Instances<Double> rSet = sets.getRight();
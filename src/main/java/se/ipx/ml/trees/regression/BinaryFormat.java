@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.FeatureSupplier;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+
+/**
+ * Versioned binary model format. All values are big-endian.
+ * 
+ * <pre>
+ * int    magic ('DTRE')
+ * short  version
+ * byte   leaf kind (0 = constant, 1 = linear)
+ * byte   reserved
+ * int    number of features
+ * int    number of internal nodes
+ * int    number of leaves
+ * int    leaf width
+ * string target label
+ * int    number of feature labels (-1 if none), followed by as many strings
+ * nodes  (int feature, int left, int right, double threshold,
+ *         int left cover, int right cover) per internal node
+ * leaves (double[width]) per leaf
+ * </pre>
+ * 
+ * Strings are written as an int length (-1 for null) followed by UTF-8 bytes.
+ * Nodes and leaves are laid out as in {@link FlatTree}. Version 1 files lack
+ * the covers, and are read as trees without training row counts.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+final class BinaryFormat {
+
+	static final int MAGIC = 0x44545245;
+	static final short VERSION = 2;
+
+	static final int NODE_SIZE = 28;
+
+	private static final int NODE_SIZE_V1 = 20;
+
+	private static final byte CONSTANT = 0;
+	private static final byte LINEAR = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BinaryFormat() {
+	}
+
+	static void write(final AbstractRegressionTree tree, final OutputStream os) throws IOException {
+		final FlatTree flat = FlatTree.of(tree.getRoot());
+		final DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeByte(flat.linear ? LINEAR : CONSTANT);
+		out.writeByte(0);
+		out.writeInt(tree.getNumFeatures());
+		out.writeInt(flat.getNumNodes());
+		out.writeInt(flat.getNumLeaves());
+		out.writeInt(flat.width);
+		writeString(out, tree.getTargetLabel());
+		final String[] labels = tree.getFeatureLabels();
+		if (labels == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(labels.length);
+			for (String label : labels) {
+				writeString(out, label);
+			}
+		}
+
+		for (int i = 0; i < flat.getNumNodes(); i++) {
+			out.writeInt(flat.features[i]);
+			out.writeInt(flat.lefts[i]);
+			out.writeInt(flat.rights[i]);
+			out.writeDouble(flat.thresholds[i]);
+			out.writeInt(flat.leftCovers[i]);
+			out.writeInt(flat.rightCovers[i]);
+		}
+
+		for (double value : flat.leaves) {
+			out.writeDouble(value);
+		}
+
+		out.flush();
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			final byte[] bytes = value.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Reads the header of a tree and returns a tree evaluated directly on the
+	 * given buffer. The buffer must not be modified afterwards.
+	 * 
+	 * @param buffer
+	 * @return
+	 * @throws IOException
+	 */
+	static AbstractRegressionTree read(final ByteBuffer buffer) throws IOException {
+		final ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		try {
+			if (in.getInt() != MAGIC) {
+				throw new IOException("Not a tree");
+			}
+
+			final short version = in.getShort();
+			if (version != VERSION && version != 1) {
+				throw new IOException("Unsupported version: " + version);
+			}
+
+			final byte kind = in.get();
+			if (kind != CONSTANT && kind != LINEAR) {
+				throw new IOException("Unsupported leaf kind: " + kind);
+			}
+
+			in.get();
+			final int numFeatures = in.getInt();
+			final int numNodes = in.getInt();
+			final int numLeaves = in.getInt();
+			final int width = in.getInt();
+			if (numFeatures < 0 || numNodes < 0 || numLeaves < 1 || width < 1) {
+				throw new IOException("Invalid tree header");
+			}
+
+			if (kind == LINEAR ? width > numFeatures : width != 1) {
+				throw new IOException("Invalid leaf width: " + width);
+			}
+
+			final String targetLabel = readString(in);
+			final int numLabels = in.getInt();
+			String[] labels = null;
+			if (numLabels >= 0) {
+				// every label takes at least its length
+				if (numLabels != numFeatures || numLabels > in.remaining() / 4) {
+					throw new IOException("Invalid number of labels: " + numLabels);
+				}
+
+				labels = new String[numLabels];
+				for (int i = 0; i < numLabels; i++) {
+					labels[i] = readString(in);
+				}
+			} else if (numLabels != -1) {
+				throw new IOException("Invalid number of labels: " + numLabels);
+			}
+
+			final int nodeSize = version == 1 ? NODE_SIZE_V1 : NODE_SIZE;
+			final int nodesAt = in.position();
+			final long leavesAt = nodesAt + (long) numNodes * nodeSize;
+			if (leavesAt + (long) numLeaves * width * 8 > in.limit()) {
+				throw new IOException("Truncated tree");
+			}
+
+			validateNodes(in, nodesAt, nodeSize, numNodes, numLeaves, numFeatures);
+
+			final MappedNode root = new MappedNode(in.slice(), nodeSize, numNodes, width, kind == LINEAR);
+			if (kind == LINEAR) {
+				return new ModelTree(root, numFeatures, targetLabel, labels);
+			} else {
+				return new RegressionTree(root, numFeatures, targetLabel, labels);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated tree");
+		}
+	}
+
+	/**
+	 * Checks that every node splits on a known feature and that every child
+	 * is a leaf or a node further down in pre-order. Children always coming
+	 * later rules out cycles, so every traversal ends in a leaf.
+	 */
+	private static void validateNodes(final ByteBuffer in, final int nodesAt, final int nodeSize,
+			final int numNodes, final int numLeaves, final int numFeatures) throws IOException {
+		for (int i = 0; i < numNodes; i++) {
+			final int at = nodesAt + i * nodeSize;
+			final int feature = in.getInt(at);
+			if (feature < 0 || feature >= numFeatures) {
+				throw new IOException("Invalid feature " + feature + " at node " + i);
+			}
+
+			validateChild(in.getInt(at + 4), i, numNodes, numLeaves);
+			validateChild(in.getInt(at + 8), i, numNodes, numLeaves);
+			if (nodeSize > NODE_SIZE_V1 && (in.getInt(at + 20) < 0 || in.getInt(at + 24) < 0)) {
+				throw new IOException("Invalid cover at node " + i);
+			}
+		}
+	}
+
+	private static void validateChild(final int ref, final int node, final int numNodes, final int numLeaves)
+			throws IOException {
+		if (ref >= 0 ? ref <= node || ref >= numNodes : ~ref >= numLeaves) {
+			throw new IOException("Invalid child " + ref + " at node " + node);
+		}
+	}
+
+	private static String readString(final ByteBuffer in) throws IOException {
+		final int length = in.getInt();
+		if (length == -1) {
+			return null;
+		}
+
+		if (length < 0 || length > in.remaining()) {
+			throw new IOException("Invalid string length: " + length);
+		}
+
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Root of a tree evaluated directly on its binary form, without any node
+	 * objects.
+	 */
+	static class MappedNode extends Node {
+
+		final ByteBuffer buffer;
+		final int nodeSize;
+		final int numNodes;
+		final int leavesAt;
+		final int width;
+		final boolean linear;
+
+		MappedNode(ByteBuffer buffer, int nodeSize, int numNodes, int width, boolean linear) {
+			this.buffer = buffer;
+			this.nodeSize = nodeSize;
+			this.numNodes = numNodes;
+			this.leavesAt = numNodes * nodeSize;
+			this.width = width;
+			this.linear = linear;
+		}
+
+		private int getRoot() {
+			return numNodes > 0 ? 0 : ~0;
+		}
+
+		private int getFeature(final int ref) {
+			return buffer.getInt(ref * nodeSize);
+		}
+
+		private int getChild(final int ref, final double value) {
+			final int at = ref * nodeSize;
+			return value >= buffer.getDouble(at + 12) ? buffer.getInt(at + 4) : buffer.getInt(at + 8);
+		}
+
+		private double getWeight(final int leaf, final int i) {
+			return buffer.getDouble(leavesAt + ((leaf * width) + i) * 8);
+		}
+
+		@Override
+		double getValue(final double[] features) {
+			int ref = getRoot();
+			while (ref >= 0) {
+				ref = getChild(ref, features[getFeature(ref)]);
+			}
+
+			if (!linear) {
+				return getWeight(~ref, 0);
+			}
+
+			double sum = 0D;
+			for (int i = 0; i < width; i++) {
+				sum += getWeight(~ref, i) * features[i];
+			}
+
+			return sum;
+		}
+
+		@Override
+		double getValue(final Double[] features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		@Override
+		double getValue(final List<Double> features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		@Override
+		double getValue(final Vector<Double> features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		private double getValue(final FeatureSupplier features) {
+			int ref = getRoot();
+			while (ref >= 0) {
+				ref = getChild(ref, features.getFeature(getFeature(ref)));
+			}
+
+			if (!linear) {
+				return getWeight(~ref, 0);
+			}
+
+			double sum = 0D;
+			for (int i = 0; i < width; i++) {
+				sum += getWeight(~ref, i) * features.getFeature(i);
+			}
+
+			return sum;
+		}
+
+		@Override
+		void write(StringBuilder sb, int depth, String prefix, String[] labels) {
+			FlatTree.of(this).toNode().write(sb, depth, prefix, labels);
+		}
+
+		@Override
+		int flatten(FlatTree.Builder builder) {
+			return flatten(builder, getRoot());
+		}
+
+		private int flatten(final FlatTree.Builder builder, final int ref) {
+			if (ref < 0) {
+				if (!linear) {
+					return builder.addLeaf(getWeight(~ref, 0));
+				}
+
+				final double[] ws = new double[width];
+				for (int i = 0; i < width; i++) {
+					ws[i] = getWeight(~ref, i);
+				}
+
+				return builder.addLeaf(ws);
+			}
+
+			final int at = ref * nodeSize;
+			final int node = nodeSize == NODE_SIZE_V1 ? builder.addSplit(buffer.getInt(at), buffer.getDouble(at + 12))
+					: builder.addSplit(buffer.getInt(at), buffer.getDouble(at + 12), buffer.getInt(at + 20),
+							buffer.getInt(at + 24));
+			builder.setChildren(node, flatten(builder, buffer.getInt(at + 4)), flatten(builder, buffer.getInt(at + 8)));
+			return node;
+		}
+
+	}
+
+}
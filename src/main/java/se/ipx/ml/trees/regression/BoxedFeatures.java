@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.List;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.FeatureSupplier;
+
+/**
+ * Reads boxed feature vectors through a {@link FeatureSupplier}, so that the
+ * trees evaluating them in place traverse them in one place, whatever their
+ * type. The values are unboxed as they are read and never copied.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+final class BoxedFeatures {
+
+	private BoxedFeatures() {
+	}
+
+	static FeatureSupplier of(final Double[] features) {
+		return new FeatureSupplier() {
+
+			@Override
+			public double getFeature(int index) {
+				return features[index];
+			}
+
+		};
+	}
+
+	static FeatureSupplier of(final List<Double> features) {
+		return new FeatureSupplier() {
+
+			@Override
+			public double getFeature(int index) {
+				return features.get(index);
+			}
+
+		};
+	}
+
+	static FeatureSupplier of(final Vector<Double> features) {
+		return new FeatureSupplier() {
+
+			@Override
+			public double getFeature(int index) {
+				return features.getValue(index);
+			}
+
+		};
+	}
+
+}
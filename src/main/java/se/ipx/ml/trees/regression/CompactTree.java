@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.FeatureSupplier;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+
+/**
+ * A compact encoding of a flattened tree: 16-bit feature indices, thresholds
+ * stored as floats whenever all of them are exactly representable as such,
+ * and the children of each node as a pair of 32-bit references. Leaves are
+ * deduplicated, so a child reference (< 0) points into a table of distinct
+ * leaf values or weight vectors. An internal node takes 14 bytes with float
+ * thresholds and 18 bytes with double thresholds, plus 8 bytes for the
+ * training row counts of its children if the tree has any.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+final class CompactTree {
+
+	final short[] features;
+	final float[] floatThresholds;
+	final double[] doubleThresholds;
+	final int[] children;
+	/**
+	 * Left and right cover of every node, or <code>null</code> if unknown.
+	 */
+	final int[] covers;
+	final double[] leaves;
+	final int width;
+	final boolean linear;
+
+	private CompactTree(short[] features, float[] floatThresholds, double[] doubleThresholds, int[] children,
+			int[] covers, double[] leaves, int width, boolean linear) {
+		this.features = features;
+		this.floatThresholds = floatThresholds;
+		this.doubleThresholds = doubleThresholds;
+		this.children = children;
+		this.covers = covers;
+		this.leaves = leaves;
+		this.width = width;
+		this.linear = linear;
+	}
+
+	/**
+	 * 
+	 * @param tree
+	 * @return the encoded tree, or <code>null</code> if feature indices do not
+	 *         fit in 16 bits
+	 */
+	static CompactTree of(final FlatTree tree) {
+		final int n = tree.getNumNodes();
+		final short[] features = new short[n];
+		for (int i = 0; i < n; i++) {
+			if (tree.features[i] > Short.MAX_VALUE) {
+				return null;
+			}
+
+			features[i] = (short) tree.features[i];
+		}
+
+		float[] floatThresholds = new float[n];
+		for (int i = 0; i < n && floatThresholds != null; i++) {
+			floatThresholds[i] = (float) tree.thresholds[i];
+			if (floatThresholds[i] != tree.thresholds[i] && !Double.isNaN(tree.thresholds[i])) {
+				floatThresholds = null;
+			}
+		}
+
+		final double[] doubleThresholds = floatThresholds == null ? tree.thresholds.clone() : null;
+
+		// deduplicate leaves, keyed on the bits of their values
+		final Map<FlatTree.LeafKey, Integer> distinct = new HashMap<FlatTree.LeafKey, Integer>();
+		final int[] leafIndexes = new int[tree.getNumLeaves()];
+		double[] leaves = new double[tree.leaves.length];
+		for (int leaf = 0; leaf < leafIndexes.length; leaf++) {
+			final FlatTree.LeafKey key = new FlatTree.LeafKey(tree.leaves, leaf * tree.width, tree.width);
+			Integer index = distinct.get(key);
+			if (index == null) {
+				index = distinct.size();
+				distinct.put(key, index);
+				System.arraycopy(tree.leaves, leaf * tree.width, leaves, index * tree.width, tree.width);
+			}
+
+			leafIndexes[leaf] = index;
+		}
+
+		leaves = Arrays.copyOf(leaves, distinct.size() * tree.width);
+
+		final int[] children = new int[n * 2];
+		int[] covers = null;
+		for (int i = 0; i < n; i++) {
+			children[2 * i] = tree.lefts[i] < 0 ? ~leafIndexes[~tree.lefts[i]] : tree.lefts[i];
+			children[2 * i + 1] = tree.rights[i] < 0 ? ~leafIndexes[~tree.rights[i]] : tree.rights[i];
+			if (covers == null && (tree.leftCovers[i] != 0 || tree.rightCovers[i] != 0)) {
+				covers = new int[n * 2];
+			}
+		}
+
+		for (int i = 0; covers != null && i < n; i++) {
+			covers[2 * i] = tree.leftCovers[i];
+			covers[2 * i + 1] = tree.rightCovers[i];
+		}
+
+		return new CompactTree(features, floatThresholds, doubleThresholds, children, covers, leaves, tree.width,
+				tree.linear);
+	}
+
+	int getRoot() {
+		return features.length > 0 ? 0 : ~0;
+	}
+
+	int getLeaf(final double[] x) {
+		int ref = getRoot();
+		if (floatThresholds != null) {
+			while (ref >= 0) {
+				ref = children[2 * ref + (x[features[ref]] >= floatThresholds[ref] ? 0 : 1)];
+			}
+		} else {
+			while (ref >= 0) {
+				ref = children[2 * ref + (x[features[ref]] >= doubleThresholds[ref] ? 0 : 1)];
+			}
+		}
+
+		return ~ref;
+	}
+
+	int getLeaf(final FeatureSupplier x) {
+		int ref = getRoot();
+		while (ref >= 0) {
+			ref = children[2 * ref + (x.getFeature(features[ref]) >= getThreshold(ref) ? 0 : 1)];
+		}
+
+		return ~ref;
+	}
+
+	double getThreshold(final int node) {
+		return floatThresholds != null ? floatThresholds[node] : doubleThresholds[node];
+	}
+
+	/**
+	 * Estimates the memory used by the arrays of this tree.
+	 * 
+	 * @return
+	 */
+	long getSizeInBytes() {
+		final int thresholdSize = floatThresholds != null ? 4 : 8;
+		final long size = 5 * 16L + features.length * (2L + thresholdSize + 8L) + leaves.length * 8L;
+		return covers != null ? size + 16L + covers.length * 4L : size;
+	}
+
+	/**
+	 * Root of a tree evaluated directly on its compact encoding.
+	 */
+	static class CompactNode extends Node {
+
+		final CompactTree tree;
+
+		CompactNode(CompactTree tree) {
+			this.tree = tree;
+		}
+
+		@Override
+		double getValue(final double[] features) {
+			final int leaf = tree.getLeaf(features);
+			if (!tree.linear) {
+				return tree.leaves[leaf];
+			}
+
+			final int offset = leaf * tree.width;
+			double sum = 0D;
+			for (int i = 0; i < tree.width; i++) {
+				sum += tree.leaves[offset + i] * features[i];
+			}
+
+			return sum;
+		}
+
+		@Override
+		double getValue(final Double[] features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		@Override
+		double getValue(final List<Double> features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		@Override
+		double getValue(final Vector<Double> features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		private double getValue(final FeatureSupplier features) {
+			final int leaf = tree.getLeaf(features);
+			if (!tree.linear) {
+				return tree.leaves[leaf];
+			}
+
+			final int offset = leaf * tree.width;
+			double sum = 0D;
+			for (int i = 0; i < tree.width; i++) {
+				sum += tree.leaves[offset + i] * features.getFeature(i);
+			}
+
+			return sum;
+		}
+
+		@Override
+		void write(StringBuilder sb, int depth, String prefix, String[] labels) {
+			FlatTree.of(this).toNode().write(sb, depth, prefix, labels);
+		}
+
+		@Override
+		int flatten(FlatTree.Builder builder) {
+			return flatten(builder, tree.getRoot());
+		}
+
+		private int flatten(final FlatTree.Builder builder, final int ref) {
+			if (ref < 0) {
+				if (!tree.linear) {
+					return builder.addLeaf(tree.leaves[~ref]);
+				}
+
+				return builder.addLeaf(Arrays.copyOfRange(tree.leaves, ~ref * tree.width, (~ref + 1) * tree.width));
+			}
+
+			final int node = tree.covers == null ? builder.addSplit(tree.features[ref], tree.getThreshold(ref))
+					: builder.addSplit(tree.features[ref], tree.getThreshold(ref), tree.covers[2 * ref],
+							tree.covers[2 * ref + 1]);
+			final int left = flatten(builder, tree.children[2 * ref]);
+			builder.setChildren(node, left, flatten(builder, tree.children[2 * ref + 1]));
+			return node;
+		}
+
+	}
+
+}
@@ -34,6 +34,14 @@ class Criteria implements SplitCriteria<Double> {
 		return new Criteria(feature, value);
 	}
 
+	int getFeature() {
+		return feature;
+	}
+
+	double getValue() {
+		return value;
+	}
+
 	@Override
 	public boolean isLeft(final Vector<Double> featureVector) {
 		return featureVector.getValue(feature).doubleValue() >= value;
@@ -0,0 +1,346 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Scores a weighted sum of {@link RegressionTree}s only as far as needed to
+ * decide whether it clears a threshold, or to bound it within a tolerance.
+ * <p>
+ * The output of every tree lies between its smallest and largest leaf value,
+ * so after evaluating some of the trees the sum is known to lie between the
+ * partial sum plus the smallest and the largest possible outputs of the
+ * remaining trees. Trees are evaluated in order of descending weighted
+ * range, which narrows that interval the fastest. Trees with a single leaf
+ * are folded into the bias.
+ * <p>
+ * Instances are immutable and thread safe.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class EarlyExitScorer {
+
+	private final int numFeatures;
+	private final double bias;
+	private final FlatTree[] trees;
+	private final double[] weights;
+
+	/** Bounds of the weighted sum of trees k and onwards. */
+	private final double[] lowerRemaining;
+	private final double[] upperRemaining;
+
+	private EarlyExitScorer(int numFeatures, double bias, FlatTree[] trees, double[] weights,
+			double[] lowerRemaining, double[] upperRemaining) {
+		this.numFeatures = numFeatures;
+		this.bias = bias;
+		this.trees = trees;
+		this.weights = weights;
+		this.lowerRemaining = lowerRemaining;
+		this.upperRemaining = upperRemaining;
+	}
+
+	/**
+	 * 
+	 * @param trees
+	 * @param weights
+	 *            one per tree
+	 * @param bias
+	 *            added to every score
+	 * @return a scorer of the weighted sum of the trees plus the bias
+	 */
+	public static EarlyExitScorer of(Collection<? extends RegressionTree> trees, double[] weights, double bias) {
+		if (trees == null || weights == null) {
+			throw new NullPointerException();
+		}
+
+		if (trees.isEmpty() || trees.size() != weights.length) {
+			throw new IllegalArgumentException();
+		}
+
+		final int n = trees.size();
+		final FlatTree[] flats = new FlatTree[n];
+		final double[] lowers = new double[n];
+		final double[] uppers = new double[n];
+		final Integer[] order = new Integer[n];
+		int numFeatures = -1;
+		int t = 0;
+		for (RegressionTree tree : trees) {
+			if (numFeatures < 0) {
+				numFeatures = tree.getNumFeatures();
+			} else if (tree.getNumFeatures() != numFeatures) {
+				throw new IllegalArgumentException("Trees differ in number of features");
+			}
+
+			final FlatTree flat = tree.getFlatTree();
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (double value : flat.leaves) {
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+
+			flats[t] = flat;
+			lowers[t] = Math.min(weights[t] * min, weights[t] * max);
+			uppers[t] = Math.max(weights[t] * min, weights[t] * max);
+			order[t] = t;
+			t++;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(uppers[b] - lowers[b], uppers[a] - lowers[a]);
+			}
+
+		});
+
+		int m = 0;
+		while (m < n && flats[order[m]].getRoot() >= 0) {
+			m++;
+		}
+
+		double constant = bias;
+		for (int k = m; k < n; k++) {
+			constant += lowers[order[k]];
+		}
+
+		final FlatTree[] sorted = new FlatTree[m];
+		final double[] sortedWeights = new double[m];
+		final double[] lowerRemaining = new double[m + 1];
+		final double[] upperRemaining = new double[m + 1];
+		for (int k = m - 1; k >= 0; k--) {
+			final int i = order[k];
+			sorted[k] = flats[i];
+			sortedWeights[k] = weights[i];
+			lowerRemaining[k] = lowerRemaining[k + 1] + lowers[i];
+			upperRemaining[k] = upperRemaining[k + 1] + uppers[i];
+		}
+
+		return new EarlyExitScorer(numFeatures, constant, sorted, sortedWeights, lowerRemaining, upperRemaining);
+	}
+
+	public static EarlyExitScorer of(GradientBoostedTrees model) {
+		final List<RegressionTree> trees = model.getTrees();
+		final double[] weights = new double[trees.size()];
+		Arrays.fill(weights, model.getLearningRate());
+		return of(trees, weights, model.getInitialValue());
+	}
+
+	public static EarlyExitScorer of(RandomForest forest) {
+		final List<RegressionTree> trees = forest.getTrees();
+		final double[] weights = new double[trees.size()];
+		Arrays.fill(weights, 1D / trees.size());
+		return of(trees, weights, 0D);
+	}
+
+	/**
+	 * Evaluates trees until the score is known to be above or below the
+	 * threshold.
+	 * 
+	 * @param featureVector
+	 * @param threshold
+	 * @return whether the score is greater than or equal to the threshold
+	 */
+	public boolean exceeds(double[] featureVector, double threshold) {
+		preCheck(featureVector);
+		final double[] bounds = new double[2];
+		evaluate(featureVector, threshold, 0D, bounds);
+		return bounds[0] >= threshold;
+	}
+
+	/**
+	 * Same as {@link #exceeds(double[], double)} for every row.
+	 * 
+	 * @param featureVectors
+	 * @param threshold
+	 * @param results
+	 * @return the number of rows whose score is greater than or equal to the
+	 *         threshold
+	 */
+	public int exceeds(double[][] featureVectors, double threshold, boolean[] results) {
+		if (featureVectors == null || results == null) {
+			throw new NullPointerException();
+		}
+
+		if (results.length != featureVectors.length) {
+			throw new IllegalArgumentException();
+		}
+
+		final double[] bounds = new double[2];
+		int count = 0;
+		for (int i = 0; i < featureVectors.length; i++) {
+			preCheck(featureVectors[i]);
+			evaluate(featureVectors[i], threshold, 0D, bounds);
+			results[i] = bounds[0] >= threshold;
+			if (results[i]) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Evaluates trees until the score is known within the tolerance.
+	 * 
+	 * @param featureVector
+	 * @param tolerance
+	 *            the largest acceptable distance between the bounds
+	 * @return
+	 */
+	public Estimate estimate(double[] featureVector, double tolerance) {
+		return estimate(featureVector, Double.NaN, tolerance);
+	}
+
+	/**
+	 * Evaluates trees until the score is known to be above or below the
+	 * threshold, or within the tolerance, whichever comes first.
+	 * 
+	 * @param featureVector
+	 * @param threshold
+	 * @param tolerance
+	 *            the largest acceptable distance between the bounds
+	 * @return
+	 */
+	public Estimate estimate(double[] featureVector, double threshold, double tolerance) {
+		preCheck(featureVector);
+		if (!(tolerance >= 0D)) {
+			throw new IllegalArgumentException();
+		}
+
+		final double[] bounds = new double[2];
+		final int numTrees = evaluate(featureVector, threshold, tolerance, bounds);
+		return new Estimate(bounds[0], bounds[1], numTrees);
+	}
+
+	/**
+	 * The exact score, evaluating every tree.
+	 * 
+	 * @param featureVector
+	 * @return
+	 */
+	public double predict(double[] featureVector) {
+		preCheck(featureVector);
+		double sum = bias;
+		for (int k = 0; k < trees.length; k++) {
+			sum += weights[k] * trees[k].getValue(featureVector);
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Comparisons against a NaN threshold never decide, so a NaN threshold
+	 * leaves only the tolerance.
+	 * 
+	 * @return the number of trees evaluated
+	 */
+	private int evaluate(final double[] x, final double threshold, final double tolerance, final double[] bounds) {
+		double sum = bias;
+		int k = 0;
+		while (k < trees.length) {
+			final double lower = sum + lowerRemaining[k];
+			final double upper = sum + upperRemaining[k];
+			if (lower >= threshold || upper < threshold || upper - lower <= tolerance) {
+				break;
+			}
+
+			sum += weights[k] * trees[k].getValue(x);
+			k++;
+		}
+
+		bounds[0] = sum + lowerRemaining[k];
+		bounds[1] = sum + upperRemaining[k];
+		return k;
+	}
+
+	private void preCheck(final double[] vector) {
+		if (vector == null) {
+			throw new NullPointerException();
+		}
+
+		if (vector.length != numFeatures) {
+			throw new IllegalArgumentException();
+		}
+	}
+
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	/**
+	 * 
+	 * @return the number of trees with more than one leaf
+	 */
+	public int getNumTrees() {
+		return trees.length;
+	}
+
+	/**
+	 * Bounds on a score, from evaluating some of the trees.
+	 */
+	public static final class Estimate {
+
+		private final double lower;
+		private final double upper;
+		private final int numTrees;
+
+		Estimate(double lower, double upper, int numTrees) {
+			this.lower = lower;
+			this.upper = upper;
+			this.numTrees = numTrees;
+		}
+
+		public double getLower() {
+			return lower;
+		}
+
+		public double getUpper() {
+			return upper;
+		}
+
+		/**
+		 * 
+		 * @return the midpoint of the bounds
+		 */
+		public double getValue() {
+			return (lower + upper) / 2D;
+		}
+
+		/**
+		 * 
+		 * @return the number of trees evaluated
+		 */
+		public int getNumTrees() {
+			return numTrees;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + lower + ", " + upper + "] after " + numTrees + " trees";
+		}
+
+	}
+
+}
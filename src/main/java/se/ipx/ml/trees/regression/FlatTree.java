@@ -0,0 +1,778 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.FeatureSupplier;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.InternalNode;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+import se.ipx.ml.trees.regression.ModelTree.ModelLeafNode;
+import se.ipx.ml.trees.regression.RegressionTree.RegressionLeafNode;
+
+/**
+ * A tree flattened into primitive arrays. Internal nodes are numbered in
+ * pre-order, starting with the root at index 0. A child reference is either
+ * the index of an internal node (>= 0) or the one's complement of a leaf index
+ * (< 0). A tree consisting of a single leaf has no internal nodes and its root
+ * reference is ~0.
+ * 
+ * Leaves are stored back to back in {@link #leaves}, {@link #width} values
+ * each. Constant leaves hold a single value, linear leaves hold one weight per
+ * feature.
+ * 
+ * Every internal node also keeps the number of training rows that went to
+ * either child, zero if unknown.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+final class FlatTree {
+
+	/**
+	 * Number of rows advanced together through the tree by
+	 * {@link #getValues(double[][], double[])}.
+	 */
+	static final int BLOCK_SIZE = 64;
+
+	final int[] features;
+	final double[] thresholds;
+	final int[] lefts;
+	final int[] rights;
+	final int[] leftCovers;
+	final int[] rightCovers;
+	final double[] leaves;
+	final int width;
+	final boolean linear;
+
+	FlatTree(int[] features, double[] thresholds, int[] lefts, int[] rights, double[] leaves, int width,
+			boolean linear) {
+		this(features, thresholds, lefts, rights, new int[features.length], new int[features.length], leaves, width,
+				linear);
+	}
+
+	FlatTree(int[] features, double[] thresholds, int[] lefts, int[] rights, int[] leftCovers, int[] rightCovers,
+			double[] leaves, int width, boolean linear) {
+		if (features.length != thresholds.length || features.length != lefts.length
+				|| features.length != rights.length || features.length != leftCovers.length
+				|| features.length != rightCovers.length) {
+			throw new IllegalArgumentException();
+		}
+
+		if (width < 1 || leaves.length % width != 0) {
+			throw new IllegalArgumentException();
+		}
+
+		this.features = features;
+		this.thresholds = thresholds;
+		this.lefts = lefts;
+		this.rights = rights;
+		this.leftCovers = leftCovers;
+		this.rightCovers = rightCovers;
+		this.leaves = leaves;
+		this.width = width;
+		this.linear = linear;
+	}
+
+	static FlatTree of(final Node root) {
+		Builder builder = new Builder();
+		root.flatten(builder);
+		return builder.build();
+	}
+
+	int getRoot() {
+		return features.length > 0 ? 0 : ~0;
+	}
+
+	int getNumNodes() {
+		return features.length;
+	}
+
+	int getNumLeaves() {
+		return leaves.length / width;
+	}
+
+	double getValue(final double[] x) {
+		return getLeafValue(getLeaf(x), x);
+	}
+
+	int getLeaf(final double[] x) {
+		int ref = getRoot();
+		while (ref >= 0) {
+			ref = x[features[ref]] >= thresholds[ref] ? lefts[ref] : rights[ref];
+		}
+
+		return ~ref;
+	}
+
+	int getLeaf(final FeatureSupplier x) {
+		int ref = getRoot();
+		while (ref >= 0) {
+			ref = x.getFeature(features[ref]) >= thresholds[ref] ? lefts[ref] : rights[ref];
+		}
+
+		return ~ref;
+	}
+
+	/**
+	 * Evaluates the tree requesting feature values from the supplier as they
+	 * are needed, asking for every feature at most once. Linear leaves only
+	 * request the features they have a non-zero weight for, so a NaN or
+	 * infinite feature weighted by zero is left out of the sum rather than
+	 * making it NaN as in {@link #getValue(double[])}.
+	 * 
+	 * @param supplier
+	 * @param numFeatures
+	 * @return
+	 */
+	double getValue(final FeatureSupplier supplier, final int numFeatures) {
+		final double[] x = new double[numFeatures];
+		final boolean[] known = new boolean[numFeatures];
+		int ref = getRoot();
+		while (ref >= 0) {
+			final int feature = features[ref];
+			if (!known[feature]) {
+				x[feature] = supplier.getFeature(feature);
+				known[feature] = true;
+			}
+
+			ref = x[feature] >= thresholds[ref] ? lefts[ref] : rights[ref];
+		}
+
+		if (!linear) {
+			return leaves[~ref];
+		}
+
+		final int offset = ~ref * width;
+		double sum = 0D;
+		for (int i = 0; i < width; i++) {
+			final double w = leaves[offset + i];
+			if (w != 0D) {
+				if (!known[i]) {
+					x[i] = supplier.getFeature(i);
+					known[i] = true;
+				}
+
+				sum += w * x[i];
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * 
+	 * @return the indices of the features split on or weighted by a leaf, in
+	 *         ascending order
+	 */
+	int[] getUsedFeatures(final int numFeatures) {
+		final boolean[] used = new boolean[numFeatures];
+		for (int i = 0; i < features.length; i++) {
+			used[features[i]] = true;
+		}
+
+		if (linear) {
+			for (int i = 0; i < leaves.length; i++) {
+				if (leaves[i] != 0D) {
+					used[i % width] = true;
+				}
+			}
+		}
+
+		int n = 0;
+		final int[] indices = new int[numFeatures];
+		for (int i = 0; i < numFeatures; i++) {
+			if (used[i]) {
+				indices[n++] = i;
+			}
+		}
+
+		return Arrays.copyOf(indices, n);
+	}
+
+	/**
+	 * Evaluates the rows block by block, advancing all rows of a block one
+	 * level at a time. Rows reaching a leaf are dropped from the block's active
+	 * list, so the work per level is proportional to the number of rows still
+	 * traversing the tree. The loads for the different rows of a level are
+	 * independent of each other, which lets them overlap.
+	 * 
+	 * @param rows
+	 * @param values
+	 */
+	void getValues(final double[][] rows, final double[] values) {
+		final int root = getRoot();
+		final int[] refs = new int[BLOCK_SIZE];
+		final int[] active = new int[BLOCK_SIZE];
+		for (int from = 0; from < rows.length; from += BLOCK_SIZE) {
+			final int n = Math.min(BLOCK_SIZE, rows.length - from);
+			for (int i = 0; i < n; i++) {
+				refs[i] = root;
+				active[i] = i;
+			}
+
+			int numActive = root >= 0 ? n : 0;
+			while (numActive > 0) {
+				int next = 0;
+				for (int k = 0; k < numActive; k++) {
+					final int i = active[k];
+					final int ref = refs[i];
+					final int child = rows[from + i][features[ref]] >= thresholds[ref] ? lefts[ref] : rights[ref];
+					refs[i] = child;
+					active[next] = i;
+					next += ~child >>> 31;
+				}
+
+				numActive = next;
+			}
+
+			for (int i = 0; i < n; i++) {
+				values[from + i] = getLeafValue(~refs[i], rows[from + i]);
+			}
+		}
+	}
+
+	double getLeafValue(final int leaf, final double[] x) {
+		if (!linear) {
+			return leaves[leaf];
+		}
+
+		final int offset = leaf * width;
+		double sum = 0D;
+		for (int i = 0; i < width; i++) {
+			sum += leaves[offset + i] * x[i];
+		}
+
+		return sum;
+	}
+
+	double getLeafValue(final int leaf, final FeatureSupplier x) {
+		if (!linear) {
+			return leaves[leaf];
+		}
+
+		final int offset = leaf * width;
+		double sum = 0D;
+		for (int i = 0; i < width; i++) {
+			sum += leaves[offset + i] * x.getFeature(i);
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Builds one feature vector per leaf that ends up in that leaf, so that
+	 * evaluating all of them visits every node. Features not split on along a
+	 * path are zero.
+	 * 
+	 * @param numFeatures
+	 * @return
+	 */
+	double[][] getLeafInputs(final int numFeatures) {
+		final double[][] inputs = new double[getNumLeaves()][];
+		addLeafInputs(getRoot(), new double[numFeatures], inputs);
+		return inputs;
+	}
+
+	private void addLeafInputs(final int ref, final double[] x, final double[][] inputs) {
+		if (ref < 0) {
+			inputs[~ref] = x;
+			return;
+		}
+
+		final double[] left = x.clone();
+		left[features[ref]] = thresholds[ref];
+		addLeafInputs(lefts[ref], left, inputs);
+		x[features[ref]] = Math.nextAfter(thresholds[ref], Double.NEGATIVE_INFINITY);
+		addLeafInputs(rights[ref], x, inputs);
+	}
+
+	/**
+	 * Sums leaf hits into hits per internal node.
+	 * 
+	 * @param leafHits
+	 * @return
+	 */
+	long[] getNodeHits(final long[] leafHits) {
+		final long[] nodeHits = new long[getNumNodes()];
+		if (nodeHits.length > 0) {
+			sumHits(getRoot(), nodeHits, leafHits);
+		}
+
+		return nodeHits;
+	}
+
+	private long sumHits(final int ref, final long[] nodeHits, final long[] leafHits) {
+		if (ref < 0) {
+			return leafHits[~ref];
+		}
+
+		nodeHits[ref] = sumHits(lefts[ref], nodeHits, leafHits) + sumHits(rights[ref], nodeHits, leafHits);
+		return nodeHits[ref];
+	}
+
+	/**
+	 * Lays out the tree again, placing the more frequently taken child of every
+	 * node directly after it. The hot path from the root is thereby stored
+	 * contiguously, and is what the compiler falls through to.
+	 * 
+	 * @param nodeHits
+	 * @param leafHits
+	 * @return
+	 */
+	FlatTree reorder(final long[] nodeHits, final long[] leafHits) {
+		if (nodeHits.length != getNumNodes() || leafHits.length != getNumLeaves()) {
+			throw new IllegalArgumentException();
+		}
+
+		final Builder builder = new Builder();
+		reorder(builder, getRoot(), nodeHits, leafHits);
+		return builder.build();
+	}
+
+	private int reorder(final Builder builder, final int ref, final long[] nodeHits, final long[] leafHits) {
+		if (ref < 0) {
+			return addLeaf(builder, ~ref);
+		}
+
+		final int node = builder.addSplit(features[ref], thresholds[ref], leftCovers[ref], rightCovers[ref]);
+		final int left = lefts[ref];
+		final int right = rights[ref];
+		final long leftHits = left < 0 ? leafHits[~left] : nodeHits[left];
+		final long rightHits = right < 0 ? leafHits[~right] : nodeHits[right];
+		if (leftHits >= rightHits) {
+			final int l = reorder(builder, left, nodeHits, leafHits);
+			builder.setChildren(node, l, reorder(builder, right, nodeHits, leafHits));
+		} else {
+			final int r = reorder(builder, right, nodeHits, leafHits);
+			builder.setChildren(node, reorder(builder, left, nodeHits, leafHits), r);
+		}
+
+		return node;
+	}
+
+	private int addLeaf(final Builder builder, final int leaf) {
+		if (linear) {
+			return builder.addLeaf(Arrays.copyOfRange(leaves, leaf * width, (leaf + 1) * width));
+		} else {
+			return builder.addLeaf(leaves[leaf]);
+		}
+	}
+
+	/**
+	 * Tells whether the left subtree of a node is laid out before the right
+	 * one, which is the case unless the tree has been reordered.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	boolean isLeftFirst(final int node) {
+		// leaves are numbered in layout order, so any leaf of a subtree will do
+		return getAnyLeaf(lefts[node]) < getAnyLeaf(rights[node]);
+	}
+
+	private int getAnyLeaf(int ref) {
+		while (ref >= 0) {
+			ref = lefts[ref];
+		}
+
+		return ~ref;
+	}
+
+	/**
+	 * Merges identical leaves and identical subtrees, turning the tree into a
+	 * DAG where every distinct subtree is stored once. Leaves are compared on
+	 * the bits of their values and splits on feature, threshold bits and
+	 * covers, so the result predicts and explains exactly the same values. Nodes are numbered in
+	 * pre-order of their first occurrence, so the root stays at index 0.
+	 * 
+	 * The node and leaf indices of the result no longer identify a path from
+	 * the root, so it must not be instrumented or reordered.
+	 * 
+	 * @return
+	 */
+	FlatTree deduplicate() {
+		final Map<LeafKey, Integer> distinctLeaves = new HashMap<LeafKey, Integer>();
+		final int[] leafClasses = new int[getNumLeaves()];
+		for (int leaf = 0; leaf < leafClasses.length; leaf++) {
+			final LeafKey key = new LeafKey(leaves, leaf * width, width);
+			Integer index = distinctLeaves.get(key);
+			if (index == null) {
+				index = distinctLeaves.size();
+				distinctLeaves.put(key, index);
+			}
+
+			leafClasses[leaf] = index;
+		}
+
+		// children are numbered after their parents, so classes are known
+		// for both children when walking the nodes backwards
+		final Map<SubtreeKey, Integer> distinctNodes = new HashMap<SubtreeKey, Integer>();
+		final int[] nodeClasses = new int[getNumNodes()];
+		for (int node = nodeClasses.length - 1; node >= 0; node--) {
+			final SubtreeKey key = new SubtreeKey(features[node], thresholds[node],
+					classOf(lefts[node], nodeClasses, leafClasses), classOf(rights[node], nodeClasses, leafClasses),
+					leftCovers[node], rightCovers[node]);
+			Integer index = distinctNodes.get(key);
+			if (index == null) {
+				index = distinctNodes.size();
+				distinctNodes.put(key, index);
+			}
+
+			nodeClasses[node] = index;
+		}
+
+		final int[] nodeRefs = new int[distinctNodes.size()];
+		final int[] leafRefs = new int[distinctLeaves.size()];
+		// leaf references are negative, so zero marks a leaf not copied yet
+		Arrays.fill(nodeRefs, -1);
+		final FlatTree dag = new FlatTree(new int[nodeRefs.length], new double[nodeRefs.length],
+				new int[nodeRefs.length], new int[nodeRefs.length], new int[nodeRefs.length], new int[nodeRefs.length],
+				new double[leafRefs.length * width], width, linear);
+		final int[] counts = new int[2];
+		copyDistinct(dag, getRoot(), nodeClasses, leafClasses, nodeRefs, leafRefs, counts);
+		return dag;
+	}
+
+	private static int classOf(final int ref, final int[] nodeClasses, final int[] leafClasses) {
+		return ref >= 0 ? nodeClasses[ref] : ~leafClasses[~ref];
+	}
+
+	private int copyDistinct(final FlatTree dag, final int ref, final int[] nodeClasses, final int[] leafClasses,
+			final int[] nodeRefs, final int[] leafRefs, final int[] counts) {
+		if (ref < 0) {
+			final int leafClass = leafClasses[~ref];
+			if (leafRefs[leafClass] == 0) {
+				final int leaf = counts[1]++;
+				System.arraycopy(leaves, ~ref * width, dag.leaves, leaf * width, width);
+				leafRefs[leafClass] = ~leaf;
+			}
+
+			return leafRefs[leafClass];
+		}
+
+		final int nodeClass = nodeClasses[ref];
+		if (nodeRefs[nodeClass] < 0) {
+			final int node = counts[0]++;
+			nodeRefs[nodeClass] = node;
+			dag.features[node] = features[ref];
+			dag.thresholds[node] = thresholds[ref];
+			dag.leftCovers[node] = leftCovers[ref];
+			dag.rightCovers[node] = rightCovers[ref];
+			dag.lefts[node] = copyDistinct(dag, lefts[ref], nodeClasses, leafClasses, nodeRefs, leafRefs, counts);
+			dag.rights[node] = copyDistinct(dag, rights[ref], nodeClasses, leafClasses, nodeRefs, leafRefs, counts);
+		}
+
+		return nodeRefs[nodeClass];
+	}
+
+	/**
+	 * Rebuilds the node graph of this tree. Subtrees referenced more than once,
+	 * see {@link #deduplicate()}, become shared node objects.
+	 * 
+	 * @return
+	 */
+	Node toNode() {
+		return toNode(getRoot(), new Node[getNumNodes()], new Node[getNumLeaves()]);
+	}
+
+	private Node toNode(final int ref, final Node[] nodes, final Node[] leafNodes) {
+		if (ref < 0) {
+			final int leaf = ~ref;
+			if (leafNodes[leaf] == null) {
+				if (linear) {
+					leafNodes[leaf] = new ModelLeafNode(Arrays.copyOfRange(leaves, leaf * width, (leaf + 1) * width));
+				} else {
+					leafNodes[leaf] = new RegressionLeafNode(leaves[leaf]);
+				}
+			}
+
+			return leafNodes[leaf];
+		}
+
+		if (nodes[ref] == null) {
+			nodes[ref] = new InternalNode(toNode(lefts[ref], nodes, leafNodes), toNode(rights[ref], nodes, leafNodes),
+					features[ref], thresholds[ref], leftCovers[ref], rightCovers[ref]);
+		}
+
+		return nodes[ref];
+	}
+
+	/**
+	 * Key on the bits of the values of a leaf.
+	 */
+	static final class LeafKey {
+
+		final double[] values;
+		final int offset;
+		final int length;
+		final int hash;
+
+		LeafKey(double[] values, int offset, int length) {
+			this.values = values;
+			this.offset = offset;
+			this.length = length;
+			int h = 1;
+			for (int i = offset; i < offset + length; i++) {
+				final long bits = Double.doubleToLongBits(values[i]);
+				h = 31 * h + (int) (bits ^ (bits >>> 32));
+			}
+
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof LeafKey)) {
+				return false;
+			}
+
+			final LeafKey that = (LeafKey) obj;
+			if (this.length != that.length) {
+				return false;
+			}
+
+			for (int i = 0; i < length; i++) {
+				if (Double.doubleToLongBits(values[offset + i]) != Double.doubleToLongBits(that.values[that.offset
+						+ i])) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+	}
+
+	/**
+	 * Key of a subtree whose children have already been deduplicated. The
+	 * covers are part of the key, as explanations depend on them.
+	 */
+	private static final class SubtreeKey {
+
+		final int feature;
+		final long threshold;
+		final int left;
+		final int right;
+		final int leftCover;
+		final int rightCover;
+
+		SubtreeKey(int feature, double threshold, int left, int right, int leftCover, int rightCover) {
+			this.feature = feature;
+			this.threshold = Double.doubleToLongBits(threshold);
+			this.left = left;
+			this.right = right;
+			this.leftCover = leftCover;
+			this.rightCover = rightCover;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = 31 * feature + (int) (threshold ^ (threshold >>> 32));
+			h = 31 * (31 * h + left) + right;
+			return 31 * (31 * h + leftCover) + rightCover;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof SubtreeKey)) {
+				return false;
+			}
+
+			final SubtreeKey that = (SubtreeKey) obj;
+			return feature == that.feature && threshold == that.threshold && left == that.left
+					&& right == that.right && leftCover == that.leftCover && rightCover == that.rightCover;
+		}
+
+	}
+
+	/**
+	 * Root of a tree evaluated on its flattened form, keeping its layout.
+	 */
+	static class FlatNode extends Node {
+
+		final FlatTree tree;
+
+		FlatNode(FlatTree tree) {
+			this.tree = tree;
+		}
+
+		@Override
+		double getValue(final double[] features) {
+			return tree.getValue(features);
+		}
+
+		@Override
+		double getValue(final Double[] features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		@Override
+		double getValue(final List<Double> features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		@Override
+		double getValue(final Vector<Double> features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		private double getValue(final FeatureSupplier features) {
+			return tree.getLeafValue(tree.getLeaf(features), features);
+		}
+
+		@Override
+		void write(StringBuilder sb, int depth, String prefix, String[] labels) {
+			tree.toNode().write(sb, depth, prefix, labels);
+		}
+
+		@Override
+		int flatten(Builder builder) {
+			return flatten(builder, tree.getRoot());
+		}
+
+		private int flatten(final Builder builder, final int ref) {
+			if (ref < 0) {
+				return tree.addLeaf(builder, ~ref);
+			}
+
+			final int node = builder.addSplit(tree.features[ref], tree.thresholds[ref], tree.leftCovers[ref],
+					tree.rightCovers[ref]);
+			if (tree.isLeftFirst(ref)) {
+				final int left = flatten(builder, tree.lefts[ref]);
+				builder.setChildren(node, left, flatten(builder, tree.rights[ref]));
+			} else {
+				final int right = flatten(builder, tree.rights[ref]);
+				builder.setChildren(node, flatten(builder, tree.lefts[ref]), right);
+			}
+
+			return node;
+		}
+
+	}
+
+	static final class Builder {
+
+		private int[] features;
+		private double[] thresholds;
+		private int[] lefts;
+		private int[] rights;
+		private int[] leftCovers;
+		private int[] rightCovers;
+		private int numNodes;
+
+		private double[] leaves;
+		private int numLeaves;
+		private int width;
+		private boolean linear;
+
+		Builder() {
+			features = new int[16];
+			thresholds = new double[16];
+			lefts = new int[16];
+			rights = new int[16];
+			leftCovers = new int[16];
+			rightCovers = new int[16];
+			leaves = new double[16];
+			width = -1;
+		}
+
+		int addSplit(final int feature, final double threshold) {
+			return addSplit(feature, threshold, 0, 0);
+		}
+
+		int addSplit(final int feature, final double threshold, final int leftCover, final int rightCover) {
+			if (numNodes == features.length) {
+				final int capacity = numNodes * 2;
+				features = Arrays.copyOf(features, capacity);
+				thresholds = Arrays.copyOf(thresholds, capacity);
+				lefts = Arrays.copyOf(lefts, capacity);
+				rights = Arrays.copyOf(rights, capacity);
+				leftCovers = Arrays.copyOf(leftCovers, capacity);
+				rightCovers = Arrays.copyOf(rightCovers, capacity);
+			}
+
+			features[numNodes] = feature;
+			thresholds[numNodes] = threshold;
+			leftCovers[numNodes] = leftCover;
+			rightCovers[numNodes] = rightCover;
+			return numNodes++;
+		}
+
+		void setChildren(final int node, final int left, final int right) {
+			if (node < 0 || node >= numNodes) {
+				throw new IllegalArgumentException();
+			}
+
+			lefts[node] = left;
+			rights[node] = right;
+		}
+
+		int addLeaf(final double value) {
+			checkLeaf(false, 1);
+			ensureLeafCapacity(1);
+			leaves[numLeaves] = value;
+			return ~numLeaves++;
+		}
+
+		int addLeaf(final double[] weights) {
+			checkLeaf(true, weights.length);
+			ensureLeafCapacity(weights.length);
+			System.arraycopy(weights, 0, leaves, numLeaves * width, width);
+			return ~numLeaves++;
+		}
+
+		private void checkLeaf(final boolean linear, final int width) {
+			if (this.width == -1) {
+				this.width = width;
+				this.linear = linear;
+			} else if (this.width != width || this.linear != linear) {
+				throw new IllegalStateException("Mixed leaf types");
+			}
+		}
+
+		private void ensureLeafCapacity(final int n) {
+			final int required = (numLeaves + 1) * n;
+			if (required > leaves.length) {
+				leaves = Arrays.copyOf(leaves, Math.max(required, leaves.length * 2));
+			}
+		}
+
+		FlatTree build() {
+			if (numLeaves == 0) {
+				throw new IllegalStateException("Missing leaves");
+			}
+
+			return new FlatTree(Arrays.copyOf(features, numNodes), Arrays.copyOf(thresholds, numNodes),
+					Arrays.copyOf(lefts, numNodes), Arrays.copyOf(rights, numNodes),
+					Arrays.copyOf(leftCovers, numNodes), Arrays.copyOf(rightCovers, numNodes),
+					Arrays.copyOf(leaves, numLeaves * width), width, linear);
+		}
+
+	}
+
+}
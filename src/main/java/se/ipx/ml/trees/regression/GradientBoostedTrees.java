@@ -0,0 +1,543 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.DoubleDecisionTree;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+
+/**
+ * An additive model of {@link RegressionTree}s, each fitted to the residuals
+ * of the ones before it and scaled by a learning rate. Predicts the mean
+ * target of the training set plus the scaled sum of its trees.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public class GradientBoostedTrees implements DoubleDecisionTree {
+
+	private final double initialValue;
+	private final double learningRate;
+	private final RegressionTree[] trees;
+	private final double[] validationErrors;
+	private final int numFeatures;
+	private final String targetLabel;
+	private final String[] featureLabels;
+
+	GradientBoostedTrees(double initialValue, double learningRate, RegressionTree[] trees,
+			double[] validationErrors, int numFeatures, String targetLabel, String[] featureLabels) {
+		this.initialValue = initialValue;
+		this.learningRate = learningRate;
+		this.trees = trees;
+		this.validationErrors = validationErrors;
+		this.numFeatures = numFeatures;
+		this.targetLabel = targetLabel;
+		this.featureLabels = featureLabels;
+	}
+
+	public static Trainer newTrainer() {
+		return new Trainer();
+	}
+
+	@Override
+	public double predict(double[] featureVector) {
+		double sum = 0D;
+		for (RegressionTree tree : trees) {
+			sum += tree.predict(featureVector);
+		}
+
+		return initialValue + learningRate * sum;
+	}
+
+	@Override
+	public void predict(double[][] featureVectors, double[] predictions) {
+		if (featureVectors == null || predictions == null) {
+			throw new NullPointerException();
+		}
+
+		if (predictions.length != featureVectors.length) {
+			throw new IllegalArgumentException();
+		}
+
+		final double[] values = new double[featureVectors.length];
+		Arrays.fill(predictions, 0D);
+		for (RegressionTree tree : trees) {
+			tree.predict(featureVectors, values);
+			for (int i = 0; i < values.length; i++) {
+				predictions[i] += values[i];
+			}
+		}
+
+		for (int i = 0; i < predictions.length; i++) {
+			predictions[i] = initialValue + learningRate * predictions[i];
+		}
+	}
+
+	@Override
+	public Double predict(Double... featureVector) {
+		double sum = 0D;
+		for (RegressionTree tree : trees) {
+			sum += tree.predictDouble(featureVector);
+		}
+
+		return initialValue + learningRate * sum;
+	}
+
+	@Override
+	public Double predict(List<Double> featureVector) {
+		double sum = 0D;
+		for (RegressionTree tree : trees) {
+			sum += tree.predictDouble(featureVector);
+		}
+
+		return initialValue + learningRate * sum;
+	}
+
+	@Override
+	public Double predict(Vector<Double> featureVector) {
+		double sum = 0D;
+		for (RegressionTree tree : trees) {
+			sum += tree.predictDouble(featureVector);
+		}
+
+		return initialValue + learningRate * sum;
+	}
+
+	public List<RegressionTree> getTrees() {
+		return Collections.unmodifiableList(Arrays.asList(trees));
+	}
+
+	public double getInitialValue() {
+		return initialValue;
+	}
+
+	public double getLearningRate() {
+		return learningRate;
+	}
+
+	/**
+	 * The mean squared error on the validation set after every round, including
+	 * rounds dropped by early stopping.
+	 * 
+	 * @return an empty array if trained without a validation set
+	 */
+	public double[] getValidationErrors() {
+		return validationErrors.clone();
+	}
+
+	@Override
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public String getTargetLabel() {
+		return targetLabel;
+	}
+
+	public String[] getFeatureLabels() {
+		return featureLabels;
+	}
+
+	/**
+	 * Trains the trees one round at a time, each on a {@link RowView} of the
+	 * same presorted copy of the training set. The targets of that copy hold
+	 * the residuals, which are updated in place after every round.
+	 */
+	public static class Trainer extends PresortedTrainer {
+
+		private static final long serialVersionUID = 1L;
+
+		private transient ForkJoinPool pool;
+		private Instances<Double> set;
+		private Instances<Double> validationSet;
+		private double minError;
+		private int minRowsInSplit;
+		private int numThreads;
+		private int numRounds;
+		private double learningRate;
+		private int maxDepth;
+		private double sampleRate;
+		private int maxFeatures;
+		private int earlyStoppingRounds;
+		private int numRandomThresholds;
+		private int maxLeaves;
+		private TrainingBudget budget;
+		private TrainingMonitor monitor;
+		private long seed;
+
+		public Trainer() {
+			minError = 0D;
+			minRowsInSplit = 3;
+			numRounds = 100;
+			learningRate = 0.1D;
+			maxDepth = 6;
+			sampleRate = 1D;
+		}
+
+		public Trainer setMinError(double minError) {
+			this.minError = minError;
+			return this;
+		}
+
+		public Trainer setMinRowsInSplit(int minRowsInSplit) {
+			if (minRowsInSplit < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.minRowsInSplit = minRowsInSplit;
+			return this;
+		}
+
+		public Trainer setTrainingSet(Instances<Double> trainingSet) {
+			this.set = trainingSet;
+			return this;
+		}
+
+		/**
+		 * The set to measure the error on after every round, for early
+		 * stopping.
+		 * 
+		 * @param validationSet
+		 * @return
+		 */
+		public Trainer setValidationSet(Instances<Double> validationSet) {
+			this.validationSet = validationSet;
+			return this;
+		}
+
+		public Trainer setForkJoinPool(ForkJoinPool pool) {
+			this.pool = pool;
+			return this;
+		}
+
+		public Trainer setNumThreads(int numThreads) {
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public Trainer setNumRounds(int numRounds) {
+			if (numRounds < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.numRounds = numRounds;
+			return this;
+		}
+
+		public Trainer setLearningRate(double learningRate) {
+			if (!(learningRate > 0D)) {
+				throw new IllegalStateException();
+			}
+
+			this.learningRate = learningRate;
+			return this;
+		}
+
+		public Trainer setMaxDepth(int maxDepth) {
+			if (maxDepth < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.maxDepth = maxDepth;
+			return this;
+		}
+
+		/**
+		 * The fraction of the rows drawn without replacement for every tree.
+		 * Defaults to 1.
+		 * 
+		 * @param sampleRate
+		 * @return
+		 */
+		public Trainer setSampleRate(double sampleRate) {
+			if (!(sampleRate > 0D && sampleRate <= 1D)) {
+				throw new IllegalStateException();
+			}
+
+			this.sampleRate = sampleRate;
+			return this;
+		}
+
+		/**
+		 * The number of features searched at every split, all of them by
+		 * default.
+		 * 
+		 * @param maxFeatures
+		 * @return
+		 */
+		public Trainer setMaxFeatures(int maxFeatures) {
+			if (maxFeatures < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.maxFeatures = maxFeatures;
+			return this;
+		}
+
+		/**
+		 * Stops training once the validation error has not improved for the
+		 * given number of rounds, and drops the trees of those rounds.
+		 * 
+		 * @param earlyStoppingRounds
+		 * @return
+		 */
+		public Trainer setEarlyStoppingRounds(int earlyStoppingRounds) {
+			if (earlyStoppingRounds < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.earlyStoppingRounds = earlyStoppingRounds;
+			return this;
+		}
+
+		/**
+		 * Limits the number of leaves of every tree, growing them best first:
+		 * the split reducing the error the most is always made next.
+		 * 
+		 * @param maxLeaves
+		 * @return
+		 */
+		public Trainer setMaxLeaves(int maxLeaves) {
+			if (maxLeaves < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.maxLeaves = maxLeaves;
+			return this;
+		}
+
+		/**
+		 * Splits on the best of a few random thresholds per feature, see
+		 * {@link RegressionTree.Trainer#setNumRandomThresholds(int)}.
+		 * 
+		 * @param numRandomThresholds
+		 * @return
+		 */
+		public Trainer setNumRandomThresholds(int numRandomThresholds) {
+			if (numRandomThresholds < 0) {
+				throw new IllegalStateException();
+			}
+
+			this.numRandomThresholds = numRandomThresholds;
+			return this;
+		}
+
+		public Trainer setSeed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * Bounds the time and heap used by training. No rounds are started
+		 * after the budget runs out, and the tree being grown keeps the
+		 * splits made so far.
+		 * 
+		 * @param budget
+		 * @return
+		 */
+		public Trainer setBudget(TrainingBudget budget) {
+			this.budget = budget;
+			return this;
+		}
+
+		/**
+		 * Reports the progress of training to the monitor, one tree per
+		 * round.
+		 * 
+		 * @param monitor
+		 * @return
+		 */
+		public Trainer setMonitor(TrainingMonitor monitor) {
+			this.monitor = monitor;
+			return this;
+		}
+
+		public void validate() {
+			if (set == null) {
+				throw new IllegalStateException("Missing training set");
+			}
+
+			if (earlyStoppingRounds > 0 && validationSet == null) {
+				throw new IllegalStateException("Early stopping requires a validation set");
+			}
+		}
+
+		@Override
+		protected int getNumCandidateFeatures(int numFeatures) {
+			return maxFeatures > 0 ? Math.min(maxFeatures, numFeatures) : numFeatures;
+		}
+
+		@Override
+		protected TrainingMonitor getMonitor() {
+			return monitor;
+		}
+
+		@Override
+		protected TrainingBudget getBudget() {
+			return budget;
+		}
+
+		@Override
+		protected int getMaxLeaves() {
+			return maxLeaves > 0 ? maxLeaves : Integer.MAX_VALUE;
+		}
+
+		@Override
+		protected int getNumRandomThresholds() {
+			return numRandomThresholds;
+		}
+
+		@Override
+		protected int getMaxDepth() {
+			return maxDepth;
+		}
+
+		public GradientBoostedTrees train() {
+			validate();
+			if (pool == null) {
+				pool = new ForkJoinPool(numThreads);
+			}
+
+			final TrainingData data = TrainingData.of(set);
+			final int n = data.numRows;
+			final double[] targets = data.targets.clone();
+			final double[] residuals = data.targets;
+			double sum = 0D;
+			for (int i = 0; i < n; i++) {
+				sum += targets[i];
+			}
+
+			final double initialValue = sum / n;
+			for (int i = 0; i < n; i++) {
+				residuals[i] = targets[i] - initialValue;
+			}
+
+			final Validation validation = validationSet != null ? new Validation(validationSet, initialValue) : null;
+			final List<RegressionTree> trees = new ArrayList<RegressionTree>();
+			final double[] errors = new double[validation != null ? numRounds : 0];
+			double bestError = Double.POSITIVE_INFINITY;
+			int bestRounds = 0;
+			int rounds = 0;
+			while (rounds < numRounds && !isOverBudget()) {
+				final long roundSeed = childSeed(seed, rounds);
+				final RowView view = sampleRate < 1D ? data.view(sample(n, new Random(roundSeed))) : data.view();
+				final Node root = pool.invoke(newTreeBuildingTask(view, minError, minRowsInSplit, childSeed(
+						roundSeed, 0)));
+				final RegressionTree tree = new RegressionTree(root, data.numFeatures, data.targetLabel,
+						data.featureLabels);
+				trees.add(tree);
+				for (int i = 0; i < n; i++) {
+					residuals[i] -= learningRate * getValue(root, data, i);
+				}
+
+				rounds++;
+				if (validation != null) {
+					errors[rounds - 1] = validation.add(tree, learningRate);
+					if (errors[rounds - 1] < bestError) {
+						bestError = errors[rounds - 1];
+						bestRounds = rounds;
+					} else if (earlyStoppingRounds > 0 && rounds - bestRounds >= earlyStoppingRounds) {
+						break;
+					}
+				}
+			}
+
+			final int numTrees = earlyStoppingRounds > 0 ? bestRounds : rounds;
+			return new GradientBoostedTrees(initialValue, learningRate, trees.subList(0, numTrees).toArray(
+					new RegressionTree[numTrees]), Arrays.copyOf(errors, validation != null ? rounds : 0),
+					data.numFeatures, data.targetLabel, data.featureLabels);
+		}
+
+		private int[] sample(final int numRows, final Random random) {
+			final int[] counts = new int[numRows];
+			final int[] rows = new int[numRows];
+			for (int i = 0; i < numRows; i++) {
+				rows[i] = i;
+			}
+
+			final int n = Math.max(1, (int) Math.round(numRows * sampleRate));
+			for (int i = 0; i < n; i++) {
+				final int j = i + random.nextInt(numRows - i);
+				final int row = rows[j];
+				rows[j] = rows[i];
+				rows[i] = row;
+				counts[row] = 1;
+			}
+
+			return counts;
+		}
+
+	}
+
+	/**
+	 * The predictions of the model being trained on the validation set,
+	 * updated one tree at a time.
+	 */
+	private static final class Validation {
+
+		final double[][] featureVectors;
+		final double[] targets;
+		final double[] predictions;
+		final double[] values;
+
+		Validation(Instances<Double> set, double initialValue) {
+			final int n = set.getNumInstances();
+			featureVectors = new double[n][set.getNumFeatures()];
+			targets = new double[n];
+			predictions = new double[n];
+			values = new double[n];
+			for (int i = 0; i < n; i++) {
+				final Vector<Double> row = set.getFeatureVector(i);
+				for (int j = 0; j < featureVectors[i].length; j++) {
+					featureVectors[i][j] = row.getValue(j);
+				}
+
+				targets[i] = set.getTargets().getValue(i);
+				predictions[i] = initialValue;
+			}
+		}
+
+		/**
+		 * 
+		 * @param tree
+		 * @param learningRate
+		 * @return the mean squared error after adding the tree
+		 */
+		double add(final RegressionTree tree, final double learningRate) {
+			tree.predict(featureVectors, values);
+			double sum = 0D;
+			for (int i = 0; i < values.length; i++) {
+				predictions[i] += learningRate * values[i];
+				final double residual = targets[i] - predictions[i];
+				sum += residual * residual;
+			}
+
+			return sum / values.length;
+		}
+
+	}
+
+}
@@ -17,17 +17,14 @@
  */
 package se.ipx.ml.trees.regression;
 
-import static se.ipx.ml.util.Util.asMatrix;
-import static se.ipx.ml.util.Util.asScalar;
-import static se.ipx.ml.util.Util.multiply;
-import static se.ipx.ml.util.Util.transpose;
-
+import java.util.List;
 import java.util.concurrent.ForkJoinPool;
 
 import org.ojalgo.matrix.BasicMatrix;
 import org.ojalgo.matrix.PrimitiveMatrix;
 
 import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Vector;
 
 /**
  * 
@@ -36,25 +33,65 @@ import se.ipx.ml.data.Instances;
  */
 public class ModelTree extends AbstractRegressionTree {
 
-	private ModelTree(Node root, int numFeatures, String targetLabel, String[] featureLabels) {
+	ModelTree(Node root, int numFeatures, String targetLabel, String[] featureLabels) {
 		super(root, numFeatures, targetLabel, featureLabels);
 	}
 
+	@Override
+	ModelTree newInstance(Node root) {
+		return new ModelTree(root, getNumFeatures(), getTargetLabel(), getFeatureLabels());
+	}
+
 	public static Trainer newTrainer() {
 		return new Trainer();
 	}
 
 	static class ModelLeafNode extends Node {
 
-		final double[][] ws;
+		final double[] ws;
 
 		ModelLeafNode(double[] ws) {
-			this.ws = asMatrix(ws);
+			this.ws = ws;
 		}
 
 		@Override
-		double getValue(double[] features) {
-			return asScalar(multiply(ws, transpose(features)));
+		double getValue(final double[] features) {
+			double sum = 0D;
+			for (int i = 0; i < ws.length; i++) {
+				sum += ws[i] * features[i];
+			}
+
+			return sum;
+		}
+
+		@Override
+		double getValue(final Double[] features) {
+			double sum = 0D;
+			for (int i = 0; i < ws.length; i++) {
+				sum += ws[i] * features[i];
+			}
+
+			return sum;
+		}
+
+		@Override
+		double getValue(final List<Double> features) {
+			double sum = 0D;
+			for (int i = 0; i < ws.length; i++) {
+				sum += ws[i] * features.get(i);
+			}
+
+			return sum;
+		}
+
+		@Override
+		double getValue(final Vector<Double> features) {
+			double sum = 0D;
+			for (int i = 0; i < ws.length; i++) {
+				sum += ws[i] * features.getValue(i);
+			}
+
+			return sum;
 		}
 
 		@Override
@@ -69,7 +106,7 @@ public class ModelTree extends AbstractRegressionTree {
 
 			sb.append(" : ");
 			boolean first = true;
-			for (double d : ws[0]) {
+			for (double d : ws) {
 				if (first) {
 					sb.append("[");
 					first = false;
@@ -82,6 +119,11 @@ public class ModelTree extends AbstractRegressionTree {
 
 			sb.append("]\n");
 		}
+
+		@Override
+		int flatten(FlatTree.Builder builder) {
+			return builder.addLeaf(ws);
+		}
 		
 	}
 
@@ -94,10 +136,17 @@ public class ModelTree extends AbstractRegressionTree {
 		private double minError;
 		private int minRowsInSplit;
 		private int numThreads;
+		private int numRandomThresholds;
+		private int maxLeaves;
+		private TrainingBudget budget;
+		private TrainingMonitor monitor;
+		private int maxDepth;
+		private long seed;
 
 		public Trainer() {
 			minError = 0.001D;
 			minRowsInSplit = 3;
+			maxDepth = Integer.MAX_VALUE;
 		}
 
 		public Trainer setMinError(double minError) {
@@ -129,12 +178,104 @@ public class ModelTree extends AbstractRegressionTree {
 			return this;
 		}
 
+		public Trainer setMaxDepth(int maxDepth) {
+			if (maxDepth < 0) {
+				throw new IllegalStateException();
+			}
+
+			this.maxDepth = maxDepth;
+			return this;
+		}
+
+		/**
+		 * Limits the number of leaves of the tree, growing it best first: the
+		 * split reducing the error the most is always made next.
+		 * 
+		 * @param maxLeaves
+		 * @return
+		 */
+		public Trainer setMaxLeaves(int maxLeaves) {
+			if (maxLeaves < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.maxLeaves = maxLeaves;
+			return this;
+		}
+
+		/**
+		 * See {@link RegressionTree.Trainer#setNumRandomThresholds(int)}.
+		 * 
+		 * @param numRandomThresholds
+		 * @return
+		 */
+		public Trainer setNumRandomThresholds(int numRandomThresholds) {
+			if (numRandomThresholds < 0) {
+				throw new IllegalStateException();
+			}
+
+			this.numRandomThresholds = numRandomThresholds;
+			return this;
+		}
+
+		public Trainer setSeed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * See {@link RegressionTree.Trainer#setBudget(TrainingBudget)}.
+		 * 
+		 * @param budget
+		 * @return
+		 */
+		public Trainer setBudget(TrainingBudget budget) {
+			this.budget = budget;
+			return this;
+		}
+
+		/**
+		 * See {@link RegressionTree.Trainer#setMonitor(TrainingMonitor)}.
+		 * 
+		 * @param monitor
+		 * @return
+		 */
+		public Trainer setMonitor(TrainingMonitor monitor) {
+			this.monitor = monitor;
+			return this;
+		}
+
 		public void validate() {
 			if (set == null) {
 				throw new IllegalStateException("Missing training set");
 			}
 		}
 
+		@Override
+		protected TrainingMonitor getMonitor() {
+			return monitor;
+		}
+
+		@Override
+		protected TrainingBudget getBudget() {
+			return budget;
+		}
+
+		@Override
+		protected int getMaxLeaves() {
+			return maxLeaves > 0 ? maxLeaves : Integer.MAX_VALUE;
+		}
+
+		@Override
+		protected int getMaxDepth() {
+			return maxDepth;
+		}
+
+		@Override
+		protected int getNumRandomThresholds() {
+			return numRandomThresholds;
+		}
+
 		@Override
 		protected Node createLeafNode(final Instances<Double> set) {
 			BasicMatrix X = PrimitiveMatrix.FACTORY.copy(set.getFeatureMatrix());
@@ -174,7 +315,7 @@ public class ModelTree extends AbstractRegressionTree {
 				pool = new ForkJoinPool(numThreads);
 			}
 
-			Node root = pool.invoke(new TreeBuildingTask(set, minError, minRowsInSplit));
+			Node root = pool.invoke(newTreeBuildingTask(set, minError, minRowsInSplit, seed));
 			return new ModelTree(root, set.getNumFeatures(), set.getTargetLabel(), set.getFeatureLabels());
 		}
 
@@ -0,0 +1,624 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.DoubleDecisionTree;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.InternalNode;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+import se.ipx.ml.trees.regression.RegressionTree.RegressionLeafNode;
+
+/**
+ * A regression tree testing the same feature against the same threshold at
+ * every node of a level. A row's leaf is the number formed by the outcomes
+ * of the tests, one bit per level with the first level as the most
+ * significant, and a test that fails (going right) sets the bit. Prediction
+ * is a fixed number of comparisons followed by an array lookup, without
+ * data dependent branches.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public class ObliviousTree implements DoubleDecisionTree {
+
+	static final int BLOCK_SIZE = 64;
+
+	private final int[] features;
+	private final double[] thresholds;
+	private final double[] leaves;
+	private final int[] leafCounts;
+	private final int numFeatures;
+	private final String targetLabel;
+	private final String[] featureLabels;
+
+	ObliviousTree(int[] features, double[] thresholds, double[] leaves, int[] leafCounts, int numFeatures,
+			String targetLabel, String[] featureLabels) {
+		if (features.length != thresholds.length || leaves.length != 1 << features.length
+				|| leafCounts.length != leaves.length) {
+			throw new IllegalArgumentException();
+		}
+
+		this.features = features;
+		this.thresholds = thresholds;
+		this.leaves = leaves;
+		this.leafCounts = leafCounts;
+		this.numFeatures = numFeatures;
+		this.targetLabel = targetLabel;
+		this.featureLabels = featureLabels;
+	}
+
+	public static Trainer newTrainer() {
+		return new Trainer();
+	}
+
+	@Override
+	public double predict(final double[] featureVector) {
+		preCheck(featureVector);
+		int leaf = 0;
+		for (int level = 0; level < features.length; level++) {
+			leaf = leaf << 1 | (featureVector[features[level]] >= thresholds[level] ? 0 : 1);
+		}
+
+		return leaves[leaf];
+	}
+
+	/**
+	 * Computes the leaves of a block of rows one level at a time.
+	 */
+	@Override
+	public void predict(final double[][] featureVectors, final double[] predictions) {
+		if (featureVectors == null || predictions == null) {
+			throw new NullPointerException();
+		}
+
+		if (predictions.length != featureVectors.length) {
+			throw new IllegalArgumentException();
+		}
+
+		for (double[] featureVector : featureVectors) {
+			preCheck(featureVector);
+		}
+
+		final int[] leaf = new int[BLOCK_SIZE];
+		for (int from = 0; from < featureVectors.length; from += BLOCK_SIZE) {
+			final int n = Math.min(BLOCK_SIZE, featureVectors.length - from);
+			for (int i = 0; i < n; i++) {
+				leaf[i] = 0;
+			}
+
+			for (int level = 0; level < features.length; level++) {
+				final int feature = features[level];
+				final double threshold = thresholds[level];
+				for (int i = 0; i < n; i++) {
+					leaf[i] = leaf[i] << 1 | (featureVectors[from + i][feature] >= threshold ? 0 : 1);
+				}
+			}
+
+			for (int i = 0; i < n; i++) {
+				predictions[from + i] = leaves[leaf[i]];
+			}
+		}
+	}
+
+	@Override
+	public Double predict(Double... featureVector) {
+		if (featureVector == null) {
+			throw new NullPointerException();
+		}
+
+		final double[] x = new double[featureVector.length];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = featureVector[i];
+		}
+
+		return predict(x);
+	}
+
+	@Override
+	public Double predict(List<Double> featureVector) {
+		if (featureVector == null) {
+			throw new NullPointerException();
+		}
+
+		final double[] x = new double[featureVector.size()];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = featureVector.get(i);
+		}
+
+		return predict(x);
+	}
+
+	@Override
+	public Double predict(Vector<Double> featureVector) {
+		if (featureVector == null) {
+			throw new NullPointerException();
+		}
+
+		final double[] x = new double[featureVector.getLength()];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = featureVector.getValue(i);
+		}
+
+		return predict(x);
+	}
+
+	private void preCheck(final double[] vector) {
+		if (vector == null) {
+			throw new NullPointerException();
+		}
+
+		if (vector.length != numFeatures) {
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Expands the tree into a {@link RegressionTree} with up to 2^depth leaves,
+	 * to be used where one is expected, e.g. by {@link QuickScorer} or
+	 * {@link RegressionTree#explain(double[])}. A side of a node that no
+	 * training row reached becomes a single leaf, as all of its leaves predict
+	 * the same mean.
+	 * 
+	 * @return
+	 */
+	public RegressionTree toRegressionTree() {
+		return new RegressionTree(toNode(0, 0), numFeatures, targetLabel, featureLabels);
+	}
+
+	private Node toNode(final int level, final int leaf) {
+		if (level == features.length || level > 0 && getCount(level, leaf) == 0) {
+			return new RegressionLeafNode(leaves[leaf << (features.length - level)]);
+		}
+
+		final int left = leaf << 1;
+		final int right = left | 1;
+		return new InternalNode(toNode(level + 1, left), toNode(level + 1, right), features[level],
+				thresholds[level], getCount(level + 1, left), getCount(level + 1, right));
+	}
+
+	private int getCount(final int level, final int prefix) {
+		final int shift = features.length - level;
+		int count = 0;
+		for (int leaf = prefix << shift; leaf < (prefix + 1) << shift; leaf++) {
+			count += leafCounts[leaf];
+		}
+
+		return count;
+	}
+
+	public int getDepth() {
+		return features.length;
+	}
+
+	/**
+	 * 
+	 * @param level
+	 * @return the feature tested at the level
+	 */
+	public int getFeature(int level) {
+		return features[level];
+	}
+
+	/**
+	 * 
+	 * @param level
+	 * @return the threshold of the level
+	 */
+	public double getThreshold(int level) {
+		return thresholds[level];
+	}
+
+	@Override
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public String getTargetLabel() {
+		return targetLabel;
+	}
+
+	public String[] getFeatureLabels() {
+		return featureLabels;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		for (int level = 0; level < features.length; level++) {
+			builder.append(featureLabels != null ? featureLabels[features[level]] : "x" + features[level]);
+			builder.append(" >= ").append(thresholds[level]).append('\n');
+		}
+
+		for (int leaf = 0; leaf < leaves.length; leaf++) {
+			builder.append(leaf).append(": ").append(leaves[leaf]).append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Grows the tree one level at a time on presorted {@link TrainingData}.
+	 * Every level takes the feature and threshold minimizing the squared
+	 * error summed over all nodes of the level, found in one pass per feature
+	 * over the rows in order of that feature. A node left without rows on one
+	 * side predicts its parent's mean there.
+	 * 
+	 * Unlike the trainers of {@link AbstractRegressionTree}, which split one
+	 * node at a time on its own rows, a level is scored over the rows of all
+	 * of its nodes, so this trainer does its own split search. It shares the
+	 * presorted {@link TrainingData}, {@link TrainingBudget} and
+	 * {@link TrainingMonitor} with them.
+	 */
+	public static class Trainer implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private transient ForkJoinPool pool;
+		private Instances<Double> set;
+		private double minError;
+		private int maxDepth;
+		private int numThreads;
+		private TrainingBudget budget;
+		private TrainingMonitor monitor;
+
+		public Trainer() {
+			minError = 0.001D;
+			maxDepth = 6;
+		}
+
+		public Trainer setMinError(double minError) {
+			this.minError = minError;
+			return this;
+		}
+
+		public Trainer setMaxDepth(int maxDepth) {
+			if (maxDepth < 0 || maxDepth > 30) {
+				throw new IllegalStateException();
+			}
+
+			this.maxDepth = maxDepth;
+			return this;
+		}
+
+		public Trainer setTrainingSet(Instances<Double> trainingSet) {
+			this.set = trainingSet;
+			return this;
+		}
+
+		public Trainer setForkJoinPool(ForkJoinPool pool) {
+			this.pool = pool;
+			return this;
+		}
+
+		public Trainer setNumThreads(int numThreads) {
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		/**
+		 * Bounds the time and heap used by training, checked before every
+		 * level. The tree keeps the levels grown when the budget runs out,
+		 * unless the budget fails fast.
+		 * 
+		 * @param budget
+		 * @return
+		 */
+		public Trainer setBudget(TrainingBudget budget) {
+			this.budget = budget;
+			return this;
+		}
+
+		/**
+		 * Reports the progress of training to the monitor. Every level is
+		 * reported as one split search over all features, and its nodes as
+		 * built once the level has been accepted.
+		 * 
+		 * @param monitor
+		 * @return
+		 */
+		public Trainer setMonitor(TrainingMonitor monitor) {
+			this.monitor = monitor;
+			return this;
+		}
+
+		public void validate() {
+			if (set == null) {
+				throw new IllegalStateException("Missing training set");
+			}
+		}
+
+		public ObliviousTree train() {
+			validate();
+			if (pool == null) {
+				pool = new ForkJoinPool(numThreads);
+			}
+
+			final TrainingData data = TrainingData.of(set);
+			final int n = data.numRows;
+			int[] nodes = new int[n];
+			int[] next = new int[n];
+			double[] means = new double[] { mean(data.targets) };
+			double error = sumOfSquares(data.targets, nodes, 1);
+			final int[] features = new int[maxDepth];
+			final double[] thresholds = new double[maxDepth];
+			int depth = 0;
+			if (monitor != null) {
+				monitor.treeStarted(n);
+			}
+
+			while (depth < maxDepth && (budget == null || !budget.check())) {
+				long start = System.nanoTime();
+				final Split best = pool.invoke(new LevelSplitTask(data, nodes, 1 << depth));
+				if (monitor != null) {
+					monitor.splitSearched(System.nanoTime() - start);
+					monitor.candidatesEvaluated((long) data.numFeatures * Math.max(n - 1, 0));
+				}
+
+				if (best == null) {
+					break;
+				}
+
+				start = System.nanoTime();
+				final double[] column = data.columns[best.feature];
+				for (int i = 0; i < n; i++) {
+					next[i] = nodes[i] << 1 | (column[i] >= best.threshold ? 0 : 1);
+				}
+
+				// judge the level on its error computed afresh rather than the
+				// running error of the sweep
+				final double levelError = sumOfSquares(data.targets, next, 2 << depth);
+				if (error - levelError < minError) {
+					break;
+				}
+
+				if (monitor != null) {
+					monitor.partitioned(System.nanoTime() - start);
+					report(nodes, 1 << depth, depth, false);
+				}
+
+				final int[] tmp = nodes;
+				nodes = next;
+				next = tmp;
+				features[depth] = best.feature;
+				thresholds[depth] = best.threshold;
+				error = levelError;
+				depth++;
+				means = getMeans(data.targets, nodes, means);
+			}
+
+			final int[] counts = new int[1 << depth];
+			for (int i = 0; i < n; i++) {
+				counts[nodes[i]]++;
+			}
+
+			if (monitor != null) {
+				report(nodes, 1 << depth, depth, true);
+				monitor.treeBuilt();
+			}
+
+			final int[] usedFeatures = new int[depth];
+			final double[] usedThresholds = new double[depth];
+			System.arraycopy(features, 0, usedFeatures, 0, depth);
+			System.arraycopy(thresholds, 0, usedThresholds, 0, depth);
+			return new ObliviousTree(usedFeatures, usedThresholds, means, counts, data.numFeatures, data.targetLabel,
+					data.featureLabels);
+		}
+
+		private void report(final int[] nodes, final int numNodes, final int depth, final boolean leaf) {
+			final int[] counts = new int[numNodes];
+			for (int node : nodes) {
+				counts[node]++;
+			}
+
+			for (int count : counts) {
+				if (count > 0) {
+					monitor.nodeBuilt(depth, count, leaf);
+				}
+			}
+		}
+
+		private static double mean(final double[] targets) {
+			double sum = 0D;
+			for (double y : targets) {
+				sum += y;
+			}
+
+			return sum / targets.length;
+		}
+
+		private static double sumOfSquares(final double[] targets, final int[] nodes, final int numNodes) {
+			final double[] sums = new double[numNodes];
+			final double[] squares = new double[numNodes];
+			final int[] counts = new int[numNodes];
+			for (int i = 0; i < targets.length; i++) {
+				sums[nodes[i]] += targets[i];
+				squares[nodes[i]] += targets[i] * targets[i];
+				counts[nodes[i]]++;
+			}
+
+			double error = 0D;
+			for (int j = 0; j < numNodes; j++) {
+				error += getError(sums[j], squares[j], counts[j]);
+			}
+
+			return error;
+		}
+
+		/**
+		 * 
+		 * @return the means of the nodes of the new level, falling back to
+		 *         the parent's for empty nodes
+		 */
+		private static double[] getMeans(final double[] targets, final int[] nodes, final double[] parents) {
+			final double[] sums = new double[parents.length << 1];
+			final int[] counts = new int[sums.length];
+			for (int i = 0; i < targets.length; i++) {
+				sums[nodes[i]] += targets[i];
+				counts[nodes[i]]++;
+			}
+
+			final double[] means = new double[sums.length];
+			for (int j = 0; j < means.length; j++) {
+				means[j] = counts[j] > 0 ? sums[j] / counts[j] : parents[j >>> 1];
+			}
+
+			return means;
+		}
+
+		static double getError(final double sum, final double sumOfSquares, final int count) {
+			return count > 0 ? sumOfSquares - sum * sum / count : 0D;
+		}
+
+	}
+
+	private static final class Split {
+
+		final int feature;
+		final double threshold;
+		final double error;
+
+		Split(int feature, double threshold, double error) {
+			this.feature = feature;
+			this.threshold = threshold;
+			this.error = error;
+		}
+
+	}
+
+	/**
+	 * Searches all features in parallel for the best split of a level.
+	 */
+	private static final class LevelSplitTask extends RecursiveTask<Split> {
+
+		private static final long serialVersionUID = 1L;
+
+		final TrainingData data;
+		final int[] nodes;
+		final int numNodes;
+
+		LevelSplitTask(TrainingData data, int[] nodes, int numNodes) {
+			this.data = data;
+			this.nodes = nodes;
+			this.numNodes = numNodes;
+		}
+
+		@Override
+		protected Split compute() {
+			final Split[] splits = new Split[data.numFeatures];
+			final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			for (int feature = 0; feature < data.numFeatures; feature++) {
+				final int f = feature;
+				tasks.add(new RecursiveAction() {
+
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						splits[f] = findBestSplit(f);
+					}
+
+				});
+			}
+
+			invokeAll(tasks);
+			Split best = null;
+			for (Split split : splits) {
+				if (split != null && (best == null || split.error < best.error)) {
+					best = split;
+				}
+			}
+
+			return best;
+		}
+
+		/**
+		 * Sweeps the rows in ascending order of the feature, moving one row at
+		 * a time from the upper to the lower side of its node and updating the
+		 * total error by the change in that node's error. The changes are
+		 * summed with compensation, so that rounding does not build up over
+		 * the rows.
+		 */
+		private Split findBestSplit(final int feature) {
+			final int[] rows = data.sorted[feature];
+			final double[] column = data.columns[feature];
+			final double[] targets = data.targets;
+			final double[] sums = new double[numNodes];
+			final double[] squares = new double[numNodes];
+			final int[] counts = new int[numNodes];
+			for (int i = 0; i < targets.length; i++) {
+				final double y = targets[i];
+				sums[nodes[i]] += y;
+				squares[nodes[i]] += y * y;
+				counts[nodes[i]]++;
+			}
+
+			final double[] lowerSums = new double[numNodes];
+			final double[] lowerSquares = new double[numNodes];
+			final int[] lowerCounts = new int[numNodes];
+			double error = 0D;
+			for (int j = 0; j < numNodes; j++) {
+				error += Trainer.getError(sums[j], squares[j], counts[j]);
+			}
+
+			double compensation = 0D;
+			double bestError = Double.POSITIVE_INFINITY;
+			int best = -1;
+			for (int i = 1; i < rows.length; i++) {
+				final int row = rows[i - 1];
+				final int j = nodes[row];
+				final double y = targets[row];
+				final double before = getError(j, sums, squares, counts, lowerSums, lowerSquares, lowerCounts);
+				lowerSums[j] += y;
+				lowerSquares[j] += y * y;
+				lowerCounts[j]++;
+				final double change = getError(j, sums, squares, counts, lowerSums, lowerSquares, lowerCounts)
+						- before - compensation;
+				final double sum = error + change;
+				compensation = (sum - error) - change;
+				error = sum;
+				if (column[rows[i]] != column[row] && error < bestError) {
+					bestError = error;
+					best = i;
+				}
+			}
+
+			if (best < 0) {
+				return null;
+			}
+
+			return new Split(feature, column[rows[best]], bestError);
+		}
+
+		private static double getError(final int j, final double[] sums, final double[] squares, final int[] counts,
+				final double[] lowerSums, final double[] lowerSquares, final int[] lowerCounts) {
+			return Trainer.getError(lowerSums[j], lowerSquares[j], lowerCounts[j])
+					+ Trainer.getError(sums[j] - lowerSums[j], squares[j] - lowerSquares[j], counts[j]
+							- lowerCounts[j]);
+		}
+
+	}
+
+}
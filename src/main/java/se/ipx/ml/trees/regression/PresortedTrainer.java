@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import static se.ipx.ml.util.Util.mean;
+import static se.ipx.ml.util.Util.variance;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.AbstractTrainer;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.ErrorCalculationResult;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.InternalNode;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+import se.ipx.ml.trees.regression.RegressionTree.RegressionLeafNode;
+
+/**
+ * Grows trees with constant leaves, like {@link RegressionTree.Trainer}, on
+ * {@link RowView}s of presorted training data. Splits are found in a single
+ * pass over the rows of a node per feature instead of one pass per candidate
+ * value.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+abstract class PresortedTrainer extends AbstractTrainer {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Evaluates a trained tree on a row of the training data in place.
+	 * 
+	 * @param root
+	 *            of {@link InternalNode}s and {@link RegressionLeafNode}s
+	 * @param data
+	 * @param row
+	 * @return
+	 */
+	static double getValue(Node root, final TrainingData data, final int row) {
+		while (root instanceof InternalNode) {
+			final InternalNode node = (InternalNode) root;
+			root = data.columns[node.feature][row] >= node.value ? node.left : node.right;
+		}
+
+		return ((RegressionLeafNode) root).value;
+	}
+
+	@Override
+	protected Node createLeafNode(final Instances<Double> set) {
+		if (set instanceof RowView) {
+			final RowView view = (RowView) set;
+			double sum = 0D;
+			for (int i = 0; i < view.numRows; i++) {
+				sum += view.getTarget(i);
+			}
+
+			return new RegressionLeafNode(sum / view.numRows);
+		}
+
+		return new RegressionLeafNode(mean(set.getTargets()));
+	}
+
+	@Override
+	protected double getError(final Instances<Double> set) {
+		if (set instanceof RowView) {
+			final RowView view = (RowView) set;
+			double sum = 0D;
+			double sumOfSquares = 0D;
+			for (int i = 0; i < view.numRows; i++) {
+				final double y = view.getTarget(i);
+				sum += y;
+				sumOfSquares += y * y;
+			}
+
+			return sumOfSquares - sum * sum / view.numRows;
+		}
+
+		return variance(set.getTargets()) * set.getNumInstances();
+	}
+
+	/**
+	 * Sweeps the rows of the view in order of the feature, moving one row at a
+	 * time from the upper to the lower side of the split and keeping running
+	 * sums of the targets on either side.
+	 */
+	@Override
+	protected ErrorCalculationResult findBestSplit(final Instances<Double> set, final int feature, final int minRows) {
+		if (!(set instanceof RowView)) {
+			return super.findBestSplit(set, feature, minRows);
+		}
+
+		final RowView view = (RowView) set;
+		final int[] rows = view.rows[feature];
+		final double[] column = view.data.columns[feature];
+		final double[] targets = view.data.targets;
+		final int n = view.numRows;
+		double sum = 0D;
+		double sumOfSquares = 0D;
+		for (int i = 0; i < n; i++) {
+			final double y = targets[rows[i]];
+			sum += y;
+			sumOfSquares += y * y;
+		}
+
+		double lowerSum = 0D;
+		double lowerSumOfSquares = 0D;
+		double bestError = Double.POSITIVE_INFINITY;
+		int best = -1;
+		for (int i = 1; i < n; i++) {
+			final double y = targets[rows[i - 1]];
+			lowerSum += y;
+			lowerSumOfSquares += y * y;
+			if (i < minRows || n - i < minRows || column[rows[i]] == column[rows[i - 1]]) {
+				continue;
+			}
+
+			final double upperSum = sum - lowerSum;
+			final double error = lowerSumOfSquares - lowerSum * lowerSum / i + (sumOfSquares - lowerSumOfSquares)
+					- upperSum * upperSum / (n - i);
+			if (error < bestError) {
+				bestError = error;
+				best = i;
+			}
+		}
+
+		final TrainingMonitor monitor = getMonitor();
+		if (monitor != null) {
+			monitor.candidatesEvaluated(n - 1);
+		}
+
+		if (best < 0) {
+			return null;
+		}
+
+		return new ErrorCalculationResult(bestError, feature, column[rows[best]]);
+	}
+
+	/**
+	 * Sorts the drawn thresholds and sweeps the rows of the view once,
+	 * evaluating every threshold as the sweep passes it.
+	 */
+	@Override
+	protected ErrorCalculationResult findRandomSplit(final Instances<Double> set, final int feature,
+			final int minRows, final Random random) {
+		if (!(set instanceof RowView)) {
+			return super.findRandomSplit(set, feature, minRows, random);
+		}
+
+		final RowView view = (RowView) set;
+		final int[] rows = view.rows[feature];
+		final double[] column = view.data.columns[feature];
+		final double[] targets = view.data.targets;
+		final int n = view.numRows;
+		final double min = column[rows[0]];
+		final double max = column[rows[n - 1]];
+		if (Double.isNaN(max)) {
+			return super.findRandomSplit(set, feature, minRows, random);
+		}
+
+		if (!(min < max)) {
+			return null;
+		}
+
+		final double[] thresholds = new double[getNumRandomThresholds()];
+		for (int i = 0; i < thresholds.length; i++) {
+			thresholds[i] = max - random.nextDouble() * (max - min);
+		}
+
+		Arrays.sort(thresholds);
+		double sum = 0D;
+		double sumOfSquares = 0D;
+		for (int i = 0; i < n; i++) {
+			final double y = targets[rows[i]];
+			sum += y;
+			sumOfSquares += y * y;
+		}
+
+		double lowerSum = 0D;
+		double lowerSumOfSquares = 0D;
+		double bestError = Double.POSITIVE_INFINITY;
+		double bestThreshold = Double.NaN;
+		int i = 0;
+		for (double threshold : thresholds) {
+			while (column[rows[i]] < threshold) {
+				final double y = targets[rows[i++]];
+				lowerSum += y;
+				lowerSumOfSquares += y * y;
+			}
+
+			if (i < minRows || n - i < minRows) {
+				continue;
+			}
+
+			final double upperSum = sum - lowerSum;
+			final double error = lowerSumOfSquares - lowerSum * lowerSum / i + (sumOfSquares - lowerSumOfSquares)
+					- upperSum * upperSum / (n - i);
+			if (error < bestError) {
+				bestError = error;
+				bestThreshold = threshold;
+			}
+		}
+
+		final TrainingMonitor monitor = getMonitor();
+		if (monitor != null) {
+			monitor.candidatesEvaluated(thresholds.length);
+		}
+
+		if (Double.isNaN(bestThreshold)) {
+			return null;
+		}
+
+		return new ErrorCalculationResult(bestError, feature, bestThreshold);
+	}
+
+}
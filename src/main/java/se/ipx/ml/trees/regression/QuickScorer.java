@@ -0,0 +1,442 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.DoubleDecisionTree;
+
+/**
+ * Scores a weighted sum of trees feature by feature instead of tree by tree,
+ * as described for QuickScorer by Lucchese et al.
+ * <p>
+ * The leaves of every tree are numbered from left to right and a row starts
+ * out with one bit set per leaf. The internal nodes of all trees are grouped
+ * by feature and sorted by descending threshold, so the nodes a row goes
+ * right at are a prefix of each group. Going right rules out the leaves of
+ * the left subtree, a contiguous range of bits which is cleared, and the
+ * lowest bit left set for a tree is its exit leaf. No pointers are followed;
+ * all work is done in loops over primitive arrays.
+ * <p>
+ * Trees of any size are supported, with one 64 bit word per 64 leaves.
+ * Instances are immutable and thread safe.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class QuickScorer implements DoubleDecisionTree {
+
+	/**
+	 * Upper bound on the number of words of bit vectors allocated for a block
+	 * of rows by {@link #predict(double[][], double[])}.
+	 */
+	static final int BLOCK_WORDS = 1 << 14;
+
+	static final int MAX_BLOCK_SIZE = 64;
+
+	private final int numFeatures;
+	private final double bias;
+
+	/** Nodes of feature f are at [featureOffsets[f], featureOffsets[f + 1]). */
+	private final int[] featureOffsets;
+	private final double[] thresholds;
+	private final int[] firstWords;
+	private final int[] lastWords;
+	private final long[] firstMasks;
+	private final long[] lastMasks;
+
+	/** Bit vectors of all trees with every leaf set. */
+	private final long[] initial;
+	private final int[] wordOffsets;
+	private final int[] leafOffsets;
+
+	/** Weighted leaf values, in leaf order. */
+	private final double[] values;
+
+	/** Leaf indices of linear trees, in leaf order. */
+	private final int[] leafIndices;
+	private final FlatTree[] linearTrees;
+	private final double[] weights;
+	private final int blockSize;
+
+	private QuickScorer(Builder builder, int numFeatures, double bias) {
+		this.numFeatures = numFeatures;
+		this.bias = bias;
+
+		final int numNodes = builder.nodeFeatures.size();
+		featureOffsets = new int[numFeatures + 1];
+		for (int i = 0; i < numNodes; i++) {
+			featureOffsets[builder.nodeFeatures.get(i) + 1]++;
+		}
+
+		for (int f = 0; f < numFeatures; f++) {
+			featureOffsets[f + 1] += featureOffsets[f];
+		}
+
+		final Integer[] order = new Integer[numNodes];
+		for (int i = 0; i < numNodes; i++) {
+			order[i] = i;
+		}
+
+		final List<Integer> nodeFeatures = builder.nodeFeatures;
+		final List<Double> nodeThresholds = builder.nodeThresholds;
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				final int fa = nodeFeatures.get(a);
+				final int fb = nodeFeatures.get(b);
+				if (fa != fb) {
+					return fa < fb ? -1 : 1;
+				}
+
+				return Double.compare(nodeThresholds.get(b), nodeThresholds.get(a));
+			}
+
+		});
+
+		thresholds = new double[numNodes];
+		firstWords = new int[numNodes];
+		lastWords = new int[numNodes];
+		firstMasks = new long[numNodes];
+		lastMasks = new long[numNodes];
+		for (int k = 0; k < numNodes; k++) {
+			final int i = order[k];
+			final int offset = builder.wordOffsets.get(builder.nodeTrees.get(i));
+			final int from = builder.nodeFroms.get(i);
+			final int to = builder.nodeTos.get(i);
+			final int first = from >>> 6;
+			final int last = (to - 1) >>> 6;
+			thresholds[k] = nodeThresholds.get(i);
+			firstWords[k] = offset + first;
+			lastWords[k] = offset + last;
+			final long high = to - (first << 6) >= 64 ? 0L : -1L << (to - (first << 6));
+			firstMasks[k] = ~(-1L << (from & 63)) | (first == last ? high : 0L);
+			lastMasks[k] = (to & 63) == 0 ? 0L : -1L << (to & 63);
+		}
+
+		final int numTrees = builder.leafCounts.size();
+		wordOffsets = toArray(builder.wordOffsets);
+		leafOffsets = new int[numTrees + 1];
+		initial = new long[wordOffsets[numTrees]];
+		for (int t = 0; t < numTrees; t++) {
+			final int numLeaves = builder.leafCounts.get(t);
+			leafOffsets[t + 1] = leafOffsets[t] + numLeaves;
+			for (int w = wordOffsets[t]; w < wordOffsets[t + 1]; w++) {
+				final int remaining = numLeaves - ((w - wordOffsets[t]) << 6);
+				initial[w] = remaining >= 64 ? -1L : ~(-1L << remaining);
+			}
+		}
+
+		values = toDoubleArray(builder.values);
+		leafIndices = toArray(builder.leafIndices);
+		linearTrees = builder.linearTrees.toArray(new FlatTree[numTrees]);
+		weights = toDoubleArray(builder.weights);
+		blockSize = Math.max(1, Math.min(MAX_BLOCK_SIZE, BLOCK_WORDS / Math.max(1, initial.length)));
+	}
+
+	/**
+	 * 
+	 * @param trees
+	 * @param weights
+	 *            one per tree
+	 * @return a scorer of the weighted sum of the trees
+	 */
+	public static QuickScorer of(Collection<? extends AbstractRegressionTree> trees, double[] weights) {
+		return of(trees, weights, 0D);
+	}
+
+	/**
+	 * 
+	 * @param trees
+	 * @param weights
+	 *            one per tree
+	 * @param bias
+	 *            added to every prediction
+	 * @return a scorer of the weighted sum of the trees plus the bias
+	 */
+	public static QuickScorer of(Collection<? extends AbstractRegressionTree> trees, double[] weights, double bias) {
+		if (trees == null || weights == null) {
+			throw new NullPointerException();
+		}
+
+		if (trees.isEmpty() || trees.size() != weights.length) {
+			throw new IllegalArgumentException();
+		}
+
+		final Builder builder = new Builder();
+		int numFeatures = -1;
+		int t = 0;
+		for (AbstractRegressionTree tree : trees) {
+			if (numFeatures < 0) {
+				numFeatures = tree.getNumFeatures();
+			} else if (tree.getNumFeatures() != numFeatures) {
+				throw new IllegalArgumentException("Trees differ in number of features");
+			}
+
+			builder.add(tree.getFlatTree(), weights[t++]);
+		}
+
+		return new QuickScorer(builder, numFeatures, bias);
+	}
+
+	public static QuickScorer of(GradientBoostedTrees model) {
+		final List<RegressionTree> trees = model.getTrees();
+		final double[] weights = new double[trees.size()];
+		Arrays.fill(weights, model.getLearningRate());
+		return of(trees, weights, model.getInitialValue());
+	}
+
+	public static QuickScorer of(RandomForest forest) {
+		final List<RegressionTree> trees = forest.getTrees();
+		final double[] weights = new double[trees.size()];
+		Arrays.fill(weights, 1D / trees.size());
+		return of(trees, weights);
+	}
+
+	@Override
+	public double predict(final double[] featureVector) {
+		if (featureVector == null) {
+			throw new NullPointerException();
+		}
+
+		if (featureVector.length != numFeatures) {
+			throw new IllegalArgumentException();
+		}
+
+		final long[] v = initial.clone();
+		for (int f = 0; f < numFeatures; f++) {
+			clear(v, 0, featureVector[f], featureOffsets[f], featureOffsets[f + 1]);
+		}
+
+		return score(v, 0, featureVector);
+	}
+
+	/**
+	 * Scores the rows in blocks, sized for the bit vectors of a block to stay
+	 * in cache, running through the nodes of one feature for all rows of a
+	 * block before moving on to the next.
+	 */
+	@Override
+	public void predict(final double[][] featureVectors, final double[] predictions) {
+		if (featureVectors == null || predictions == null) {
+			throw new NullPointerException();
+		}
+
+		if (predictions.length != featureVectors.length) {
+			throw new IllegalArgumentException();
+		}
+
+		for (double[] featureVector : featureVectors) {
+			if (featureVector.length != numFeatures) {
+				throw new IllegalArgumentException();
+			}
+		}
+
+		final int words = initial.length;
+		final long[] v = new long[blockSize * words];
+		for (int from = 0; from < featureVectors.length; from += blockSize) {
+			final int n = Math.min(blockSize, featureVectors.length - from);
+			for (int i = 0; i < n; i++) {
+				System.arraycopy(initial, 0, v, i * words, words);
+			}
+
+			for (int f = 0; f < numFeatures; f++) {
+				final int start = featureOffsets[f];
+				final int end = featureOffsets[f + 1];
+				if (start == end) {
+					continue;
+				}
+
+				for (int i = 0; i < n; i++) {
+					clear(v, i * words, featureVectors[from + i][f], start, end);
+				}
+			}
+
+			for (int i = 0; i < n; i++) {
+				predictions[from + i] = score(v, i * words, featureVectors[from + i]);
+			}
+		}
+	}
+
+	private void clear(final long[] v, final int base, final double x, final int start, final int end) {
+		for (int k = start; k < end && !(x >= thresholds[k]); k++) {
+			int w = base + firstWords[k];
+			final int last = base + lastWords[k];
+			v[w] &= firstMasks[k];
+			if (w != last) {
+				while (++w < last) {
+					v[w] = 0L;
+				}
+
+				v[last] &= lastMasks[k];
+			}
+		}
+	}
+
+	private double score(final long[] v, final int base, final double[] x) {
+		double sum = bias;
+		for (int t = 0; t < linearTrees.length; t++) {
+			int w = base + wordOffsets[t];
+			while (v[w] == 0L) {
+				w++;
+			}
+
+			final int leaf = leafOffsets[t] + ((w - base - wordOffsets[t]) << 6) + Long.numberOfTrailingZeros(v[w]);
+			final FlatTree linear = linearTrees[t];
+			sum += linear == null ? values[leaf] : weights[t] * linear.getLeafValue(leafIndices[leaf], x);
+		}
+
+		return sum;
+	}
+
+	@Override
+	public Double predict(Double... featureVector) {
+		if (featureVector == null) {
+			throw new NullPointerException();
+		}
+
+		final double[] x = new double[featureVector.length];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = featureVector[i];
+		}
+
+		return predict(x);
+	}
+
+	@Override
+	public Double predict(List<Double> featureVector) {
+		if (featureVector == null) {
+			throw new NullPointerException();
+		}
+
+		final double[] x = new double[featureVector.size()];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = featureVector.get(i);
+		}
+
+		return predict(x);
+	}
+
+	@Override
+	public Double predict(Vector<Double> featureVector) {
+		if (featureVector == null) {
+			throw new NullPointerException();
+		}
+
+		final double[] x = new double[featureVector.getLength()];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = featureVector.getValue(i);
+		}
+
+		return predict(x);
+	}
+
+	@Override
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public int getNumTrees() {
+		return linearTrees.length;
+	}
+
+	public int getNumNodes() {
+		return thresholds.length;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		final int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+
+		return array;
+	}
+
+	private static double[] toDoubleArray(List<Double> list) {
+		final double[] array = new double[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+
+		return array;
+	}
+
+	/**
+	 * Numbers the leaves of every tree from left to right, expanding shared
+	 * subtrees of deduplicated trees, and records the leaf range of the left
+	 * subtree of every internal node.
+	 */
+	private static final class Builder {
+
+		final List<Integer> nodeFeatures = new ArrayList<Integer>();
+		final List<Double> nodeThresholds = new ArrayList<Double>();
+		final List<Integer> nodeTrees = new ArrayList<Integer>();
+		final List<Integer> nodeFroms = new ArrayList<Integer>();
+		final List<Integer> nodeTos = new ArrayList<Integer>();
+		final List<Integer> leafCounts = new ArrayList<Integer>();
+		final List<Integer> wordOffsets = new ArrayList<Integer>();
+		final List<Double> values = new ArrayList<Double>();
+		final List<Integer> leafIndices = new ArrayList<Integer>();
+		final List<FlatTree> linearTrees = new ArrayList<FlatTree>();
+		final List<Double> weights = new ArrayList<Double>();
+
+		Builder() {
+			wordOffsets.add(0);
+		}
+
+		void add(final FlatTree tree, final double weight) {
+			final int t = leafCounts.size();
+			final int numLeaves = addLeaves(tree, tree.getRoot(), t, weight, 0);
+			leafCounts.add(numLeaves);
+			wordOffsets.add(wordOffsets.get(t) + ((numLeaves + 63) >>> 6));
+			linearTrees.add(tree.linear ? tree : null);
+			weights.add(weight);
+		}
+
+		/**
+		 * 
+		 * @return the number of leaves below ref
+		 */
+		private int addLeaves(final FlatTree tree, final int ref, final int t, final double weight, final int from) {
+			if (ref < 0) {
+				values.add(tree.linear ? 0D : weight * tree.leaves[~ref]);
+				leafIndices.add(~ref);
+				return 1;
+			}
+
+			final int node = nodeFeatures.size();
+			nodeFeatures.add(tree.features[ref]);
+			nodeThresholds.add(tree.thresholds[ref]);
+			nodeTrees.add(t);
+			nodeFroms.add(from);
+			nodeTos.add(from);
+			final int left = addLeaves(tree, tree.lefts[ref], t, weight, from);
+			nodeTos.set(node, from + left);
+			return left + addLeaves(tree, tree.rights[ref], t, weight, from + left);
+		}
+
+	}
+
+}
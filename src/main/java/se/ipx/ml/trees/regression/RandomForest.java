@@ -0,0 +1,545 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.DoubleDecisionTree;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+
+/**
+ * An ensemble of {@link RegressionTree}s, each trained on a random sample of
+ * the training set and searching a random subset of the features at every
+ * split. Predicts the mean of its trees.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public class RandomForest implements DoubleDecisionTree {
+
+	private final RegressionTree[] trees;
+	private final double[] outOfBagErrors;
+	private final int numFeatures;
+	private final String targetLabel;
+	private final String[] featureLabels;
+
+	RandomForest(RegressionTree[] trees, double[] outOfBagErrors, int numFeatures, String targetLabel,
+			String[] featureLabels) {
+		this.trees = trees;
+		this.outOfBagErrors = outOfBagErrors;
+		this.numFeatures = numFeatures;
+		this.targetLabel = targetLabel;
+		this.featureLabels = featureLabels;
+	}
+
+	public static Trainer newTrainer() {
+		return new Trainer();
+	}
+
+	@Override
+	public double predict(double[] featureVector) {
+		double sum = 0D;
+		for (RegressionTree tree : trees) {
+			sum += tree.predict(featureVector);
+		}
+
+		return sum / trees.length;
+	}
+
+	@Override
+	public void predict(double[][] featureVectors, double[] predictions) {
+		if (featureVectors == null || predictions == null) {
+			throw new NullPointerException();
+		}
+
+		if (predictions.length != featureVectors.length) {
+			throw new IllegalArgumentException();
+		}
+
+		final double[] values = new double[featureVectors.length];
+		Arrays.fill(predictions, 0D);
+		for (RegressionTree tree : trees) {
+			tree.predict(featureVectors, values);
+			for (int i = 0; i < values.length; i++) {
+				predictions[i] += values[i];
+			}
+		}
+
+		for (int i = 0; i < predictions.length; i++) {
+			predictions[i] /= trees.length;
+		}
+	}
+
+	@Override
+	public Double predict(Double... featureVector) {
+		double sum = 0D;
+		for (RegressionTree tree : trees) {
+			sum += tree.predictDouble(featureVector);
+		}
+
+		return sum / trees.length;
+	}
+
+	@Override
+	public Double predict(List<Double> featureVector) {
+		double sum = 0D;
+		for (RegressionTree tree : trees) {
+			sum += tree.predictDouble(featureVector);
+		}
+
+		return sum / trees.length;
+	}
+
+	@Override
+	public Double predict(Vector<Double> featureVector) {
+		double sum = 0D;
+		for (RegressionTree tree : trees) {
+			sum += tree.predictDouble(featureVector);
+		}
+
+		return sum / trees.length;
+	}
+
+	public List<RegressionTree> getTrees() {
+		return Collections.unmodifiableList(Arrays.asList(trees));
+	}
+
+	/**
+	 * The mean squared error of the training rows, each predicted by the
+	 * trees that were not trained on it.
+	 * 
+	 * @return
+	 */
+	public double getOutOfBagError() {
+		return outOfBagErrors[outOfBagErrors.length - 1];
+	}
+
+	/**
+	 * The out-of-bag error after every tree, in the order the trees finished
+	 * training.
+	 * 
+	 * @return
+	 */
+	public double[] getOutOfBagErrors() {
+		return outOfBagErrors.clone();
+	}
+
+	@Override
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public String getTargetLabel() {
+		return targetLabel;
+	}
+
+	public String[] getFeatureLabels() {
+		return featureLabels;
+	}
+
+	/**
+	 * Trains the trees of a forest concurrently on one fork-join pool. The
+	 * training set is copied once into primitive columns presorted by every
+	 * feature, and each tree is trained on a {@link RowView} of it.
+	 */
+	public static class Trainer extends PresortedTrainer {
+
+		private static final long serialVersionUID = 1L;
+
+		private transient ForkJoinPool pool;
+		private Instances<Double> set;
+		private double minError;
+		private int minRowsInSplit;
+		private int numThreads;
+		private int numTrees;
+		private boolean bootstrap;
+		private double sampleRate;
+		private int maxFeatures;
+		private int numRandomThresholds;
+		private int maxLeaves;
+		private TrainingBudget budget;
+		private TrainingMonitor monitor;
+		private int maxDepth;
+		private long seed;
+
+		public Trainer() {
+			minError = 0.001D;
+			minRowsInSplit = 3;
+			maxDepth = Integer.MAX_VALUE;
+			numTrees = 100;
+			bootstrap = true;
+			sampleRate = 1D;
+		}
+
+		public Trainer setMinError(double minError) {
+			this.minError = minError;
+			return this;
+		}
+
+		public Trainer setMinRowsInSplit(int minRowsInSplit) {
+			if (minRowsInSplit < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.minRowsInSplit = minRowsInSplit;
+			return this;
+		}
+
+		public Trainer setTrainingSet(Instances<Double> trainingSet) {
+			this.set = trainingSet;
+			return this;
+		}
+
+		public Trainer setForkJoinPool(ForkJoinPool pool) {
+			this.pool = pool;
+			return this;
+		}
+
+		public Trainer setNumThreads(int numThreads) {
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public Trainer setNumTrees(int numTrees) {
+			if (numTrees < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.numTrees = numTrees;
+			return this;
+		}
+
+		/**
+		 * Whether the rows of every tree are drawn with replacement, which is
+		 * the default, or without.
+		 * 
+		 * @param bootstrap
+		 * @return
+		 */
+		public Trainer setBootstrap(boolean bootstrap) {
+			this.bootstrap = bootstrap;
+			return this;
+		}
+
+		/**
+		 * The number of rows drawn for every tree, as a fraction of the
+		 * training set. Defaults to 1.
+		 * 
+		 * @param sampleRate
+		 * @return
+		 */
+		public Trainer setSampleRate(double sampleRate) {
+			if (!(sampleRate > 0D && sampleRate <= 1D)) {
+				throw new IllegalStateException();
+			}
+
+			this.sampleRate = sampleRate;
+			return this;
+		}
+
+		/**
+		 * The number of features searched at every split, a third of them
+		 * by default.
+		 * 
+		 * @param maxFeatures
+		 * @return
+		 */
+		public Trainer setMaxFeatures(int maxFeatures) {
+			if (maxFeatures < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.maxFeatures = maxFeatures;
+			return this;
+		}
+
+		public Trainer setMaxDepth(int maxDepth) {
+			if (maxDepth < 0) {
+				throw new IllegalStateException();
+			}
+
+			this.maxDepth = maxDepth;
+			return this;
+		}
+
+		/**
+		 * Limits the number of leaves of every tree, growing them best first:
+		 * the split reducing the error the most is always made next.
+		 * 
+		 * @param maxLeaves
+		 * @return
+		 */
+		public Trainer setMaxLeaves(int maxLeaves) {
+			if (maxLeaves < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.maxLeaves = maxLeaves;
+			return this;
+		}
+
+		/**
+		 * Trains extremely randomized trees, see
+		 * {@link RegressionTree.Trainer#setNumRandomThresholds(int)}. Usually
+		 * combined with {@link #setBootstrap(boolean)} off.
+		 * 
+		 * @param numRandomThresholds
+		 * @return
+		 */
+		public Trainer setNumRandomThresholds(int numRandomThresholds) {
+			if (numRandomThresholds < 0) {
+				throw new IllegalStateException();
+			}
+
+			this.numRandomThresholds = numRandomThresholds;
+			return this;
+		}
+
+		/**
+		 * Seeds the sampling of rows and features. Training is reproducible
+		 * for a given seed, regardless of the number of threads.
+		 * 
+		 * @param seed
+		 * @return
+		 */
+		public Trainer setSeed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * Bounds the time and heap used by training. Trees started after the
+		 * budget runs out are single leaves.
+		 * 
+		 * @param budget
+		 * @return
+		 */
+		public Trainer setBudget(TrainingBudget budget) {
+			this.budget = budget;
+			return this;
+		}
+
+		/**
+		 * Reports the progress of training to the monitor, which counts
+		 * every tree of the forest as it is built.
+		 * 
+		 * @param monitor
+		 * @return
+		 */
+		public Trainer setMonitor(TrainingMonitor monitor) {
+			this.monitor = monitor;
+			return this;
+		}
+
+		public void validate() {
+			if (set == null) {
+				throw new IllegalStateException("Missing training set");
+			}
+		}
+
+		@Override
+		protected TrainingMonitor getMonitor() {
+			return monitor;
+		}
+
+		@Override
+		protected TrainingBudget getBudget() {
+			return budget;
+		}
+
+		@Override
+		protected int getMaxLeaves() {
+			return maxLeaves > 0 ? maxLeaves : Integer.MAX_VALUE;
+		}
+
+		@Override
+		protected int getMaxDepth() {
+			return maxDepth;
+		}
+
+		@Override
+		protected int getNumRandomThresholds() {
+			return numRandomThresholds;
+		}
+
+		@Override
+		protected int getNumCandidateFeatures(int numFeatures) {
+			return maxFeatures > 0 ? Math.min(maxFeatures, numFeatures) : Math.max(1, numFeatures / 3);
+		}
+
+		public RandomForest train() {
+			validate();
+			if (pool == null) {
+				pool = new ForkJoinPool(numThreads);
+			}
+
+			final TrainingData data = TrainingData.of(set);
+			final OutOfBagError outOfBag = new OutOfBagError(data, numTrees);
+			final RegressionTree[] trees = pool.invoke(new ForestTask(data, outOfBag));
+			return new RandomForest(trees, outOfBag.errors, data.numFeatures, data.targetLabel, data.featureLabels);
+		}
+
+		int[] sample(final int numRows, final Random random) {
+			final int[] counts = new int[numRows];
+			final int n = Math.max(1, (int) Math.round(numRows * sampleRate));
+			if (bootstrap) {
+				for (int i = 0; i < n; i++) {
+					counts[random.nextInt(numRows)]++;
+				}
+			} else {
+				final int[] rows = new int[numRows];
+				for (int i = 0; i < numRows; i++) {
+					rows[i] = i;
+				}
+
+				for (int i = 0; i < n; i++) {
+					final int j = i + random.nextInt(numRows - i);
+					final int row = rows[j];
+					rows[j] = rows[i];
+					rows[i] = row;
+					counts[row] = 1;
+				}
+			}
+
+			return counts;
+		}
+
+		class ForestTask extends RecursiveTask<RegressionTree[]> {
+
+			private static final long serialVersionUID = 1L;
+
+			final TrainingData data;
+			final OutOfBagError outOfBag;
+
+			ForestTask(TrainingData data, OutOfBagError outOfBag) {
+				this.data = data;
+				this.outOfBag = outOfBag;
+			}
+
+			@Override
+			protected RegressionTree[] compute() {
+				final TreeTask[] tasks = new TreeTask[numTrees];
+				for (int i = 0; i < numTrees; i++) {
+					tasks[i] = new TreeTask(data, outOfBag, childSeed(seed, i));
+				}
+
+				invokeAll(tasks);
+				final RegressionTree[] trees = new RegressionTree[numTrees];
+				for (int i = 0; i < numTrees; i++) {
+					trees[i] = new RegressionTree(tasks[i].join(), data.numFeatures, data.targetLabel,
+							data.featureLabels);
+				}
+
+				return trees;
+			}
+
+		}
+
+		class TreeTask extends RecursiveTask<Node> {
+
+			private static final long serialVersionUID = 1L;
+
+			final TrainingData data;
+			final OutOfBagError outOfBag;
+			final long seed;
+
+			TreeTask(TrainingData data, OutOfBagError outOfBag, long seed) {
+				this.data = data;
+				this.outOfBag = outOfBag;
+				this.seed = seed;
+			}
+
+			@Override
+			protected Node compute() {
+				final int[] counts = sample(data.numRows, new Random(seed));
+				final Node root = newTreeBuildingTask(data.view(counts), minError, minRowsInSplit, childSeed(seed,
+						0)).invoke();
+				outOfBag.add(root, counts);
+				return root;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Accumulates the predictions of every tree for the rows it was not
+	 * trained on, as the trees finish.
+	 */
+	static final class OutOfBagError {
+
+		final TrainingData data;
+		final double[] sums;
+		final int[] counts;
+		final double[] errors;
+		private int numTrees;
+
+		OutOfBagError(TrainingData data, int numTrees) {
+			this.data = data;
+			this.sums = new double[data.numRows];
+			this.counts = new int[data.numRows];
+			this.errors = new double[numTrees];
+		}
+
+		void add(final Node root, final int[] inBag) {
+			// predict outside the lock, so that trees finishing at the same
+			// time only wait for each other to add up the predictions
+			final double[] predictions = new double[data.numRows];
+			final double[] x = new double[data.numFeatures];
+			for (int row = 0; row < data.numRows; row++) {
+				if (inBag[row] == 0) {
+					for (int feature = 0; feature < x.length; feature++) {
+						x[feature] = data.columns[feature][row];
+					}
+
+					predictions[row] = root.getValue(x);
+				}
+			}
+
+			accumulate(predictions, inBag);
+		}
+
+		private synchronized void accumulate(final double[] predictions, final int[] inBag) {
+			double sum = 0D;
+			int n = 0;
+			for (int row = 0; row < data.numRows; row++) {
+				if (inBag[row] == 0) {
+					sums[row] += predictions[row];
+					counts[row]++;
+				}
+
+				if (counts[row] > 0) {
+					final double residual = data.targets[row] - sums[row] / counts[row];
+					sum += residual * residual;
+					n++;
+				}
+			}
+
+			errors[numTrees++] = n > 0 ? sum / n : Double.NaN;
+		}
+
+	}
+
+}
@@ -20,9 +20,11 @@ package se.ipx.ml.trees.regression;
 import static se.ipx.ml.util.Util.mean;
 import static se.ipx.ml.util.Util.variance;
 
+import java.util.List;
 import java.util.concurrent.ForkJoinPool;
 
 import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Vector;
 
 /**
  * 
@@ -31,10 +33,71 @@ import se.ipx.ml.data.Instances;
  */
 public class RegressionTree extends AbstractRegressionTree {
 
-	private RegressionTree(Node root, int numFeatures, String targetLabel, String[] featureLabels) {
+	private volatile TreeShap shap;
+
+	RegressionTree(Node root, int numFeatures, String targetLabel, String[] featureLabels) {
 		super(root, numFeatures, targetLabel, featureLabels);
 	}
 
+	/**
+	 * Explains a prediction by the exact SHAP value of every feature, see
+	 * {@link #explain(double[][])}.
+	 * 
+	 * @param featureVector
+	 * @return
+	 */
+	public double[] explain(double[] featureVector) {
+		return explain(new double[][] { featureVector })[0];
+	}
+
+	/**
+	 * Explains predictions by the exact SHAP value of every feature, computed
+	 * with path-dependent TreeSHAP. Features left out of a coalition are
+	 * integrated out using the number of training rows that went either way
+	 * at every split.
+	 * 
+	 * The counts are kept when a tree is saved, compiled, reordered or
+	 * compacted. Files written in version 1 of the binary format have none.
+	 * 
+	 * @param featureVectors
+	 * @return per feature vector, the contribution of every feature followed
+	 *         by the mean prediction over the training set. The values of a
+	 *         row sum to its prediction.
+	 * @throws IllegalStateException
+	 *             if this tree has no training row counts
+	 */
+	public double[][] explain(double[][] featureVectors) {
+		if (featureVectors == null) {
+			throw new NullPointerException();
+		}
+
+		for (int i = 0; i < featureVectors.length; i++) {
+			preCheck(featureVectors[i]);
+		}
+
+		TreeShap shap = this.shap;
+		if (shap == null) {
+			shap = TreeShap.of(getNumFeatures(), getFlatTree());
+			this.shap = shap;
+		}
+
+		final int numFeatures = getNumFeatures();
+		final TreeShap.Scratch scratch = shap.newScratch();
+		final double[][] values = new double[featureVectors.length][];
+		for (int i = 0; i < featureVectors.length; i++) {
+			values[i] = new double[numFeatures + 1];
+			shap.explain(featureVectors[i], values[i], scratch);
+			values[i][numFeatures] = shap.getExpectedValue();
+		}
+
+		return values;
+	}
+
+	@Override
+	RegressionTree newInstance(Node root) {
+		return new RegressionTree(root, getNumFeatures(), getTargetLabel(), getFeatureLabels());
+	}
+
 	public static Trainer newTrainer() {
 		return new Trainer();
 	}
@@ -52,6 +115,21 @@ public class RegressionTree extends AbstractRegressionTree {
 			return value;
 		}
 
+		@Override
+		double getValue(final Double[] features) {
+			return value;
+		}
+
+		@Override
+		double getValue(final List<Double> features) {
+			return value;
+		}
+
+		@Override
+		double getValue(final Vector<Double> features) {
+			return value;
+		}
+
 		@Override
 		void write(StringBuilder sb, int depth, String prefix, String[] labels) {
 			for (int i = 0; i < depth; i++) {
@@ -65,6 +143,11 @@ public class RegressionTree extends AbstractRegressionTree {
 			sb.append(" : ").append(String.format("%.2f", value)).append('\n');
 		}
 
+		@Override
+		int flatten(FlatTree.Builder builder) {
+			return builder.addLeaf(value);
+		}
+
 	}
 
 	public static class Trainer extends AbstractTrainer {
@@ -76,10 +159,17 @@ public class RegressionTree extends AbstractRegressionTree {
 		private double minError;
 		private int minRowsInSplit;
 		private int numThreads;
+		private int numRandomThresholds;
+		private int maxLeaves;
+		private TrainingBudget budget;
+		private TrainingMonitor monitor;
+		private int maxDepth;
+		private long seed;
 
 		public Trainer() {
 			minError = 0.001D;
 			minRowsInSplit = 3;
+			maxDepth = Integer.MAX_VALUE;
 		}
 
 		public Trainer setMinError(double minError) {
@@ -111,12 +201,117 @@ public class RegressionTree extends AbstractRegressionTree {
 			return this;
 		}
 
+		public Trainer setMaxDepth(int maxDepth) {
+			if (maxDepth < 0) {
+				throw new IllegalStateException();
+			}
+
+			this.maxDepth = maxDepth;
+			return this;
+		}
+
+		/**
+		 * Limits the number of leaves of the tree, growing it best first: the
+		 * split reducing the error the most is always made next.
+		 * 
+		 * @param maxLeaves
+		 * @return
+		 */
+		public Trainer setMaxLeaves(int maxLeaves) {
+			if (maxLeaves < 1) {
+				throw new IllegalStateException();
+			}
+
+			this.maxLeaves = maxLeaves;
+			return this;
+		}
+
+		/**
+		 * Enables the extremely randomized trees mode: every node draws the
+		 * given number of random thresholds per feature between the node's
+		 * smallest and largest value, and splits on the best of them. The
+		 * draws are seeded per node, see {@link #setSeed(long)}.
+		 * 
+		 * @param numRandomThresholds
+		 *            zero to search every unique value
+		 * @return
+		 */
+		public Trainer setNumRandomThresholds(int numRandomThresholds) {
+			if (numRandomThresholds < 0) {
+				throw new IllegalStateException();
+			}
+
+			this.numRandomThresholds = numRandomThresholds;
+			return this;
+		}
+
+		/**
+		 * Seeds the random thresholds. Training is reproducible for a given
+		 * seed, regardless of the number of threads.
+		 * 
+		 * @param seed
+		 * @return
+		 */
+		public Trainer setSeed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * Bounds the time and heap used by training, and allows cancelling
+		 * it. Nodes not yet split when the budget runs out become leaves,
+		 * unless the budget fails fast.
+		 * 
+		 * @param budget
+		 * @return
+		 */
+		public Trainer setBudget(TrainingBudget budget) {
+			this.budget = budget;
+			return this;
+		}
+
+		/**
+		 * Reports the progress of training to the monitor.
+		 * 
+		 * @param monitor
+		 * @return
+		 */
+		public Trainer setMonitor(TrainingMonitor monitor) {
+			this.monitor = monitor;
+			return this;
+		}
+
 		public void validate() {
 			if (set == null) {
 				throw new IllegalStateException("Missing training set");
 			}
 		}
 
+		@Override
+		protected TrainingMonitor getMonitor() {
+			return monitor;
+		}
+
+		@Override
+		protected TrainingBudget getBudget() {
+			return budget;
+		}
+
+		@Override
+		protected int getMaxLeaves() {
+			return maxLeaves > 0 ? maxLeaves : Integer.MAX_VALUE;
+		}
+
+		@Override
+		protected int getMaxDepth() {
+			return maxDepth;
+		}
+
+		@Override
+		protected int getNumRandomThresholds() {
+			return numRandomThresholds;
+		}
+
 		@Override
 		protected Node createLeafNode(final Instances<Double> set) {
 			return new RegressionLeafNode(mean(set.getTargets()));
@@ -133,7 +328,7 @@ public class RegressionTree extends AbstractRegressionTree {
 				pool = new ForkJoinPool(numThreads);
 			}
 
-			Node root = pool.invoke(new TreeBuildingTask(set, minError, minRowsInSplit));
+			Node root = pool.invoke(newTreeBuildingTask(set, minError, minRowsInSplit, seed));
 			return new RegressionTree(root, set.getNumFeatures(), set.getTargetLabel(), set.getFeatureLabels());
 		}
 
@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import se.ipx.ml.data.Instance;
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Matrix;
+import se.ipx.ml.data.SplitCriteria;
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.util.Pair;
+
+/**
+ * A subset of the rows of a {@link TrainingData}, a row possibly occurring
+ * more than once. The rows are kept in one list per feature, sorted by the
+ * value of that feature, so that a split can be searched for in a single
+ * pass. Splitting partitions the lists, keeping them sorted, and never copies
+ * feature values. Row i of the view is the i:th row of the list of feature 0.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+final class RowView implements Instances<Double> {
+
+	private static final long serialVersionUID = 1L;
+
+	final TrainingData data;
+	final int[][] rows;
+	final int numRows;
+
+	RowView(TrainingData data, int[][] rows, int numRows) {
+		this.data = data;
+		this.rows = rows;
+		this.numRows = numRows;
+	}
+
+	double getTarget(final int index) {
+		return data.targets[rows[0][index]];
+	}
+
+	@Override
+	public Pair<Instances<Double>, Instances<Double>> splitUsing(final SplitCriteria<Double> criteria) {
+		final int numFeatures = data.numFeatures;
+		int numLeft = 0;
+		for (int i = 0; i < numRows; i++) {
+			if (isLeft(criteria, rows[0][i])) {
+				numLeft++;
+			}
+		}
+
+		final int[][] lRows = new int[numFeatures][numLeft];
+		final int[][] rRows = new int[numFeatures][numRows - numLeft];
+		for (int feature = 0; feature < numFeatures; feature++) {
+			final int[] selected = rows[feature];
+			final int[] l = lRows[feature];
+			final int[] r = rRows[feature];
+			int nl = 0;
+			int nr = 0;
+			for (int i = 0; i < numRows; i++) {
+				final int row = selected[i];
+				if (isLeft(criteria, row)) {
+					l[nl++] = row;
+				} else {
+					r[nr++] = row;
+				}
+			}
+		}
+
+		final Instances<Double> left = new RowView(data, lRows, numLeft);
+		final Instances<Double> right = new RowView(data, rRows, numRows - numLeft);
+		return Pair.with(left, right);
+	}
+
+	private boolean isLeft(final SplitCriteria<Double> criteria, final int row) {
+		if (criteria instanceof Criteria) {
+			final Criteria c = (Criteria) criteria;
+			return data.columns[c.getFeature()][row] >= c.getValue();
+		}
+
+		return criteria.isLeft(new RowVector(row));
+	}
+
+	@Override
+	public Instance<Double> getInstance(final int index) {
+		final int row = rows[0][index];
+		return new Instance<Double>() {
+
+			@Override
+			public Vector<Double> getFeatureVector() {
+				return new RowVector(row);
+			}
+
+			@Override
+			public Double getTargetValue() {
+				return data.targets[row];
+			}
+
+		};
+	}
+
+	@Override
+	public Matrix<Double> getFeatureMatrix() {
+		return new RowMatrix();
+	}
+
+	@Override
+	public Vector<Double> getFeatureVector(final int index) {
+		return new RowVector(rows[0][index]);
+	}
+
+	@Override
+	public Vector<Double> getFeatures(final int index) {
+		return new ColumnVector(data.columns[index]);
+	}
+
+	@Override
+	public Vector<Double> getTargets() {
+		return new ColumnVector(data.targets);
+	}
+
+	@Override
+	public int getNumInstances() {
+		return numRows;
+	}
+
+	@Override
+	public int getNumFeatures() {
+		return data.numFeatures;
+	}
+
+	@Override
+	public String getTargetLabel() {
+		return data.targetLabel;
+	}
+
+	@Override
+	public String getFeatureLabel(final int index) {
+		return data.featureLabels[index];
+	}
+
+	@Override
+	public String[] getFeatureLabels() {
+		return data.featureLabels;
+	}
+
+	/**
+	 * The values of a column for the rows of this view.
+	 */
+	private final class ColumnVector implements Vector<Double> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final double[] column;
+
+		ColumnVector(double[] column) {
+			this.column = column;
+		}
+
+		@Override
+		public int getLength() {
+			return numRows;
+		}
+
+		@Override
+		public Double getValue(final int index) {
+			return column[rows[0][index]];
+		}
+
+		@Override
+		public Set<Double> getUniqueValues() {
+			final Set<Double> unique = new HashSet<Double>(numRows, 1);
+			for (int i = 0; i < numRows; i++) {
+				unique.add(column[rows[0][i]]);
+			}
+
+			return unique;
+		}
+
+		@Override
+		public double doubleValue(final int index) {
+			return column[rows[0][index]];
+		}
+
+		@Override
+		public int size() {
+			return numRows;
+		}
+
+		@Override
+		public Number get(final int index) {
+			return getValue(index);
+		}
+
+	}
+
+	private final class RowVector implements Vector<Double> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int row;
+
+		RowVector(int row) {
+			this.row = row;
+		}
+
+		@Override
+		public int getLength() {
+			return data.numFeatures;
+		}
+
+		@Override
+		public Double getValue(final int index) {
+			return data.columns[index][row];
+		}
+
+		@Override
+		public Set<Double> getUniqueValues() {
+			final Set<Double> unique = new HashSet<Double>(data.numFeatures, 1);
+			for (int i = 0; i < data.numFeatures; i++) {
+				unique.add(data.columns[i][row]);
+			}
+
+			return unique;
+		}
+
+		@Override
+		public double doubleValue(final int index) {
+			return data.columns[index][row];
+		}
+
+		@Override
+		public int size() {
+			return data.numFeatures;
+		}
+
+		@Override
+		public Number get(final int index) {
+			return getValue(index);
+		}
+
+	}
+
+	private final class RowMatrix implements Matrix<Double> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Double getValue(final int row, final int col) {
+			return data.columns[col][rows[0][row]];
+		}
+
+		@Override
+		public int getNumRows() {
+			return numRows;
+		}
+
+		@Override
+		public int getNumCols() {
+			return data.numFeatures;
+		}
+
+		@Override
+		public double doubleValue(final int row, final int col) {
+			return data.columns[col][rows[0][row]];
+		}
+
+		@Override
+		public int getColDim() {
+			return data.numFeatures;
+		}
+
+		@Override
+		public int getRowDim() {
+			return numRows;
+		}
+
+		@Override
+		public int size() {
+			return numRows * data.numFeatures;
+		}
+
+		@Override
+		public Number get(final int row, final int col) {
+			return getValue(row, col);
+		}
+
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on the time and heap a training run may use, and a flag to cancel
+ * it. Trainers check the budget cooperatively before splitting a node and
+ * while searching for a split. Once the budget is exhausted, training either
+ * stops growing and returns the trees grown so far, with every node not yet
+ * split made a leaf, or, if failing fast, throws a
+ * {@link CancellationException} from <code>train()</code>.
+ * <p>
+ * A budget may be shared by trainings running at the same time, e.g. to
+ * cancel all of them at once.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class TrainingBudget {
+
+	private volatile long deadline;
+	private volatile boolean hasDeadline;
+	private volatile long maxHeapUsage = Long.MAX_VALUE;
+	private volatile boolean failFast;
+	private volatile boolean cancelled;
+
+	/**
+	 * Sets a deadline the given time from now.
+	 * 
+	 * @param timeLimit
+	 * @param unit
+	 * @return
+	 */
+	public TrainingBudget setTimeLimit(long timeLimit, TimeUnit unit) {
+		if (timeLimit < 0L) {
+			throw new IllegalArgumentException();
+		}
+
+		deadline = System.nanoTime() + unit.toNanos(timeLimit);
+		hasDeadline = true;
+		return this;
+	}
+
+	/**
+	 * Limits the heap in use, as reported by {@link Runtime}. This includes
+	 * garbage not yet collected, so the limit is conservative.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public TrainingBudget setMaxHeapUsage(long bytes) {
+		if (bytes < 0L) {
+			throw new IllegalArgumentException();
+		}
+
+		maxHeapUsage = bytes;
+		return this;
+	}
+
+	/**
+	 * Whether training throws once the budget is exhausted, rather than
+	 * returning what has been grown. Defaults to <code>false</code>.
+	 * 
+	 * @param failFast
+	 * @return
+	 */
+	public TrainingBudget setFailFast(boolean failFast) {
+		this.failFast = failFast;
+		return this;
+	}
+
+	/**
+	 * Cancels training using this budget, as if it were exhausted.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isFailFast() {
+		return failFast;
+	}
+
+	/**
+	 * 
+	 * @return whether the budget is cancelled, past its deadline or above its
+	 *         heap limit
+	 */
+	public boolean isExhausted() {
+		return getReason() != null;
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if training should stop
+	 * @throws CancellationException
+	 *             if training should stop and the budget fails fast
+	 */
+	boolean check() {
+		final String reason = getReason();
+		if (reason == null) {
+			return false;
+		}
+
+		if (failFast) {
+			throw new CancellationException(reason);
+		}
+
+		return true;
+	}
+
+	private String getReason() {
+		if (cancelled) {
+			return "Training cancelled";
+		}
+
+		if (hasDeadline && System.nanoTime() - deadline >= 0L) {
+			return "Training time limit exceeded";
+		}
+
+		if (maxHeapUsage < Long.MAX_VALUE) {
+			final Runtime runtime = Runtime.getRuntime();
+			if (runtime.totalMemory() - runtime.freeMemory() > maxHeapUsage) {
+				return "Training heap limit exceeded";
+			}
+		}
+
+		return null;
+	}
+
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Vector;
+
+/**
+ * A training set copied once into primitive columns, with the rows of every
+ * feature sorted by value. Trainers training many trees on the same data,
+ * see {@link RandomForest}, take {@link RowView}s of it rather than copying
+ * it per tree.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+final class TrainingData implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	final double[][] columns;
+	final double[] targets;
+	final int[][] sorted;
+	final int numRows;
+	final int numFeatures;
+	final String targetLabel;
+	final String[] featureLabels;
+
+	private TrainingData(double[][] columns, double[] targets, String targetLabel, String[] featureLabels) {
+		this.columns = columns;
+		this.targets = targets;
+		this.numRows = targets.length;
+		this.numFeatures = columns.length;
+		this.targetLabel = targetLabel;
+		this.featureLabels = featureLabels;
+		this.sorted = new int[numFeatures][];
+		final Integer[] rows = new Integer[numRows];
+		for (int feature = 0; feature < numFeatures; feature++) {
+			for (int i = 0; i < numRows; i++) {
+				rows[i] = i;
+			}
+
+			final double[] column = columns[feature];
+			Arrays.sort(rows, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Double.compare(column[a], column[b]);
+				}
+
+			});
+
+			sorted[feature] = new int[numRows];
+			for (int i = 0; i < numRows; i++) {
+				sorted[feature][i] = rows[i];
+			}
+		}
+	}
+
+	static TrainingData of(final Instances<Double> set) {
+		final int numRows = set.getNumInstances();
+		final int numFeatures = set.getNumFeatures();
+		if (numFeatures == 0) {
+			throw new IllegalArgumentException("No features");
+		}
+
+		final double[][] columns = new double[numFeatures][numRows];
+		for (int feature = 0; feature < numFeatures; feature++) {
+			final Vector<Double> values = set.getFeatures(feature);
+			for (int i = 0; i < numRows; i++) {
+				columns[feature][i] = values.getValue(i);
+			}
+		}
+
+		final double[] targets = new double[numRows];
+		final Vector<Double> values = set.getTargets();
+		for (int i = 0; i < numRows; i++) {
+			targets[i] = values.getValue(i);
+		}
+
+		return new TrainingData(columns, targets, set.getTargetLabel(), set.getFeatureLabels());
+	}
+
+	/**
+	 * 
+	 * @return a view of all rows
+	 */
+	RowView view() {
+		final int[] counts = new int[numRows];
+		Arrays.fill(counts, 1);
+		return view(counts);
+	}
+
+	/**
+	 * 
+	 * @param counts
+	 *            the number of times every row is included in the view
+	 * @return
+	 */
+	RowView view(final int[] counts) {
+		int n = 0;
+		for (int count : counts) {
+			n += count;
+		}
+
+		final int[][] rows = new int[numFeatures][n];
+		for (int feature = 0; feature < numFeatures; feature++) {
+			final int[] order = sorted[feature];
+			final int[] selected = rows[feature];
+			int k = 0;
+			for (int i = 0; i < numRows; i++) {
+				for (int c = counts[order[i]]; c > 0; c--) {
+					selected[k++] = order[i];
+				}
+			}
+		}
+
+		return new RowView(this, rows, n);
+	}
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Progress counters of training runs, updated by the trainers it is set on
+ * from the threads building the trees, see e.g.
+ * {@link RegressionTree.Trainer#setMonitor(TrainingMonitor)}.
+ * <p>
+ * Time is accounted per phase of building a node: searching for a split,
+ * partitioning the rows and fitting a leaf. Times are summed over all
+ * threads, so their shares show where the workers spend their time. The
+ * rows of nodes not built yet bound the remaining work: every pending row
+ * is searched at least once more.
+ * <p>
+ * An optional {@link Listener} is told about every node and tree as it is
+ * built. Can be registered as a standard MBean.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public class TrainingMonitor implements TrainingMonitorMBean {
+
+	static final int TREES = 0;
+	static final int NODES = 1;
+	static final int LEAVES = 2;
+	static final int ROWS = 3;
+	static final int CANDIDATES = 4;
+	static final int PENDING_ROWS = 5;
+	static final int SPLIT_SEARCH_NANOS = 6;
+	static final int PARTITION_NANOS = 7;
+	static final int LEAF_FIT_NANOS = 8;
+	static final int NUM_COUNTERS = 9;
+
+	private final AtomicLongArray counters = new AtomicLongArray(NUM_COUNTERS);
+	private final AtomicInteger maxDepth = new AtomicInteger();
+	private final Listener listener;
+
+	public TrainingMonitor() {
+		this(null);
+	}
+
+	public TrainingMonitor(Listener listener) {
+		this.listener = listener;
+	}
+
+	void treeStarted(final int numRows) {
+		counters.addAndGet(PENDING_ROWS, numRows);
+	}
+
+	void treeBuilt() {
+		counters.incrementAndGet(TREES);
+		if (listener != null) {
+			listener.treeBuilt(this);
+		}
+	}
+
+	/**
+	 * The rows of a split node pass on to its children, so only leaves
+	 * reduce the pending rows.
+	 */
+	void nodeBuilt(final int depth, final int numRows, final boolean leaf) {
+		counters.incrementAndGet(NODES);
+		counters.addAndGet(ROWS, numRows);
+		if (leaf) {
+			counters.incrementAndGet(LEAVES);
+			counters.addAndGet(PENDING_ROWS, -numRows);
+		}
+
+		int max = maxDepth.get();
+		while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+			max = maxDepth.get();
+		}
+
+		if (listener != null) {
+			listener.nodeBuilt(this, depth, numRows, leaf);
+		}
+	}
+
+	/**
+	 * Called once per feature searched rather than per candidate, so that the
+	 * shared counter stays out of the evaluation loop.
+	 */
+	void candidatesEvaluated(final long count) {
+		counters.addAndGet(CANDIDATES, count);
+	}
+
+	void splitSearched(final long nanos) {
+		counters.addAndGet(SPLIT_SEARCH_NANOS, nanos);
+	}
+
+	void partitioned(final long nanos) {
+		counters.addAndGet(PARTITION_NANOS, nanos);
+	}
+
+	void leafFitted(final long nanos) {
+		counters.addAndGet(LEAF_FIT_NANOS, nanos);
+	}
+
+	@Override
+	public long getTreesBuilt() {
+		return counters.get(TREES);
+	}
+
+	/**
+	 * 
+	 * @return the number of internal nodes and leaves built
+	 */
+	@Override
+	public long getNodesBuilt() {
+		return counters.get(NODES);
+	}
+
+	@Override
+	public long getLeavesBuilt() {
+		return counters.get(LEAVES);
+	}
+
+	/**
+	 * 
+	 * @return the depth of the deepest node built, the root being at depth 0
+	 */
+	@Override
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	/**
+	 * 
+	 * @return the rows of all nodes built, the rows of the training set
+	 *         counted once per level
+	 */
+	@Override
+	public long getRowsProcessed() {
+		return counters.get(ROWS);
+	}
+
+	/**
+	 * 
+	 * @return the number of split candidates whose error was evaluated
+	 */
+	@Override
+	public long getCandidatesEvaluated() {
+		return counters.get(CANDIDATES);
+	}
+
+	/**
+	 * 
+	 * @return the rows of the nodes of trees being built that are not built
+	 *         yet
+	 */
+	@Override
+	public long getPendingRows() {
+		return counters.get(PENDING_ROWS);
+	}
+
+	public long getSplitSearchTime(TimeUnit unit) {
+		return unit.convert(counters.get(SPLIT_SEARCH_NANOS), TimeUnit.NANOSECONDS);
+	}
+
+	public long getPartitionTime(TimeUnit unit) {
+		return unit.convert(counters.get(PARTITION_NANOS), TimeUnit.NANOSECONDS);
+	}
+
+	public long getLeafFitTime(TimeUnit unit) {
+		return unit.convert(counters.get(LEAF_FIT_NANOS), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public long getSplitSearchMillis() {
+		return getSplitSearchTime(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getPartitionMillis() {
+		return getPartitionTime(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getLeafFitMillis() {
+		return getLeafFitTime(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < NUM_COUNTERS; i++) {
+			counters.set(i, 0L);
+		}
+
+		maxDepth.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "trees=" + getTreesBuilt() + ", nodes=" + getNodesBuilt() + ", leaves=" + getLeavesBuilt()
+				+ ", maxDepth=" + getMaxDepth() + ", rows=" + getRowsProcessed() + ", candidates="
+				+ getCandidatesEvaluated() + ", pendingRows=" + getPendingRows() + ", splitSearchMillis="
+				+ getSplitSearchMillis() + ", partitionMillis=" + getPartitionMillis() + ", leafFitMillis="
+				+ getLeafFitMillis();
+	}
+
+	/**
+	 * Receives progress as it happens, on the threads building the trees.
+	 * Implementations must be thread safe and quick.
+	 */
+	public interface Listener {
+
+		void nodeBuilt(TrainingMonitor monitor, int depth, int numRows, boolean leaf);
+
+		void treeBuilt(TrainingMonitor monitor);
+
+	}
+
+}
@@ -0,0 +1,381 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.Arrays;
+
+/**
+ * Hosts many trees in a handful of shared primitive arrays instead of one
+ * object graph per tree. Trees are flattened and appended to the arrays, and
+ * addressed by the id returned from {@link #add(AbstractRegressionTree)}.
+ * 
+ * Predictions never lock. Adding, removing and compacting are serialized and
+ * publish a new view of the arrays once done. Appending only writes beyond the
+ * ranges visible to readers, and growing or compacting copies the trees to new
+ * arrays, so a reader always sees a consistent view. The space of removed trees
+ * is reclaimed once it exceeds the space of the live trees, or by
+ * {@link #compact()}. The ids of removed trees are handed out again by later
+ * adds, so an id must not be used after its tree has been removed.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class TreeArena {
+
+	private static final int REMOVED = Integer.MIN_VALUE;
+
+	private volatile State state;
+	private long garbage;
+	/**
+	 * Binary min-heap of the ids of removed trees, so that the lowest is
+	 * reused first and the id tables stay dense.
+	 */
+	private int[] freeIds = new int[64];
+	private int numFreeIds;
+
+	public TreeArena() {
+		state = new State(1024, 1024, 64);
+	}
+
+	/**
+	 * Adds a tree to this arena.
+	 * 
+	 * @param tree
+	 * @return the id of the tree in this arena
+	 */
+	public synchronized int add(AbstractRegressionTree tree) {
+		final FlatTree flat = FlatTree.of(tree.getRoot());
+		final int numNodes = flat.getNumNodes();
+		final boolean reuse = numFreeIds > 0;
+		final State s = state.ensureCapacity(numNodes, flat.leaves.length, !reuse);
+		final int id = reuse ? pollFreeId() : s.numModels;
+		final int nodeOffset = s.numNodes;
+		final int leafOffset = s.numLeaves;
+		for (int i = 0; i < numNodes; i++) {
+			s.features[nodeOffset + i] = flat.features[i];
+			s.thresholds[nodeOffset + i] = flat.thresholds[i];
+			s.children[2 * (nodeOffset + i)] = relocate(flat.lefts[i], nodeOffset, leafOffset, flat.width);
+			s.children[2 * (nodeOffset + i) + 1] = relocate(flat.rights[i], nodeOffset, leafOffset, flat.width);
+		}
+
+		System.arraycopy(flat.leaves, 0, s.leaves, leafOffset, flat.leaves.length);
+		s.numFeatures[id] = tree.getNumFeatures();
+		s.nodeOffsets[id] = nodeOffset;
+		s.nodeCounts[id] = numNodes;
+		s.leafOffsets[id] = leafOffset;
+		s.leafCounts[id] = flat.leaves.length;
+		s.widths[id] = flat.width;
+		s.linear[id] = flat.linear;
+		s.roots[id] = relocate(flat.getRoot(), nodeOffset, leafOffset, flat.width);
+		state = new State(s, reuse ? s.numModels : id + 1, nodeOffset + numNodes, leafOffset + flat.leaves.length);
+		return id;
+	}
+
+	private static int relocate(final int ref, final int nodeOffset, final int leafOffset, final int width) {
+		return ref >= 0 ? ref + nodeOffset : ~(leafOffset + ~ref * width);
+	}
+
+	/**
+	 * Removes a tree from this arena. Predictions already in flight on the tree
+	 * are unaffected.
+	 * 
+	 * @param id
+	 * @return <code>true</code> if the tree was present
+	 */
+	public synchronized boolean remove(int id) {
+		final State s = state;
+		if (id < 0 || id >= s.numModels || s.roots[id] == REMOVED) {
+			return false;
+		}
+
+		s.roots[id] = REMOVED;
+		state = new State(s, s.numModels, s.numNodes, s.numLeaves);
+		garbage += s.nodeCounts[id] * State.NODE_SIZE + s.leafCounts[id] * 8L;
+		offerFreeId(id);
+		if (2 * garbage > s.numNodes * State.NODE_SIZE + s.numLeaves * 8L) {
+			compact();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies all live trees to new arrays, dropping the space of removed ones
+	 * and the ids of removed trees above the highest live id.
+	 */
+	public synchronized void compact() {
+		final State s = state;
+		int numModels = 0;
+		int numNodes = 0;
+		int numLeaves = 0;
+		for (int id = 0; id < s.numModels; id++) {
+			if (s.roots[id] != REMOVED) {
+				numModels = id + 1;
+				numNodes += s.nodeCounts[id];
+				numLeaves += s.leafCounts[id];
+			}
+		}
+
+		final State c = new State(Math.max(numNodes, 1), Math.max(numLeaves, 1), Math.max(numModels, 64));
+		numFreeIds = 0;
+		int nodeOffset = 0;
+		int leafOffset = 0;
+		for (int id = 0; id < numModels; id++) {
+			// ascending order already is a heap
+			if (s.roots[id] == REMOVED) {
+				freeIds[numFreeIds++] = id;
+			}
+		}
+
+		for (int id = 0; id < numModels; id++) {
+			c.roots[id] = REMOVED;
+			c.numFeatures[id] = s.numFeatures[id];
+			c.nodeCounts[id] = s.nodeCounts[id];
+			c.leafCounts[id] = s.leafCounts[id];
+			c.widths[id] = s.widths[id];
+			c.linear[id] = s.linear[id];
+			if (s.roots[id] == REMOVED) {
+				continue;
+			}
+
+			final int oldNodeOffset = s.nodeOffsets[id];
+			final int oldLeafOffset = s.leafOffsets[id];
+			final int n = s.nodeCounts[id];
+			System.arraycopy(s.features, oldNodeOffset, c.features, nodeOffset, n);
+			System.arraycopy(s.thresholds, oldNodeOffset, c.thresholds, nodeOffset, n);
+			for (int i = 0; i < 2 * n; i++) {
+				c.children[2 * nodeOffset + i] = move(s.children[2 * oldNodeOffset + i], oldNodeOffset, nodeOffset,
+						oldLeafOffset, leafOffset);
+			}
+
+			System.arraycopy(s.leaves, oldLeafOffset, c.leaves, leafOffset, s.leafCounts[id]);
+			c.roots[id] = move(s.roots[id], oldNodeOffset, nodeOffset, oldLeafOffset, leafOffset);
+			c.nodeOffsets[id] = nodeOffset;
+			c.leafOffsets[id] = leafOffset;
+			nodeOffset += n;
+			leafOffset += s.leafCounts[id];
+		}
+
+		garbage = 0L;
+		state = new State(c, numModels, nodeOffset, leafOffset);
+	}
+
+	private void offerFreeId(final int id) {
+		if (numFreeIds == freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+		}
+
+		int i = numFreeIds++;
+		while (i > 0 && freeIds[(i - 1) >>> 1] > id) {
+			freeIds[i] = freeIds[(i - 1) >>> 1];
+			i = (i - 1) >>> 1;
+		}
+
+		freeIds[i] = id;
+	}
+
+	private int pollFreeId() {
+		final int lowest = freeIds[0];
+		final int last = freeIds[--numFreeIds];
+		int i = 0;
+		for (;;) {
+			int child = 2 * i + 1;
+			if (child >= numFreeIds) {
+				break;
+			}
+
+			if (child + 1 < numFreeIds && freeIds[child + 1] < freeIds[child]) {
+				child++;
+			}
+
+			if (freeIds[child] >= last) {
+				break;
+			}
+
+			freeIds[i] = freeIds[child];
+			i = child;
+		}
+
+		freeIds[i] = last;
+		return lowest;
+	}
+
+	private static int move(final int ref, final int oldNodeOffset, final int nodeOffset, final int oldLeafOffset,
+			final int leafOffset) {
+		return ref >= 0 ? ref - oldNodeOffset + nodeOffset : ~(~ref - oldLeafOffset + leafOffset);
+	}
+
+	public double predict(int id, double[] featureVector) {
+		final State s = state;
+		if (id < 0 || id >= s.numModels || s.roots[id] == REMOVED) {
+			throw new IllegalArgumentException("No such tree: " + id);
+		}
+
+		if (featureVector.length != s.numFeatures[id]) {
+			throw new IllegalArgumentException();
+		}
+
+		final int[] features = s.features;
+		final double[] thresholds = s.thresholds;
+		final int[] children = s.children;
+		int ref = s.roots[id];
+		while (ref >= 0) {
+			ref = children[2 * ref + (featureVector[features[ref]] >= thresholds[ref] ? 0 : 1)];
+		}
+
+		final int offset = ~ref;
+		if (!s.linear[id]) {
+			return s.leaves[offset];
+		}
+
+		final double[] leaves = s.leaves;
+		final int width = s.widths[id];
+		double sum = 0D;
+		for (int i = 0; i < width; i++) {
+			sum += leaves[offset + i] * featureVector[i];
+		}
+
+		return sum;
+	}
+
+	public boolean contains(int id) {
+		final State s = state;
+		return id >= 0 && id < s.numModels && s.roots[id] != REMOVED;
+	}
+
+	public int getNumFeatures(int id) {
+		final State s = state;
+		if (id < 0 || id >= s.numModels || s.roots[id] == REMOVED) {
+			throw new IllegalArgumentException("No such tree: " + id);
+		}
+
+		return s.numFeatures[id];
+	}
+
+	/**
+	 * The memory used by the arrays of this arena, including unused capacity.
+	 * 
+	 * @return
+	 */
+	public long getSizeInBytes() {
+		final State s = state;
+		return s.features.length * State.NODE_SIZE + s.leaves.length * 8L + s.roots.length * 29L;
+	}
+
+	/**
+	 * A view of the arrays. Leaf references are the one's complement of the
+	 * offset of the leaf in {@link #leaves}.
+	 */
+	private static final class State {
+
+		static final long NODE_SIZE = 4L + 8L + 8L;
+
+		final int[] features;
+		final double[] thresholds;
+		final int[] children;
+		final double[] leaves;
+
+		final int[] roots;
+		final int[] numFeatures;
+		final int[] nodeOffsets;
+		final int[] nodeCounts;
+		final int[] leafOffsets;
+		final int[] leafCounts;
+		final int[] widths;
+		final boolean[] linear;
+
+		final int numModels;
+		final int numNodes;
+		final int numLeaves;
+
+		State(int nodeCapacity, int leafCapacity, int modelCapacity) {
+			features = new int[nodeCapacity];
+			thresholds = new double[nodeCapacity];
+			children = new int[2 * nodeCapacity];
+			leaves = new double[leafCapacity];
+			roots = new int[modelCapacity];
+			numFeatures = new int[modelCapacity];
+			nodeOffsets = new int[modelCapacity];
+			nodeCounts = new int[modelCapacity];
+			leafOffsets = new int[modelCapacity];
+			leafCounts = new int[modelCapacity];
+			widths = new int[modelCapacity];
+			linear = new boolean[modelCapacity];
+			numModels = 0;
+			numNodes = 0;
+			numLeaves = 0;
+		}
+
+		/**
+		 * Shares the arrays of the given view.
+		 */
+		State(State s, int numModels, int numNodes, int numLeaves) {
+			features = s.features;
+			thresholds = s.thresholds;
+			children = s.children;
+			leaves = s.leaves;
+			roots = s.roots;
+			numFeatures = s.numFeatures;
+			nodeOffsets = s.nodeOffsets;
+			nodeCounts = s.nodeCounts;
+			leafOffsets = s.leafOffsets;
+			leafCounts = s.leafCounts;
+			widths = s.widths;
+			linear = s.linear;
+			this.numModels = numModels;
+			this.numNodes = numNodes;
+			this.numLeaves = numLeaves;
+		}
+
+		/**
+		 * Copies this view into arrays of the given capacities.
+		 */
+		State copy(int nodeCapacity, int leafCapacity, int modelCapacity) {
+			final State c = new State(nodeCapacity, leafCapacity, modelCapacity);
+			final int n = Math.min(numNodes, nodeCapacity);
+			final int l = Math.min(numLeaves, leafCapacity);
+			System.arraycopy(features, 0, c.features, 0, n);
+			System.arraycopy(thresholds, 0, c.thresholds, 0, n);
+			System.arraycopy(children, 0, c.children, 0, 2 * n);
+			System.arraycopy(leaves, 0, c.leaves, 0, l);
+			System.arraycopy(roots, 0, c.roots, 0, numModels);
+			System.arraycopy(numFeatures, 0, c.numFeatures, 0, numModels);
+			System.arraycopy(nodeOffsets, 0, c.nodeOffsets, 0, numModels);
+			System.arraycopy(nodeCounts, 0, c.nodeCounts, 0, numModels);
+			System.arraycopy(leafOffsets, 0, c.leafOffsets, 0, numModels);
+			System.arraycopy(leafCounts, 0, c.leafCounts, 0, numModels);
+			System.arraycopy(widths, 0, c.widths, 0, numModels);
+			System.arraycopy(linear, 0, c.linear, 0, numModels);
+			return new State(c, numModels, n, l);
+		}
+
+		State ensureCapacity(final int moreNodes, final int moreLeaves, final boolean moreModel) {
+			final int nodes = numNodes + moreNodes;
+			final int leafValues = numLeaves + moreLeaves;
+			final boolean models = !moreModel || numModels < roots.length;
+			if (nodes <= features.length && leafValues <= leaves.length && models) {
+				return this;
+			}
+
+			return copy(Math.max(nodes, features.length * 2), Math.max(leafValues, leaves.length * 2),
+					models ? roots.length : roots.length * 2);
+		}
+
+	}
+
+}
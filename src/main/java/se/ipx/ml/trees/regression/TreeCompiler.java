@@ -0,0 +1,557 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+
+/**
+ * Compiles a flattened tree into a class of its own. Every split becomes a
+ * comparison against a constant threshold followed by a conditional branch, and
+ * every leaf a constant return or an unrolled dot product. Subtrees are moved
+ * into methods of their own whenever a method would otherwise grow beyond
+ * {@link #MAX_METHOD_SIZE}, which keeps every method small enough to be JIT
+ * compiled.
+ * 
+ * Each class is defined by a class loader of its own, so that it can be
+ * unloaded together with the tree it was compiled from.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+final class TreeCompiler {
+
+	/**
+	 * Implemented by all generated classes. Must be public since the generated
+	 * classes do not share runtime package with this class.
+	 */
+	public interface Evaluator {
+
+		double predict(double[] features);
+
+	}
+
+	/**
+	 * Stays below HotSpot's default HugeMethodLimit (8000 bytes).
+	 */
+	static final int MAX_METHOD_SIZE = 7680;
+
+	private static final int CALL_SIZE = 5;
+
+	private static final String PACKAGE = "se/ipx/ml/trees/regression/";
+	private static final String EVALUATOR = PACKAGE + "TreeCompiler$Evaluator";
+	private static final String DESCRIPTOR = "([D)D";
+
+	private static final AtomicLong COUNTER = new AtomicLong();
+
+	private final FlatTree tree;
+	private final int maxMethodSize;
+	private final String className;
+	private final ConstantPool pool;
+	private final int[] sizes;
+	private final Map<Integer, String> methodNames;
+	private final List<Integer> pending;
+
+	private TreeCompiler(FlatTree tree, int maxMethodSize) {
+		this.tree = tree;
+		this.maxMethodSize = maxMethodSize;
+		this.className = PACKAGE + "CompiledTree" + COUNTER.incrementAndGet();
+		this.pool = new ConstantPool();
+		this.sizes = new int[tree.getNumNodes()];
+		this.methodNames = new HashMap<Integer, String>();
+		this.pending = new ArrayList<Integer>();
+	}
+
+	/**
+	 * 
+	 * @param tree
+	 * @return an evaluator, or <code>null</code> if the tree is too large to
+	 *         be compiled
+	 */
+	static Evaluator compile(final FlatTree tree) {
+		return compile(tree, MAX_METHOD_SIZE);
+	}
+
+	static Evaluator compile(final FlatTree tree, final int maxMethodSize) {
+		final TreeCompiler compiler = new TreeCompiler(tree, maxMethodSize);
+		final byte[] bytes = compiler.generate();
+		if (bytes == null) {
+			return null;
+		}
+
+		final Loader loader = new Loader(TreeCompiler.class.getClassLoader());
+		try {
+			return (Evaluator) loader.define(compiler.className.replace('/', '.'), bytes).getConstructor()
+					.newInstance();
+		} catch (InstantiationException e) {
+			throw new IllegalStateException(e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private byte[] generate() {
+		if (tree.linear && (tree.width > Short.MAX_VALUE || leafSize() > maxMethodSize)) {
+			return null;
+		}
+
+		for (int feature : tree.features) {
+			if (feature > Short.MAX_VALUE) {
+				return null;
+			}
+		}
+
+		final List<String> names = new ArrayList<String>();
+		final List<byte[]> codes = new ArrayList<byte[]>();
+		final String rootName = getMethodName(tree.getRoot());
+		while (!pending.isEmpty()) {
+			final int ref = pending.remove(pending.size() - 1);
+			final Code code = new Code();
+			emit(code, ref);
+			names.add(methodNames.get(ref));
+			codes.add(code.toByteArray());
+		}
+
+		final int thisClass = pool.classRef(className);
+		final int superClass = pool.classRef("java/lang/Object");
+		final int evaluatorClass = pool.classRef(EVALUATOR);
+		final int codeName = pool.utf8("Code");
+		final int initName = pool.utf8("<init>");
+		final int initDescriptor = pool.utf8("()V");
+		final int superInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+		final int predictName = pool.utf8("predict");
+		final int descriptor = pool.utf8(DESCRIPTOR);
+		final int rootMethod = pool.methodRef(className, rootName, DESCRIPTOR);
+		final int[] methodNameIndexes = new int[names.size()];
+		for (int i = 0; i < methodNameIndexes.length; i++) {
+			methodNameIndexes[i] = pool.utf8(names.get(i));
+		}
+
+		if (pool.size() > 0xFFFF) {
+			return null;
+		}
+
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			pool.writeTo(out);
+			out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(evaluatorClass);
+			out.writeShort(0);
+			out.writeShort(2 + codes.size());
+
+			// public <init>() { super(); }
+			Code init = new Code();
+			init.op(0x2a); // aload_0
+			init.op(0xb7).u2(superInit); // invokespecial
+			init.op(0xb1); // return
+			writeMethod(out, 0x0001, initName, initDescriptor, codeName, 1, 1, init.toByteArray());
+
+			// public double predict(double[] f) { return <root>(f); }
+			Code predict = new Code();
+			predict.op(0x2b); // aload_1
+			predict.op(0xb8).u2(rootMethod); // invokestatic
+			predict.op(0xaf); // dreturn
+			writeMethod(out, 0x0001, predictName, descriptor, codeName, 2, 2, predict.toByteArray());
+
+			for (int i = 0; i < codes.size(); i++) {
+				// private static double <name>(double[] f)
+				writeMethod(out, 0x0002 | 0x0008, methodNameIndexes[i], descriptor, codeName, 6, 1, codes.get(i));
+			}
+
+			out.writeShort(0);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeName,
+			int maxStack, int maxLocals, byte[] code) throws IOException {
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+
+	private String getMethodName(final int ref) {
+		String name = methodNames.get(ref);
+		if (name == null) {
+			name = ref < 0 ? "l" + ~ref : "n" + ref;
+			methodNames.put(ref, name);
+			pending.add(ref);
+		}
+
+		return name;
+	}
+
+	private void emit(final Code code, final int ref) {
+		if (ref < 0) {
+			emitLeaf(code, ~ref);
+			return;
+		}
+
+		// if (f[feature] >= threshold) <left> else <right>, falling through
+		// to the child laid out first
+		final boolean leftFirst = tree.isLeftFirst(ref);
+		code.op(0x2a); // aload_0
+		code.pushInt(tree.features[ref]);
+		code.op(0x31); // daload
+		code.op(0x14).u2(pool.doubleConst(tree.thresholds[ref])); // ldc2_w
+		code.op(0x97); // dcmpl, NaN compares as less
+		final int branch = code.size();
+		code.op(leftFirst ? 0x9b : 0x9c).u2(0); // iflt or ifge
+		emitChild(code, leftFirst ? tree.lefts[ref] : tree.rights[ref], CALL_SIZE);
+		code.patch(branch + 1, code.size() - branch);
+		emitChild(code, leftFirst ? tree.rights[ref] : tree.lefts[ref], 0);
+	}
+
+	private void emitChild(final Code code, final int ref, final int reserved) {
+		if (code.size() + getSize(ref) + reserved <= maxMethodSize) {
+			emit(code, ref);
+		} else {
+			code.op(0x2a); // aload_0
+			code.op(0xb8).u2(pool.methodRef(className, getMethodName(ref), DESCRIPTOR)); // invokestatic
+			code.op(0xaf); // dreturn
+		}
+	}
+
+	private void emitLeaf(final Code code, final int leaf) {
+		if (!tree.linear) {
+			code.op(0x14).u2(pool.doubleConst(tree.leaves[leaf])); // ldc2_w
+			code.op(0xaf); // dreturn
+			return;
+		}
+
+		final int offset = leaf * tree.width;
+		code.op(0x0e); // dconst_0
+		for (int i = 0; i < tree.width; i++) {
+			code.op(0x2a); // aload_0
+			code.pushInt(i);
+			code.op(0x31); // daload
+			code.op(0x14).u2(pool.doubleConst(tree.leaves[offset + i])); // ldc2_w
+			code.op(0x6b); // dmul
+			code.op(0x63); // dadd
+		}
+
+		code.op(0xaf); // dreturn
+	}
+
+	/**
+	 * The size of the code for a subtree if it is fully inlined, saturated at
+	 * one above the maximum method size.
+	 * 
+	 * @param ref
+	 * @return
+	 */
+	private int getSize(final int ref) {
+		if (ref < 0) {
+			return leafSize();
+		}
+
+		if (sizes[ref] == 0) {
+			final int size = 9 + Code.pushIntSize(tree.features[ref]) + getSize(tree.lefts[ref])
+					+ getSize(tree.rights[ref]);
+			sizes[ref] = Math.min(size, maxMethodSize + 1);
+		}
+
+		return sizes[ref];
+	}
+
+	private int leafSize() {
+		if (!tree.linear) {
+			return 4;
+		}
+
+		int size = 2;
+		for (int i = 0; i < tree.width; i++) {
+			size += 7 + Code.pushIntSize(i);
+		}
+
+		return size;
+	}
+
+	private static final class Code {
+
+		private byte[] bytes = new byte[256];
+		private int length;
+
+		Code op(final int op) {
+			if (length == bytes.length) {
+				final byte[] grown = new byte[length * 2];
+				System.arraycopy(bytes, 0, grown, 0, length);
+				bytes = grown;
+			}
+
+			bytes[length++] = (byte) op;
+			return this;
+		}
+
+		Code u2(final int value) {
+			op(value >>> 8);
+			op(value);
+			return this;
+		}
+
+		void pushInt(final int value) {
+			if (value >= -1 && value <= 5) {
+				op(0x03 + value); // iconst_<n>
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op(0x10).op(value); // bipush
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op(0x11).u2(value); // sipush
+			} else {
+				throw new IllegalArgumentException();
+			}
+		}
+
+		static int pushIntSize(final int value) {
+			if (value >= -1 && value <= 5) {
+				return 1;
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				return 2;
+			} else {
+				return 3;
+			}
+		}
+
+		void patch(final int position, final int value) {
+			bytes[position] = (byte) (value >>> 8);
+			bytes[position + 1] = (byte) value;
+		}
+
+		int size() {
+			return length;
+		}
+
+		byte[] toByteArray() {
+			final byte[] copy = new byte[length];
+			System.arraycopy(bytes, 0, copy, 0, length);
+			return copy;
+		}
+
+	}
+
+	private static final class ConstantPool {
+
+		private final ByteArrayOutputStream bytes;
+		private final DataOutputStream out;
+		private final Map<String, Integer> entries;
+		private int size;
+
+		ConstantPool() {
+			bytes = new ByteArrayOutputStream();
+			out = new DataOutputStream(bytes);
+			entries = new HashMap<String, Integer>();
+			size = 1;
+		}
+
+		int utf8(final String value) {
+			final String key = "U" + value;
+			Integer index = entries.get(key);
+			if (index == null) {
+				index = add(key, 1);
+				try {
+					out.writeByte(1);
+					out.writeUTF(value);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			return index;
+		}
+
+		int doubleConst(final double value) {
+			final long bits = Double.doubleToRawLongBits(value);
+			final String key = "D" + bits;
+			Integer index = entries.get(key);
+			if (index == null) {
+				index = add(key, 2);
+				try {
+					out.writeByte(6);
+					out.writeLong(bits);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			return index;
+		}
+
+		int classRef(final String name) {
+			final String key = "C" + name;
+			Integer index = entries.get(key);
+			if (index == null) {
+				final int nameIndex = utf8(name);
+				index = add(key, 1);
+				try {
+					out.writeByte(7);
+					out.writeShort(nameIndex);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			return index;
+		}
+
+		int methodRef(final String owner, final String name, final String descriptor) {
+			final String key = "M" + owner + "." + name + descriptor;
+			Integer index = entries.get(key);
+			if (index == null) {
+				final int ownerIndex = classRef(owner);
+				final int nameAndType = nameAndType(name, descriptor);
+				index = add(key, 1);
+				try {
+					out.writeByte(10);
+					out.writeShort(ownerIndex);
+					out.writeShort(nameAndType);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			return index;
+		}
+
+		private int nameAndType(final String name, final String descriptor) {
+			final String key = "N" + name + descriptor;
+			Integer index = entries.get(key);
+			if (index == null) {
+				final int nameIndex = utf8(name);
+				final int descriptorIndex = utf8(descriptor);
+				index = add(key, 1);
+				try {
+					out.writeByte(12);
+					out.writeShort(nameIndex);
+					out.writeShort(descriptorIndex);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			return index;
+		}
+
+		private int add(final String key, final int slots) {
+			final int index = size;
+			entries.put(key, index);
+			size += slots;
+			return index;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void writeTo(final DataOutputStream out) throws IOException {
+			out.writeShort(size);
+			bytes.writeTo(out);
+		}
+
+	}
+
+	private static final class Loader extends ClassLoader {
+
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(final String name, final byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+
+	}
+
+	/**
+	 * Root of a compiled tree. Keeps the interpreted tree around for
+	 * everything but evaluation.
+	 */
+	static class CompiledNode extends Node {
+
+		final Evaluator evaluator;
+		final Node source;
+
+		CompiledNode(Evaluator evaluator, Node source) {
+			this.evaluator = evaluator;
+			this.source = source;
+		}
+
+		@Override
+		double getValue(final double[] features) {
+			return evaluator.predict(features);
+		}
+
+		@Override
+		double getValue(final Double[] features) {
+			return source.getValue(features);
+		}
+
+		@Override
+		double getValue(final List<Double> features) {
+			return source.getValue(features);
+		}
+
+		@Override
+		double getValue(final Vector<Double> features) {
+			return source.getValue(features);
+		}
+
+		@Override
+		void write(StringBuilder sb, int depth, String prefix, String[] labels) {
+			source.write(sb, depth, prefix, labels);
+		}
+
+		@Override
+		int flatten(FlatTree.Builder builder) {
+			return source.flatten(builder);
+		}
+
+	}
+
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.FeatureSupplier;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+
+/**
+ * Leaf hit counters and a latency histogram of an instrumented tree, see
+ * {@link AbstractRegressionTree#instrument()}. Each prediction increments two
+ * counters: the leaf it ended in and the latency bucket it fell into. Hits of
+ * internal nodes are derived from the leaf hits when taking a snapshot.
+ * 
+ * Counters are striped by thread to keep concurrent predictions from
+ * contending on the same cells. Latencies are bucketed log-linearly, with four
+ * buckets per power of two, which bounds the relative error to 25%.
+ * 
+ * Can be registered as a standard MBean.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public class TreeInstrumentation implements TreeInstrumentationMBean {
+
+	static final int SUB_BUCKET_BITS = 2;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final FlatTree tree;
+	private final AtomicLongArray[] stripes;
+	private final int stripeMask;
+	private final int numLeaves;
+
+	TreeInstrumentation(FlatTree tree) {
+		this.tree = tree;
+		this.numLeaves = tree.getNumLeaves();
+		int numStripes = 1;
+		while (numStripes < Runtime.getRuntime().availableProcessors()) {
+			numStripes <<= 1;
+		}
+
+		this.stripes = new AtomicLongArray[numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			stripes[i] = new AtomicLongArray(numLeaves + NUM_BUCKETS);
+		}
+
+		this.stripeMask = numStripes - 1;
+	}
+
+	void record(final int leaf, final long nanos) {
+		final AtomicLongArray cells = stripes[(int) Thread.currentThread().getId() & stripeMask];
+		cells.incrementAndGet(leaf);
+		cells.incrementAndGet(numLeaves + getBucket(nanos));
+	}
+
+	static int getBucket(final long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return nanos < 0 ? 0 : (int) nanos;
+		}
+
+		final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		final int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * The smallest latency falling into the given bucket.
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	static long getLowerBound(final int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		final long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	public Snapshot getSnapshot() {
+		final long[] leafHits = new long[numLeaves];
+		final long[] latencies = new long[NUM_BUCKETS];
+		for (AtomicLongArray cells : stripes) {
+			for (int i = 0; i < numLeaves; i++) {
+				leafHits[i] += cells.get(i);
+			}
+
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				latencies[i] += cells.get(numLeaves + i);
+			}
+		}
+
+		return new Snapshot(tree.getNodeHits(leafHits), leafHits, latencies);
+	}
+
+	@Override
+	public long getCount() {
+		return getSnapshot().getCount();
+	}
+
+	@Override
+	public long getLatencyMedian() {
+		return getSnapshot().getLatency(0.5D);
+	}
+
+	@Override
+	public long getLatency99thPercentile() {
+		return getSnapshot().getLatency(0.99D);
+	}
+
+	@Override
+	public long getLatency999thPercentile() {
+		return getSnapshot().getLatency(0.999D);
+	}
+
+	@Override
+	public long[] getLeafHits() {
+		return getSnapshot().getLeafHits();
+	}
+
+	@Override
+	public void reset() {
+		for (AtomicLongArray cells : stripes) {
+			for (int i = 0; i < cells.length(); i++) {
+				cells.set(i, 0L);
+			}
+		}
+	}
+
+	/**
+	 * Counters at a point in time. Nodes and leaves are numbered as in the
+	 * flattened tree.
+	 */
+	public static final class Snapshot {
+
+		private final long[] nodeHits;
+		private final long[] leafHits;
+		private final long[] latencies;
+		private final long count;
+
+		Snapshot(long[] nodeHits, long[] leafHits, long[] latencies) {
+			this.nodeHits = nodeHits;
+			this.leafHits = leafHits;
+			this.latencies = latencies;
+			long n = 0L;
+			for (long hits : leafHits) {
+				n += hits;
+			}
+
+			this.count = n;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long[] getNodeHits() {
+			return nodeHits.clone();
+		}
+
+		public long[] getLeafHits() {
+			return leafHits.clone();
+		}
+
+		/**
+		 * Returns the lower bound, in nanoseconds, of the latency bucket
+		 * holding the given quantile.
+		 * 
+		 * @param quantile
+		 * @return
+		 */
+		public long getLatency(final double quantile) {
+			if (quantile < 0D || quantile > 1D) {
+				throw new IllegalArgumentException();
+			}
+
+			long total = 0L;
+			for (long n : latencies) {
+				total += n;
+			}
+
+			if (total == 0L) {
+				return 0L;
+			}
+
+			final long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+			long seen = 0L;
+			for (int i = 0; i < latencies.length; i++) {
+				seen += latencies[i];
+				if (seen >= rank) {
+					return getLowerBound(i);
+				}
+			}
+
+			return getLowerBound(latencies.length - 1);
+		}
+
+		public long[] getLatencyHistogram() {
+			return latencies.clone();
+		}
+
+	}
+
+	/**
+	 * Root of an instrumented tree. Traverses the flattened tree, so that the
+	 * leaf reached can be recorded.
+	 */
+	static class InstrumentedNode extends Node {
+
+		final TreeInstrumentation instrumentation;
+		final FlatTree tree;
+		final Node source;
+
+		InstrumentedNode(TreeInstrumentation instrumentation, Node source) {
+			this.instrumentation = instrumentation;
+			this.tree = instrumentation.tree;
+			this.source = source;
+		}
+
+		@Override
+		double getValue(final double[] features) {
+			final long start = System.nanoTime();
+			int ref = tree.getRoot();
+			while (ref >= 0) {
+				ref = features[tree.features[ref]] >= tree.thresholds[ref] ? tree.lefts[ref] : tree.rights[ref];
+			}
+
+			final double value = tree.getLeafValue(~ref, features);
+			instrumentation.record(~ref, System.nanoTime() - start);
+			return value;
+		}
+
+		@Override
+		double getValue(final Double[] features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		@Override
+		double getValue(final List<Double> features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		@Override
+		double getValue(final Vector<Double> features) {
+			return getValue(BoxedFeatures.of(features));
+		}
+
+		private double getValue(final FeatureSupplier features) {
+			final long start = System.nanoTime();
+			final int leaf = tree.getLeaf(features);
+			final double value = tree.getLeafValue(leaf, features);
+			instrumentation.record(leaf, System.nanoTime() - start);
+			return value;
+		}
+
+		@Override
+		void write(StringBuilder sb, int depth, String prefix, String[] labels) {
+			source.write(sb, depth, prefix, labels);
+		}
+
+		@Override
+		int flatten(FlatTree.Builder builder) {
+			return source.flatten(builder);
+		}
+
+	}
+
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+/**
+ * Exact path-dependent TreeSHAP (Lundberg et al., "Consistent Individualized
+ * Feature Attribution for Tree Ensembles", algorithm 2). Features missing
+ * from a coalition are integrated out by following both children of a split
+ * in proportion to the number of training rows that went each way, so the
+ * attributions sum to the prediction minus the mean training prediction. The
+ * cost of an explanation is O(L D^2) for L leaves and depth D.
+ * 
+ * Works on the arrays of a {@link FlatTree}, using the covers of every node,
+ * with the path of the recursion in scratch arrays that are allocated once
+ * per explanation or batch. A child no training row reached, as left by
+ * oblivious trees, has a cover of zero and adds nothing to the expectations.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+final class TreeShap {
+
+	private final int numFeatures;
+	private final int[] features;
+	private final double[] thresholds;
+	private final int[] lefts;
+	private final int[] rights;
+	private final double[] leftFractions;
+	private final double[] rightFractions;
+	private final double[] leaves;
+	private final int maxDepth;
+	private final double expectedValue;
+
+	private TreeShap(int numFeatures, FlatTree tree) {
+		this.numFeatures = numFeatures;
+		this.features = tree.features;
+		this.thresholds = tree.thresholds;
+		this.lefts = tree.lefts;
+		this.rights = tree.rights;
+		this.leaves = tree.leaves;
+		final int n = tree.getNumNodes();
+		this.leftFractions = new double[n];
+		this.rightFractions = new double[n];
+		for (int i = 0; i < n; i++) {
+			final int left = tree.leftCovers[i];
+			final int right = tree.rightCovers[i];
+			if (left < 0 || right < 0 || left + right == 0) {
+				throw new IllegalStateException("Tree has no cover counts");
+			}
+
+			leftFractions[i] = (double) left / (left + right);
+			rightFractions[i] = (double) right / (left + right);
+		}
+
+		this.maxDepth = getDepth(tree.getRoot());
+		this.expectedValue = getExpectedValue(tree.getRoot());
+	}
+
+	/**
+	 * 
+	 * @param numFeatures
+	 * @param tree
+	 *            a tree with constant leaves
+	 * @return
+	 * @throws IllegalStateException
+	 *             if the tree carries no cover counts
+	 */
+	static TreeShap of(int numFeatures, FlatTree tree) {
+		if (tree.linear) {
+			throw new IllegalArgumentException("Linear leaves");
+		}
+
+		return new TreeShap(numFeatures, tree);
+	}
+
+	private int getDepth(final int ref) {
+		return ref < 0 ? 0 : 1 + Math.max(getDepth(lefts[ref]), getDepth(rights[ref]));
+	}
+
+	private double getExpectedValue(final int ref) {
+		if (ref < 0) {
+			return leaves[~ref];
+		}
+
+		return leftFractions[ref] * getExpectedValue(lefts[ref]) + rightFractions[ref]
+				* getExpectedValue(rights[ref]);
+	}
+
+	/**
+	 * The mean prediction over the training set, which the attributions of a
+	 * prediction are relative to.
+	 * 
+	 * @return
+	 */
+	double getExpectedValue() {
+		return expectedValue;
+	}
+
+	Scratch newScratch() {
+		return new Scratch(maxDepth + 2);
+	}
+
+	/**
+	 * Adds the attribution of every feature to the first
+	 * {@link #numFeatures} elements of <code>phi</code>.
+	 * 
+	 * @param x
+	 * @param phi
+	 * @param scratch
+	 */
+	void explain(final double[] x, final double[] phi, final Scratch scratch) {
+		if (x.length != numFeatures || phi.length < numFeatures) {
+			throw new IllegalArgumentException();
+		}
+
+		if (features.length > 0) {
+			recurse(0, x, phi, scratch, 0, 0, 1D, 1D, -1);
+		}
+	}
+
+	private void recurse(final int ref, final double[] x, final double[] phi, final Scratch s, final int parentOffset,
+			int depth, final double zeroFraction, final double oneFraction, final int feature) {
+		// every level works on its own copy of the path
+		final int offset = parentOffset + depth;
+		if (depth > 0) {
+			s.copy(parentOffset, offset, depth);
+		}
+
+		s.extend(offset, depth, zeroFraction, oneFraction, feature);
+		if (ref < 0) {
+			final double value = leaves[~ref];
+			for (int i = 1; i <= depth; i++) {
+				final double w = s.unwoundSum(offset, depth, i);
+				phi[s.features[offset + i]] += w * (s.oneFractions[offset + i] - s.zeroFractions[offset + i]) * value;
+			}
+
+			return;
+		}
+
+		final int split = features[ref];
+		final boolean left = x[split] >= thresholds[ref];
+		final int hot = left ? lefts[ref] : rights[ref];
+		final int cold = left ? rights[ref] : lefts[ref];
+		final double hotFraction = left ? leftFractions[ref] : rightFractions[ref];
+		final double coldFraction = left ? rightFractions[ref] : leftFractions[ref];
+
+		// a feature split on further up is taken off the path and its
+		// fractions carried over
+		double incomingZeroFraction = 1D;
+		double incomingOneFraction = 1D;
+		int index = 0;
+		while (index <= depth && s.features[offset + index] != split) {
+			index++;
+		}
+
+		if (index <= depth) {
+			incomingZeroFraction = s.zeroFractions[offset + index];
+			incomingOneFraction = s.oneFractions[offset + index];
+			s.unwind(offset, depth, index);
+			depth--;
+		}
+
+		// a child with both fractions zero contributes nothing, and must stay
+		// off the path, as unwinding divides by its fractions
+		final double hotZeroFraction = hotFraction * incomingZeroFraction;
+		if (hotZeroFraction != 0D || incomingOneFraction != 0D) {
+			recurse(hot, x, phi, s, offset, depth + 1, hotZeroFraction, incomingOneFraction, split);
+		}
+
+		final double coldZeroFraction = coldFraction * incomingZeroFraction;
+		if (coldZeroFraction != 0D) {
+			recurse(cold, x, phi, s, offset, depth + 1, coldZeroFraction, 0D, split);
+		}
+	}
+
+	/**
+	 * The paths of all levels of the recursion, level d taking d + 1 elements.
+	 */
+	static final class Scratch {
+
+		final int[] features;
+		final double[] zeroFractions;
+		final double[] oneFractions;
+		final double[] weights;
+
+		Scratch(int maxLength) {
+			final int size = maxLength * (maxLength + 1) / 2;
+			features = new int[size];
+			zeroFractions = new double[size];
+			oneFractions = new double[size];
+			weights = new double[size];
+		}
+
+		void copy(final int from, final int to, final int length) {
+			System.arraycopy(features, from, features, to, length);
+			System.arraycopy(zeroFractions, from, zeroFractions, to, length);
+			System.arraycopy(oneFractions, from, oneFractions, to, length);
+			System.arraycopy(weights, from, weights, to, length);
+		}
+
+		void extend(final int offset, final int depth, final double zeroFraction, final double oneFraction,
+				final int feature) {
+			features[offset + depth] = feature;
+			zeroFractions[offset + depth] = zeroFraction;
+			oneFractions[offset + depth] = oneFraction;
+			weights[offset + depth] = depth == 0 ? 1D : 0D;
+			for (int i = depth - 1; i >= 0; i--) {
+				weights[offset + i + 1] += oneFraction * weights[offset + i] * (i + 1) / (depth + 1);
+				weights[offset + i] = zeroFraction * weights[offset + i] * (depth - i) / (depth + 1);
+			}
+		}
+
+		void unwind(final int offset, final int depth, final int index) {
+			final double oneFraction = oneFractions[offset + index];
+			final double zeroFraction = zeroFractions[offset + index];
+			double next = weights[offset + depth];
+			for (int i = depth - 1; i >= 0; i--) {
+				if (oneFraction != 0D) {
+					final double tmp = weights[offset + i];
+					weights[offset + i] = next * (depth + 1) / ((i + 1) * oneFraction);
+					next = tmp - weights[offset + i] * zeroFraction * (depth - i) / (depth + 1);
+				} else {
+					weights[offset + i] = weights[offset + i] * (depth + 1) / (zeroFraction * (depth - i));
+				}
+			}
+
+			for (int i = index; i < depth; i++) {
+				features[offset + i] = features[offset + i + 1];
+				zeroFractions[offset + i] = zeroFractions[offset + i + 1];
+				oneFractions[offset + i] = oneFractions[offset + i + 1];
+			}
+		}
+
+		double unwoundSum(final int offset, final int depth, final int index) {
+			final double oneFraction = oneFractions[offset + index];
+			final double zeroFraction = zeroFractions[offset + index];
+			double next = weights[offset + depth];
+			double total = 0D;
+			for (int i = depth - 1; i >= 0; i--) {
+				if (oneFraction != 0D) {
+					final double tmp = next * (depth + 1) / ((i + 1) * oneFraction);
+					total += tmp;
+					next = weights[offset + i] - tmp * zeroFraction * (depth - i) / (depth + 1);
+				} else {
+					total += weights[offset + i] / zeroFraction / ((double) (depth - i) / (depth + 1));
+				}
+			}
+
+			return total;
+		}
+
+	}
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of warming up a tree, see
+ * {@link AbstractRegressionTree#warmUp(double[][], long, TimeUnit)}.
+ * 
+ * A warmup runs in rounds. Every round predicts the feature vectors one by
+ * one, repeated until at least {@link #MIN_ROWS_PER_ROUND} predictions have
+ * been made, and then once more as a batch. Warmup has reached steady state
+ * once enough predictions have been made for the JIT compiler to have kicked
+ * in, and the single-row timings of the last {@link #STEADY_ROUNDS} rounds are
+ * within {@link #TOLERANCE} of each other.
+ * 
+ * @author Fredrik Ekelund
+ * 
+ */
+public final class TreeWarmup {
+
+	static final int MIN_ROWS_PER_ROUND = 1024;
+	static final int MIN_ROWS = 1 << 15;
+	static final int STEADY_ROUNDS = 5;
+	static final double TOLERANCE = 0.1D;
+
+	// keeps the predictions from being optimized away
+	static volatile double sink;
+
+	private final int rounds;
+	private final long rows;
+	private final long elapsedNanos;
+	private final double nanosPerRow;
+	private final boolean steady;
+
+	private TreeWarmup(int rounds, long rows, long elapsedNanos, double nanosPerRow, boolean steady) {
+		this.rounds = rounds;
+		this.rows = rows;
+		this.elapsedNanos = elapsedNanos;
+		this.nanosPerRow = nanosPerRow;
+		this.steady = steady;
+	}
+
+	static TreeWarmup run(final AbstractRegressionTree tree, final double[][] featureVectors, final long budgetNanos) {
+		if (featureVectors.length == 0) {
+			throw new IllegalArgumentException();
+		}
+
+		final int repeats = (MIN_ROWS_PER_ROUND + featureVectors.length - 1) / featureVectors.length;
+		final long rowsPerRound = (long) repeats * featureVectors.length;
+		final double[] predictions = new double[featureVectors.length];
+		final long[] times = new long[STEADY_ROUNDS];
+		final long start = System.nanoTime();
+		double sum = 0D;
+		int rounds = 0;
+		long now;
+		boolean steady = false;
+		do {
+			final long t0 = System.nanoTime();
+			for (int r = 0; r < repeats; r++) {
+				for (int i = 0; i < featureVectors.length; i++) {
+					sum += tree.predict(featureVectors[i]);
+				}
+			}
+
+			final long t1 = System.nanoTime();
+			tree.predict(featureVectors, predictions);
+			sum += predictions[0];
+			times[rounds % STEADY_ROUNDS] = t1 - t0;
+			rounds++;
+			now = System.nanoTime();
+			steady = rounds >= STEADY_ROUNDS && rounds * rowsPerRound >= MIN_ROWS && isSteady(times);
+		} while (!steady && now - start < budgetNanos);
+
+		sink = sum;
+		final int n = Math.min(rounds, STEADY_ROUNDS);
+		long fastest = Long.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			fastest = Math.min(fastest, times[i]);
+		}
+
+		return new TreeWarmup(rounds, rounds * rowsPerRound, now - start, (double) fastest / rowsPerRound, steady);
+	}
+
+	private static boolean isSteady(final long[] times) {
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (long time : times) {
+			min = Math.min(min, time);
+			max = Math.max(max, time);
+		}
+
+		return max - min <= TOLERANCE * min;
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if steady state was reached within the time
+	 *         budget
+	 */
+	public boolean isSteady() {
+		return steady;
+	}
+
+	public int getRounds() {
+		return rounds;
+	}
+
+	/**
+	 * 
+	 * @return the number of single-row predictions made
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	public long getElapsed(TimeUnit unit) {
+		return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * 
+	 * @return the single-row latency of the fastest of the last rounds
+	 */
+	public double getNanosPerRow() {
+		return nanosPerRow;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeWarmup[rounds=" + rounds + ", rows=" + rows + ", elapsed=" + elapsedNanos / 1000000L
+				+ " ms, nanosPerRow=" + nanosPerRow + ", steady=" + steady + "]";
+	}
+
+}
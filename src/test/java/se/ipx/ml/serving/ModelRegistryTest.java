@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ModelRegistryTest {
+
+	static class RecordingListener extends ModelRegistry.Listener<String> {
+
+		final List<String> warmed = new ArrayList<String>();
+		final List<String> released = new ArrayList<String>();
+
+		@Override
+		public void warmUp(String name, String model) {
+			warmed.add(model);
+		}
+
+		@Override
+		public void released(String name, String model) {
+			released.add(model);
+		}
+
+	}
+
+	@Test
+	public void testPublish() {
+		RecordingListener listener = new RecordingListener();
+		ModelRegistry<String> registry = new ModelRegistry<String>(listener);
+		long v1 = registry.publish("m", "a");
+		long v2 = registry.publish("m", "b");
+		Assert.assertTrue(v2 > v1);
+		Assert.assertEquals(registry.get("m"), "b");
+		Assert.assertEquals(registry.getVersion("m"), v2);
+		Assert.assertEquals(listener.warmed.size(), 2);
+		Assert.assertEquals(listener.released.size(), 1);
+		Assert.assertEquals(listener.released.get(0), "a");
+	}
+
+	@Test
+	public void testReleaseAfterDrain() {
+		RecordingListener listener = new RecordingListener();
+		ModelRegistry<String> registry = new ModelRegistry<String>(listener);
+		registry.publish("m", "a");
+		ModelRegistry.Model<String> inFlight = registry.acquire("m");
+		registry.publish("m", "b");
+		Assert.assertTrue(listener.released.isEmpty());
+		Assert.assertEquals(inFlight.get(), "a");
+
+		ModelRegistry.Model<String> current = registry.acquire("m");
+		Assert.assertEquals(current.get(), "b");
+		current.release();
+
+		inFlight.release();
+		Assert.assertEquals(listener.released.size(), 1);
+		Assert.assertNull(inFlight.get());
+	}
+
+	@Test
+	public void testRemove() {
+		RecordingListener listener = new RecordingListener();
+		ModelRegistry<String> registry = new ModelRegistry<String>(listener);
+		registry.publish("m", "a");
+		Assert.assertTrue(registry.remove("m"));
+		Assert.assertFalse(registry.remove("m"));
+		Assert.assertNull(registry.acquire("m"));
+		Assert.assertEquals(listener.released.size(), 1);
+	}
+
+	@Test
+	public void testReleaseTwice_whilePublished() {
+		RecordingListener listener = new RecordingListener();
+		ModelRegistry<String> registry = new ModelRegistry<String>(listener);
+		registry.publish("m", "a");
+		ModelRegistry.Model<String> model = registry.acquire("m");
+		model.release();
+		try {
+			model.release();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// the registry's own reference is not the client's to give up
+		}
+
+		Assert.assertTrue(listener.released.isEmpty());
+		ModelRegistry.Model<String> again = registry.acquire("m");
+		Assert.assertEquals(again.get(), "a");
+		again.release();
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void testReleaseTwice() {
+		ModelRegistry<String> registry = new ModelRegistry<String>();
+		registry.publish("m", "a");
+		ModelRegistry.Model<String> model = registry.acquire("m");
+		model.release();
+		registry.remove("m");
+		model.release();
+	}
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.trees.DoubleDecisionTree;
+
+public class PredictionCacheTest {
+
+	static class SumTree implements DoubleDecisionTree {
+
+		int calls;
+
+		@Override
+		public double predict(double[] featureVector) {
+			calls++;
+			return featureVector[0] + featureVector[1];
+		}
+
+		@Override
+		public void predict(double[][] featureVectors, double[] predictions) {
+			for (int i = 0; i < featureVectors.length; i++) {
+				predictions[i] = predict(featureVectors[i]);
+			}
+		}
+
+		@Override
+		public int getNumFeatures() {
+			return 2;
+		}
+
+		@Override
+		public Double predict(Double... featureVector) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Double predict(Vector<Double> featureVector) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Double predict(List<Double> featureVector) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		SumTree tree = new SumTree();
+		PredictionCache cache = new PredictionCache(tree, 64);
+		Assert.assertEquals(cache.predict(new double[] { 1, 2 }), 3D);
+		Assert.assertEquals(cache.predict(new double[] { 1, 2 }), 3D);
+		Assert.assertEquals(cache.predict(new double[] { 2, 1 }), 3D);
+		Assert.assertEquals(cache.predict(2D, 1D).doubleValue(), 3D);
+		Assert.assertEquals(tree.calls, 2);
+		Assert.assertEquals(cache.getHits(), 2L);
+		Assert.assertEquals(cache.getMisses(), 2L);
+		Assert.assertEquals(cache.getHitRate(), 0.5D);
+	}
+
+	@Test
+	public void testBounded() {
+		SumTree tree = new SumTree();
+		PredictionCache cache = new PredictionCache(tree, 16, 2);
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(cache.predict(new double[] { i, 1 }), i + 1D);
+		}
+
+		Assert.assertEquals(cache.getMisses(), 1000L);
+		Assert.assertTrue(cache.getEvictions() >= 1000L - 16L);
+		cache.clear();
+		cache.predict(new double[] { 999, 1 });
+		Assert.assertEquals(cache.getHits(), 0L);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, timeOut = 10000L)
+	public void testCapacityTooLarge() {
+		new PredictionCache(new SumTree(), Integer.MAX_VALUE, 2);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, timeOut = 10000L)
+	public void testConcurrencyLevelTooLarge() {
+		new PredictionCache(new SumTree(), 16, (1 << 30) + 1);
+	}
+
+}
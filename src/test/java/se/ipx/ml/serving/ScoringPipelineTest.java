@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class ScoringPipelineTest {
+
+	private ExecutorService executor;
+
+	@BeforeClass
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@AfterClass
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	static class RecordingSink implements ScoringPipeline.Sink {
+
+		final List<Double> predictions = new ArrayList<Double>();
+
+		@Override
+		public void write(double[][] rows, double[] predictions, int length) {
+			for (int i = 0; i < length; i++) {
+				Assert.assertEquals(predictions[i], rows[i][0] + rows[i][1]);
+				this.predictions.add(predictions[i]);
+			}
+		}
+
+	}
+
+	@Test
+	public void testInputOrder() throws Exception {
+		List<double[]> rows = new ArrayList<double[]>();
+		for (int i = 0; i < 1000; i++) {
+			rows.add(new double[] { i, 0.5D });
+		}
+
+		ScoringPipeline pipeline = new ScoringPipeline(new PredictionCacheTest.SumTree(), executor, 16, 4);
+		RecordingSink sink = new RecordingSink();
+		Assert.assertEquals(pipeline.run(ScoringPipeline.iterator(rows.iterator()), sink), 1000L);
+		Assert.assertEquals(sink.predictions.size(), 1000);
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(sink.predictions.get(i).doubleValue(), i + 0.5D);
+		}
+	}
+
+	@Test
+	public void testCsv() throws Exception {
+		ScoringPipeline pipeline = new ScoringPipeline(new PredictionCacheTest.SumTree(), executor, 2, 2);
+		RecordingSink sink = new RecordingSink();
+		String csv = "a,b\n1,2\n 3 , 4\n\n5,6.5\n";
+		Assert.assertEquals(pipeline.run(ScoringPipeline.csv(new StringReader(csv), true), sink), 3L);
+		Assert.assertEquals(sink.predictions.get(2).doubleValue(), 11.5D);
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testCsv_wrongColumns() throws Exception {
+		ScoringPipeline pipeline = new ScoringPipeline(new PredictionCacheTest.SumTree(), executor, 2, 2);
+		pipeline.run(ScoringPipeline.csv(new StringReader("1,2\n3,4,5\n"), false), new RecordingSink());
+	}
+
+	@Test
+	public void testBinary() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int i = 0; i < 5; i++) {
+			out.writeDouble(i);
+			out.writeDouble(1D);
+		}
+
+		out.close();
+		ScoringPipeline pipeline = new ScoringPipeline(new PredictionCacheTest.SumTree(), executor, 4, 1);
+		RecordingSink sink = new RecordingSink();
+		Assert.assertEquals(pipeline.run(ScoringPipeline.binary(new ByteArrayInputStream(bytes.toByteArray())), sink),
+				5L);
+		Assert.assertEquals(sink.predictions.get(4).doubleValue(), 5D);
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void testSinkFailure() throws Exception {
+		List<double[]> rows = new ArrayList<double[]>();
+		for (int i = 0; i < 100; i++) {
+			rows.add(new double[] { i, i });
+		}
+
+		ScoringPipeline pipeline = new ScoringPipeline(new PredictionCacheTest.SumTree(), executor, 8, 2);
+		pipeline.run(ScoringPipeline.iterator(rows.iterator()), new ScoringPipeline.Sink() {
+
+			@Override
+			public void write(double[][] rows, double[] predictions, int length) {
+				throw new IllegalStateException();
+			}
+
+		});
+	}
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.serving;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.trees.DoubleDecisionTree;
+
+public class ScoringServerTest {
+
+	private ModelRegistry<DoubleDecisionTree> registry;
+	private ScoringServer server;
+
+	@BeforeClass
+	public void setUp() throws IOException {
+		registry = new ModelRegistry<DoubleDecisionTree>();
+		registry.publish("sum", new PredictionCacheTest.SumTree());
+		server = new ScoringServer(registry, new InetSocketAddress("localhost", 0), 1L, TimeUnit.MILLISECONDS, 64);
+		server.start();
+	}
+
+	@AfterClass
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private int post(String path, String body, StringBuilder response) throws IOException {
+		URL url = new URL("http", "localhost", server.getAddress().getPort(), path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		OutputStream out = connection.getOutputStream();
+		out.write(body.getBytes("UTF-8"));
+		out.close();
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[256];
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+			bytes.write(buffer, 0, n);
+		}
+
+		in.close();
+		response.append(new String(bytes.toByteArray(), "UTF-8"));
+		return status;
+	}
+
+	@Test
+	public void testPredict() throws IOException {
+		StringBuilder response = new StringBuilder();
+		Assert.assertEquals(post("/models/sum", "1,2\n3.5, 4\n", response), 200);
+		Assert.assertEquals(response.toString(), "3.0\n7.5\n");
+	}
+
+	@Test
+	public void testErrors() throws IOException {
+		Assert.assertEquals(post("/models/missing", "1,2", new StringBuilder()), 404);
+		Assert.assertEquals(post("/models/sum", "1,x", new StringBuilder()), 400);
+		Assert.assertEquals(post("/models/sum", "1,2,3", new StringBuilder()), 400);
+	}
+
+	@Test(timeOut = 30000L)
+	public void testConcurrentClients() throws Exception {
+		final int numClients = 16;
+		final int numRequests = 25;
+		final long rows = server.getBatcher().getRows();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(numClients);
+		final AtomicInteger correct = new AtomicInteger();
+		for (int i = 0; i < numClients; i++) {
+			final int client = i;
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < numRequests; j++) {
+							StringBuilder response = new StringBuilder();
+							if (post("/models/sum", client + "," + j, response) == 200
+									&& response.toString().equals((double) (client + j) + "\n")) {
+								correct.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+						// fails the assertion below
+					} catch (IOException e) {
+						// fails the assertion below
+					} finally {
+						done.countDown();
+					}
+				}
+
+			}.start();
+		}
+
+		start.countDown();
+		done.await();
+		Assert.assertEquals(correct.get(), numClients * numRequests);
+		Assert.assertEquals(server.getBatcher().getRows() - rows, numClients * numRequests);
+	}
+
+	@Test
+	public void testMicroBatching() throws Exception {
+		final MicroBatcher batcher = new MicroBatcher(registry, 50L, TimeUnit.MILLISECONDS, 1024);
+		final int numThreads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(numThreads);
+		final AtomicInteger correct = new AtomicInteger();
+		for (int i = 0; i < numThreads; i++) {
+			final double x = i;
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						if (batcher.predict("sum", new double[] { x, 1D }) == x + 1D) {
+							correct.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						// fails the assertion below
+					} finally {
+						done.countDown();
+					}
+				}
+
+			}.start();
+		}
+
+		start.countDown();
+		done.await();
+		batcher.stop();
+		Assert.assertEquals(correct.get(), numThreads);
+		Assert.assertEquals(batcher.getRows(), numThreads);
+		Assert.assertTrue(batcher.getBatches() < numThreads);
+	}
+
+	@Test(timeOut = 10000L)
+	public void testMicroBatching_error() throws Exception {
+		ModelRegistry<DoubleDecisionTree> registry = new ModelRegistry<DoubleDecisionTree>();
+		registry.publish("overflow", new PredictionCacheTest.SumTree() {
+
+			@Override
+			public void predict(double[][] featureVectors, double[] predictions) {
+				throw new StackOverflowError();
+			}
+
+		});
+
+		MicroBatcher batcher = new MicroBatcher(registry, 1L, TimeUnit.MILLISECONDS, 64);
+		try {
+			batcher.predict("overflow", new double[] { 1D, 2D });
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertTrue(e.getCause() instanceof StackOverflowError);
+		}
+
+		try {
+			batcher.predict("overflow", new double[] { 1D, 2D });
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(e.getMessage(), "Stopped");
+		}
+	}
+
+}
@@ -0,0 +1,763 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Vector;
+import se.ipx.ml.data.impl.InstancesImpl;
+import se.ipx.ml.trees.FeatureSupplier;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.InternalNode;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.Node;
+import se.ipx.ml.trees.regression.ModelTree.ModelLeafNode;
+import se.ipx.ml.trees.regression.RegressionTree.RegressionLeafNode;
+
+public class AbstractRegressionTreeTest {
+
+	public final static int NUM_FEATURES = 3;
+
+	private RegressionTree regressionTree;
+	private ModelTree modelTree;
+	private double[][] samples;
+
+	@BeforeClass
+	public void setUp() {
+		Instances<Double> set = newTrainingSet(120, 42L);
+		regressionTree = RegressionTree.newTrainer().setTrainingSet(set).setMinRowsInSplit(1).setNumThreads(2)
+				.train();
+		modelTree = ModelTree.newTrainer().setTrainingSet(set).setMinRowsInSplit(6).setNumThreads(2).train();
+		samples = newSamples(2000, 7L);
+	}
+
+	static Instances<Double> newTrainingSet(int numRows, long seed) {
+		Random random = new Random(seed);
+		InstancesImpl.Builder<Double> builder = InstancesImpl.newBuilder();
+		builder.setTargetLabel("y").setFeatureLabels("x0", "x1", "x2");
+		for (int i = 0; i < numRows; i++) {
+			double x0 = random.nextInt(10);
+			double x1 = Math.round(random.nextDouble() * 100D) / 10D;
+			double x2 = Math.round(random.nextGaussian() * 10D) / 10D;
+			double y = (x0 >= 5 ? 3 * x1 : -x1) + x2 * x2 + random.nextGaussian() * 0.1D;
+			builder.addInstance(y, x0, x1, x2);
+		}
+
+		return builder.build();
+	}
+
+	static double[][] newSamples(int numRows, long seed) {
+		Random random = new Random(seed);
+		double[][] samples = new double[numRows][NUM_FEATURES];
+		for (int i = 0; i < numRows; i++) {
+			samples[i][0] = random.nextInt(12) - 1;
+			samples[i][1] = Math.round(random.nextDouble() * 120D) / 10D - 1D;
+			samples[i][2] = Math.round(random.nextGaussian() * 10D) / 10D;
+		}
+
+		return samples;
+	}
+
+	static void assertSamePredictions(AbstractRegressionTree expected, AbstractRegressionTree actual,
+			double[][] samples) {
+		for (double[] sample : samples) {
+			Assert.assertEquals(actual.predict(sample), expected.predict(sample));
+		}
+	}
+
+	@Test
+	public void testFlatten_regressionTree() {
+		FlatTree flat = FlatTree.of(regressionTree.getRoot());
+		Assert.assertTrue(flat.getNumNodes() > 10);
+		Assert.assertEquals(flat.getNumLeaves(), flat.getNumNodes() + 1);
+		for (double[] sample : samples) {
+			Assert.assertEquals(flat.getValue(sample), regressionTree.predict(sample));
+		}
+
+		assertSamePredictions(regressionTree, regressionTree.newInstance(flat.toNode()), samples);
+	}
+
+	@Test
+	public void testFlatten_modelTree() {
+		FlatTree flat = FlatTree.of(modelTree.getRoot());
+		Assert.assertTrue(flat.linear);
+		Assert.assertEquals(flat.width, NUM_FEATURES);
+		for (double[] sample : samples) {
+			Assert.assertEquals(flat.getValue(sample), modelTree.predict(sample));
+		}
+	}
+
+	@Test
+	public void testPredict_boxed() {
+		Instances<Double> set = newTrainingSet(50, 3L);
+		for (int i = 0; i < set.getNumInstances(); i++) {
+			Vector<Double> vector = set.getFeatureVector(i);
+			Double[] array = new Double[] { vector.getValue(0), vector.getValue(1), vector.getValue(2) };
+			double[] primitives = new double[] { array[0], array[1], array[2] };
+			for (AbstractRegressionTree tree : new AbstractRegressionTree[] { regressionTree, modelTree }) {
+				double expected = tree.predict(primitives);
+				Assert.assertEquals(tree.predict(array).doubleValue(), expected);
+				Assert.assertEquals(tree.predict(Arrays.asList(array)).doubleValue(), expected);
+				Assert.assertEquals(tree.predict(vector).doubleValue(), expected);
+			}
+		}
+	}
+
+	@Test
+	public void testPredict_allocationFree() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			throw new SkipException("Allocation counting not supported");
+		}
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+			throw new SkipException("Allocation counting not enabled");
+		}
+
+		Instances<Double> set = newTrainingSet(50, 3L);
+		Vector<Double> vector = set.getFeatureVector(0);
+		Double[] array = new Double[] { vector.getValue(0), vector.getValue(1), vector.getValue(2) };
+		List<Double> list = Arrays.asList(array);
+		double[] primitives = new double[] { array[0], array[1], array[2] };
+		for (AbstractRegressionTree tree : new AbstractRegressionTree[] { regressionTree, modelTree }) {
+			double sum = 0D;
+			for (int i = 0; i < 20000; i++) {
+				sum += tree.predict(primitives) + tree.predictDouble(array) + tree.predictDouble(list)
+						+ tree.predictDouble(vector);
+			}
+
+			long threadId = Thread.currentThread().getId();
+			long before = bean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < 20000; i++) {
+				sum += tree.predict(primitives) + tree.predictDouble(array) + tree.predictDouble(list)
+						+ tree.predictDouble(vector);
+			}
+
+			long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+			Assert.assertFalse(Double.isInfinite(sum));
+			Assert.assertTrue(allocated < 1024, "Allocated " + allocated + " bytes");
+		}
+	}
+
+	@Test
+	public void testBatchPredict_regressionTree() {
+		double[] predictions = regressionTree.predict(samples);
+		for (int i = 0; i < samples.length; i++) {
+			Assert.assertEquals(predictions[i], regressionTree.predict(samples[i]));
+		}
+	}
+
+	@Test
+	public void testBatchPredict_modelTree() {
+		double[] predictions = modelTree.predict(samples);
+		for (int i = 0; i < samples.length; i++) {
+			Assert.assertEquals(predictions[i], modelTree.predict(samples[i]));
+		}
+	}
+
+	@Test
+	public void testBatchPredict_empty() {
+		Assert.assertEquals(regressionTree.predict(new double[0][]).length, 0);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testBatchPredict_wrongLength() {
+		regressionTree.predict(new double[][] { new double[NUM_FEATURES], new double[NUM_FEATURES - 1] });
+	}
+
+	@Test
+	public void testLoad_regressionTree() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		regressionTree.writeTo(out);
+		AbstractRegressionTree loaded = AbstractRegressionTree.load(ByteBuffer.wrap(out.toByteArray()));
+		Assert.assertTrue(loaded instanceof RegressionTree);
+		Assert.assertEquals(loaded.getNumFeatures(), NUM_FEATURES);
+		Assert.assertEquals(loaded.getTargetLabel(), "y");
+		Assert.assertEquals(loaded.getFeatureLabels(), regressionTree.getFeatureLabels());
+		Assert.assertEquals(loaded.toString(), regressionTree.toString());
+		assertSamePredictions(regressionTree, loaded, samples);
+		Assert.assertEquals(loaded.predict(samples), regressionTree.predict(samples));
+	}
+
+	@Test
+	public void testLoad_modelTreeFromFile() throws IOException {
+		File file = File.createTempFile("model", ".tree");
+		file.deleteOnExit();
+		modelTree.writeTo(file);
+		AbstractRegressionTree loaded = AbstractRegressionTree.load(file);
+		Assert.assertTrue(loaded instanceof ModelTree);
+		Assert.assertEquals(loaded.toString(), modelTree.toString());
+		assertSamePredictions(modelTree, loaded, samples);
+		double[] sample = samples[0];
+		Double[] boxed = new Double[] { sample[0], sample[1], sample[2] };
+		Assert.assertEquals(loaded.predictDouble(boxed), modelTree.predict(sample));
+		Assert.assertEquals(loaded.predictDouble(Arrays.asList(boxed)), modelTree.predict(sample));
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testLoad_truncated() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		regressionTree.writeTo(out);
+		byte[] bytes = out.toByteArray();
+		AbstractRegressionTree.load(ByteBuffer.wrap(bytes, 0, bytes.length - 1).slice());
+	}
+
+	@Test
+	public void testLoad_corrupt() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		regressionTree.writeTo(out);
+		FlatTree flat = FlatTree.of(regressionTree.getRoot());
+		int last = out.size() - flat.getNumLeaves() * 8 - BinaryFormat.NODE_SIZE;
+		assertCorrupt(out.toByteArray(), last, NUM_FEATURES);
+		assertCorrupt(out.toByteArray(), last, -1);
+		assertCorrupt(out.toByteArray(), last + 4, flat.getNumNodes() - 1);
+		assertCorrupt(out.toByteArray(), last + 8, flat.getNumNodes());
+		assertCorrupt(out.toByteArray(), last + 8, ~flat.getNumLeaves());
+	}
+
+	@Test
+	public void testLoad_corruptHeader() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		regressionTree.writeTo(out);
+		int labelsAt = 28 + ByteBuffer.wrap(out.toByteArray()).getInt(24);
+		assertCorrupt(out.toByteArray(), 8, -1);
+		assertCorrupt(out.toByteArray(), 12, Integer.MIN_VALUE);
+		assertCorrupt(out.toByteArray(), 24, Integer.MAX_VALUE);
+		assertCorrupt(out.toByteArray(), 24, -2);
+		assertCorrupt(out.toByteArray(), labelsAt, Integer.MAX_VALUE);
+		assertCorrupt(out.toByteArray(), labelsAt, NUM_FEATURES + 1);
+		assertCorrupt(out.toByteArray(), labelsAt + 4, Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void testLoad_version1() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		regressionTree.writeTo(out);
+		FlatTree flat = FlatTree.of(regressionTree.getRoot());
+		ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+		int nodesAt = in.limit() - flat.getNumLeaves() * 8 - flat.getNumNodes() * BinaryFormat.NODE_SIZE;
+		ByteBuffer v1 = ByteBuffer.allocate(in.limit() - flat.getNumNodes() * 8);
+		v1.put((ByteBuffer) in.duplicate().limit(nodesAt));
+		v1.putShort(4, (short) 1);
+		for (int i = 0; i < flat.getNumNodes(); i++) {
+			in.limit(nodesAt + i * BinaryFormat.NODE_SIZE + 20).position(nodesAt + i * BinaryFormat.NODE_SIZE);
+			v1.put(in);
+			in.limit(in.capacity());
+		}
+
+		in.position(in.limit() - flat.getNumLeaves() * 8);
+		v1.put(in).flip();
+		RegressionTree loaded = (RegressionTree) AbstractRegressionTree.load(v1);
+		for (int i = 0; i < 50; i++) {
+			Assert.assertEquals(loaded.predict(samples[i]), regressionTree.predict(samples[i]));
+		}
+
+		try {
+			loaded.explain(samples[0]);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// version 1 has no covers
+		}
+	}
+
+	private static void assertCorrupt(byte[] bytes, int at, int value) {
+		ByteBuffer.wrap(bytes).putInt(at, value);
+		try {
+			AbstractRegressionTree.load(ByteBuffer.wrap(bytes));
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().startsWith("Invalid"), e.getMessage());
+		}
+	}
+
+	@Test
+	public void testInstrument() {
+		Assert.assertNull(regressionTree.getInstrumentation());
+		AbstractRegressionTree instrumented = regressionTree.instrument();
+		assertSamePredictions(regressionTree, instrumented, samples);
+		Assert.assertEquals(instrumented.toString(), regressionTree.toString());
+
+		TreeInstrumentation.Snapshot snapshot = instrumented.getInstrumentation().getSnapshot();
+		Assert.assertEquals(snapshot.getCount(), samples.length);
+		Assert.assertEquals(snapshot.getNodeHits()[0], samples.length);
+		Assert.assertTrue(snapshot.getLatency(0.99D) >= snapshot.getLatency(0.5D));
+
+		instrumented.getInstrumentation().reset();
+		Assert.assertEquals(instrumented.getInstrumentation().getCount(), 0L);
+	}
+
+	@Test
+	public void testLatencyBuckets() {
+		for (long nanos = 0; nanos < 100000; nanos += 7) {
+			int bucket = TreeInstrumentation.getBucket(nanos);
+			Assert.assertTrue(TreeInstrumentation.getLowerBound(bucket) <= nanos);
+			Assert.assertTrue(TreeInstrumentation.getLowerBound(bucket + 1) > nanos);
+		}
+
+		Assert.assertTrue(TreeInstrumentation.getBucket(Long.MAX_VALUE) < TreeInstrumentation.NUM_BUCKETS);
+	}
+
+	@Test
+	public void testReorder() {
+		double[][] skewed = new double[samples.length][];
+		for (int i = 0; i < samples.length; i++) {
+			skewed[i] = samples[i].clone();
+			skewed[i][0] = Math.min(skewed[i][0], 2D);
+		}
+
+		AbstractRegressionTree reordered = regressionTree.reorder(skewed);
+		Assert.assertEquals(reordered.toString(), regressionTree.toString());
+		assertSamePredictions(regressionTree, reordered, samples);
+		assertSamePredictions(regressionTree, reordered.compile(), samples);
+
+		FlatTree original = FlatTree.of(regressionTree.getRoot());
+		FlatTree flat = FlatTree.of(reordered.getRoot());
+		long[] leafHits = new long[flat.getNumLeaves()];
+		for (double[] sample : skewed) {
+			leafHits[flat.getLeaf(sample)]++;
+		}
+
+		long[] nodeHits = flat.getNodeHits(leafHits);
+		for (int node = 0; node < flat.getNumNodes(); node++) {
+			int hot = flat.isLeftFirst(node) ? flat.lefts[node] : flat.rights[node];
+			int cold = flat.isLeftFirst(node) ? flat.rights[node] : flat.lefts[node];
+			long hotHits = hot < 0 ? leafHits[~hot] : nodeHits[hot];
+			long coldHits = cold < 0 ? leafHits[~cold] : nodeHits[cold];
+			Assert.assertTrue(hotHits >= coldHits);
+			if (hot >= 0) {
+				Assert.assertEquals(hot, node + 1);
+			}
+		}
+
+		Assert.assertEquals(flat.getNumNodes(), original.getNumNodes());
+	}
+
+	@Test
+	public void testReorder_instrumented() {
+		AbstractRegressionTree instrumented = modelTree.instrument();
+		for (double[] sample : samples) {
+			instrumented.predict(sample);
+		}
+
+		AbstractRegressionTree reordered = modelTree.reorder(instrumented.getInstrumentation().getSnapshot());
+		assertSamePredictions(modelTree, reordered, samples);
+		assertSamePredictions(modelTree, reordered.compile(), samples);
+		Assert.assertEquals(reordered.predict(samples), modelTree.predict(samples));
+	}
+
+	@Test
+	public void testCompact() {
+		for (AbstractRegressionTree tree : new AbstractRegressionTree[] { regressionTree, modelTree }) {
+			AbstractRegressionTree compacted = tree.compact();
+			Assert.assertEquals(compacted.toString(), tree.toString());
+			assertSamePredictions(tree, compacted, samples);
+			Assert.assertEquals(compacted.predict(samples), tree.predict(samples));
+			double[] sample = samples[1];
+			Double[] boxed = new Double[] { sample[0], sample[1], sample[2] };
+			Assert.assertEquals(compacted.predictDouble(boxed), tree.predict(sample));
+		}
+	}
+
+	@Test
+	public void testCompact_floatThresholds() {
+		FlatTree flat = new FlatTree(new int[] { 1, 0 }, new double[] { 0.5D, 0.1D }, new int[] { ~0, ~1 },
+				new int[] { 1, ~2 }, new double[] { 1D, 2D, 1D }, 1, false);
+		CompactTree exact = CompactTree.of(flat);
+		Assert.assertNull(exact.floatThresholds);
+
+		flat = new FlatTree(new int[] { 1, 0 }, new double[] { 0.5D, 0.25D }, flat.lefts, flat.rights, flat.leaves,
+				1, false);
+		CompactTree compact = CompactTree.of(flat);
+		Assert.assertNotNull(compact.floatThresholds);
+		Assert.assertEquals(compact.leaves.length, 2);
+		Assert.assertTrue(compact.getSizeInBytes() < exact.getSizeInBytes());
+		for (double[] sample : samples) {
+			Assert.assertEquals(compact.leaves[compact.getLeaf(sample)], flat.getValue(sample));
+		}
+	}
+
+	@Test
+	public void testDeduplicate_repeatedLeaves() {
+		Node left = new InternalNode(new RegressionLeafNode(1D), new RegressionLeafNode(2D), 1, 0.5D);
+		Node right = new InternalNode(new RegressionLeafNode(1D), new RegressionLeafNode(2D), 2, 0.5D);
+		RegressionTree tree = regressionTree.newInstance(new InternalNode(left, right, 0, 0.5D));
+		FlatTree dag = FlatTree.of(tree.getRoot()).deduplicate();
+		Assert.assertEquals(dag.getNumNodes(), 3);
+		Assert.assertEquals(dag.getNumLeaves(), 2);
+		assertSamePredictions(tree, tree.deduplicate(), samples);
+	}
+
+	@Test
+	public void testDeduplicate() {
+		// two identical subtrees below the root, with identical leaves
+		FlatTree flat = new FlatTree(new int[] { 0, 1, 1 }, new double[] { 5D, 2D, 2D }, new int[] { 1, ~0, ~2 },
+				new int[] { 2, ~1, ~3 }, new double[] { 1D, 3D, 1D, 3D }, 1, false);
+		FlatTree dag = flat.deduplicate();
+		Assert.assertEquals(dag.getNumNodes(), 2);
+		Assert.assertEquals(dag.getNumLeaves(), 2);
+		Assert.assertEquals(dag.lefts[0], dag.rights[0]);
+		for (double[] sample : samples) {
+			Assert.assertEquals(dag.getValue(sample), flat.getValue(sample));
+		}
+
+		InternalNode root = (InternalNode) dag.toNode();
+		Assert.assertSame(root.left, root.right);
+
+		for (AbstractRegressionTree tree : new AbstractRegressionTree[] { regressionTree, modelTree }) {
+			AbstractRegressionTree deduplicated = tree.deduplicate();
+			Assert.assertEquals(deduplicated.toString(), tree.toString());
+			assertSamePredictions(tree, deduplicated, samples);
+			Assert.assertEquals(deduplicated.predict(samples), tree.predict(samples));
+			assertSamePredictions(tree, deduplicated.compile(), samples);
+		}
+	}
+
+	@Test
+	public void testWarmUp() {
+		FlatTree flat = FlatTree.of(modelTree.getRoot());
+		double[][] inputs = flat.getLeafInputs(NUM_FEATURES);
+		for (int leaf = 0; leaf < inputs.length; leaf++) {
+			Assert.assertEquals(flat.getLeaf(inputs[leaf]), leaf);
+		}
+
+		TreeWarmup warmup = regressionTree.warmUp(null, 0L, TimeUnit.SECONDS);
+		Assert.assertEquals(warmup.getRounds(), 1);
+		Assert.assertFalse(warmup.isSteady());
+		Assert.assertTrue(warmup.getRows() >= TreeWarmup.MIN_ROWS_PER_ROUND);
+
+		warmup = modelTree.compile().warmUp(samples, 2L, TimeUnit.SECONDS);
+		Assert.assertTrue(warmup.getRounds() >= 1);
+		Assert.assertTrue(warmup.getElapsed(TimeUnit.SECONDS) < 3L);
+		Assert.assertTrue(warmup.getNanosPerRow() > 0D);
+	}
+
+	@Test
+	public void testPredict_featureSupplier() {
+		for (AbstractRegressionTree tree : new AbstractRegressionTree[] { regressionTree, modelTree }) {
+			int[] used = tree.getUsedFeatures();
+			Assert.assertTrue(used.length > 0);
+			for (final double[] sample : samples) {
+				final int[] requests = new int[NUM_FEATURES];
+				double prediction = tree.predict(new FeatureSupplier() {
+
+					@Override
+					public double getFeature(int index) {
+						requests[index]++;
+						return sample[index];
+					}
+
+				});
+
+				Assert.assertEquals(prediction, tree.predict(sample));
+				for (int i = 0; i < NUM_FEATURES; i++) {
+					Assert.assertTrue(requests[i] <= 1);
+					if (requests[i] > 0) {
+						Assert.assertTrue(Arrays.binarySearch(used, i) >= 0);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testPredict_featureSupplierZeroWeight() {
+		// feature 2 has a zero weight in both leaves, so it is never requested
+		// and its NaN does not reach the prediction
+		Node root = new InternalNode(new ModelLeafNode(new double[] { 0D, 2D, 0D }), new ModelLeafNode(new double[] {
+				1D, 0D, 0D }), 0, 0.5D);
+		ModelTree tree = modelTree.newInstance(root);
+		final double[] sample = new double[] { 1D, 3D, Double.NaN };
+		final int[] requests = new int[NUM_FEATURES];
+		double prediction = tree.predict(new FeatureSupplier() {
+
+			@Override
+			public double getFeature(int index) {
+				requests[index]++;
+				return sample[index];
+			}
+
+		});
+
+		Assert.assertEquals(prediction, 6D);
+		Assert.assertEquals(requests[2], 0);
+		Assert.assertTrue(Double.isNaN(tree.predict(sample)));
+	}
+
+	private static double expect(Node node, int subset, double[] x) {
+		if (!(node instanceof InternalNode)) {
+			return node.getValue(x);
+		}
+
+		InternalNode internal = (InternalNode) node;
+		if ((subset & (1 << internal.feature)) != 0) {
+			return expect(x[internal.feature] >= internal.value ? internal.left : internal.right, subset, x);
+		}
+
+		return (internal.leftCover * expect(internal.left, subset, x) + internal.rightCover
+				* expect(internal.right, subset, x))
+				/ (internal.leftCover + internal.rightCover);
+	}
+
+	@Test
+	public void testExplain() {
+		int[] factorials = new int[] { 1, 1, 2, 6 };
+		double[][] explanations = regressionTree.explain(samples);
+		for (int row = 0; row < 100; row++) {
+			double[] x = samples[row];
+			double[] phi = explanations[row];
+			Assert.assertEquals(phi.length, NUM_FEATURES + 1);
+			Assert.assertEquals(phi[NUM_FEATURES], expect(regressionTree.getRoot(), 0, x), 1e-9);
+
+			double sum = 0D;
+			for (double value : phi) {
+				sum += value;
+			}
+
+			Assert.assertEquals(sum, regressionTree.predict(x), 1e-9);
+
+			// brute force over all coalitions
+			for (int i = 0; i < NUM_FEATURES; i++) {
+				double expected = 0D;
+				for (int subset = 0; subset < (1 << NUM_FEATURES); subset++) {
+					if ((subset & (1 << i)) != 0) {
+						continue;
+					}
+
+					int size = Integer.bitCount(subset);
+					double weight = (double) factorials[size] * factorials[NUM_FEATURES - size - 1]
+							/ factorials[NUM_FEATURES];
+					expected += weight
+							* (expect(regressionTree.getRoot(), subset | (1 << i), x) - expect(
+									regressionTree.getRoot(), subset, x));
+				}
+
+				Assert.assertEquals(phi[i], expected, 1e-9);
+			}
+		}
+
+		RegressionTree compiled = (RegressionTree) regressionTree.compile();
+		Assert.assertEquals(compiled.explain(samples[3]), explanations[3]);
+	}
+
+	@Test
+	public void testExplain_copies() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		regressionTree.writeTo(out);
+		RegressionTree loaded = (RegressionTree) AbstractRegressionTree.load(ByteBuffer.wrap(out.toByteArray()));
+		RegressionTree reordered = (RegressionTree) loaded.reorder(samples);
+		RegressionTree compacted = (RegressionTree) reordered.compact();
+		double[][] explanations = regressionTree.explain(samples);
+		double[][] loadedExplanations = loaded.explain(samples);
+		double[][] reorderedExplanations = reordered.explain(samples);
+		double[][] compactedExplanations = compacted.explain(samples);
+		for (int row = 0; row < 100; row++) {
+			for (int i = 0; i <= NUM_FEATURES; i++) {
+				Assert.assertEquals(loadedExplanations[row][i], explanations[row][i], 1e-9);
+				Assert.assertEquals(reorderedExplanations[row][i], explanations[row][i], 1e-9);
+				Assert.assertEquals(compactedExplanations[row][i], explanations[row][i], 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void testExplain_deduplicated() {
+		// the same subtree under both sides of the root, reached by rows
+		// split differently
+		Node left = new InternalNode(new RegressionLeafNode(1D), new RegressionLeafNode(2D), 1, 0.5D, 1, 3);
+		Node right = new InternalNode(new RegressionLeafNode(1D), new RegressionLeafNode(2D), 1, 0.5D, 3, 1);
+		RegressionTree tree = regressionTree.newInstance(new InternalNode(left, right, 0, 0.5D, 4, 4));
+		double[] x = new double[] { 1D, 0D, 0D };
+		double[] expected = tree.explain(x);
+		Assert.assertEquals(((RegressionTree) tree.deduplicate()).explain(x), expected);
+		Assert.assertEquals(((RegressionTree) tree.compact()).explain(x), expected);
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void testExplain_noCovers() {
+		Node root = new InternalNode(new RegressionLeafNode(1D), new RegressionLeafNode(2D), 0, 0.5D);
+		regressionTree.newInstance(root).explain(samples[0]);
+	}
+
+	@Test(expectedExceptions = NullPointerException.class)
+	public void testExplain_null() {
+		regressionTree.explain(new double[][] { samples[0], null });
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testExplain_wrongLength() {
+		regressionTree.explain(new double[][] { samples[0], new double[NUM_FEATURES - 1] });
+	}
+
+	@Test
+	public void testArena() {
+		TreeArena arena = new TreeArena();
+		int[] ids = new int[200];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = arena.add(i % 2 == 0 ? regressionTree : modelTree);
+		}
+
+		for (int i = 0; i < ids.length; i += 3) {
+			Assert.assertTrue(arena.remove(ids[i]));
+			Assert.assertFalse(arena.remove(ids[i]));
+		}
+
+		arena.compact();
+		int last = arena.add(modelTree);
+		Assert.assertEquals(last, ids[0]);
+		for (int i = 1; i < ids.length; i++) {
+			Assert.assertEquals(arena.contains(ids[i]), i % 3 != 0);
+			if (i % 3 != 0) {
+				AbstractRegressionTree tree = i % 2 == 0 ? regressionTree : modelTree;
+				for (int j = 0; j < 50; j++) {
+					Assert.assertEquals(arena.predict(ids[i], samples[j]), tree.predict(samples[j]));
+				}
+			}
+		}
+
+		Assert.assertEquals(arena.predict(last, samples[0]), modelTree.predict(samples[0]));
+		Assert.assertEquals(arena.getNumFeatures(last), NUM_FEATURES);
+	}
+
+	@Test
+	public void testArena_reuseIds() {
+		TreeArena arena = new TreeArena();
+		for (int i = 0; i < 1000; i++) {
+			int id = arena.add(regressionTree);
+			Assert.assertEquals(id, 0);
+			Assert.assertEquals(arena.predict(id, samples[i % 50]), regressionTree.predict(samples[i % 50]));
+			arena.remove(id);
+		}
+
+		int[] first = new int[10];
+		for (int i = 0; i < first.length; i++) {
+			first[i] = arena.add(regressionTree);
+		}
+
+		arena.remove(first[3]);
+		arena.remove(first[7]);
+		arena.remove(first[5]);
+		Assert.assertEquals(arena.add(regressionTree), first[3]);
+		Assert.assertEquals(arena.add(regressionTree), first[5]);
+		Assert.assertEquals(arena.add(regressionTree), first[7]);
+		for (int i = 0; i < first.length; i++) {
+			arena.remove(first[i]);
+		}
+
+		long size = arena.getSizeInBytes();
+		int[] ids = new int[1000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = arena.add(regressionTree);
+		}
+
+		for (int i = 0; i < ids.length; i++) {
+			arena.remove(ids[i]);
+		}
+
+		arena.compact();
+		Assert.assertEquals(arena.getSizeInBytes(), size);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testArena_removed() {
+		TreeArena arena = new TreeArena();
+		int id = arena.add(regressionTree);
+		arena.remove(id);
+		arena.predict(id, samples[0]);
+	}
+
+	@Test
+	public void testCompile_regressionTree() {
+		AbstractRegressionTree compiled = regressionTree.compile();
+		Assert.assertNotSame(compiled, regressionTree);
+		Assert.assertTrue(compiled instanceof RegressionTree);
+		Assert.assertEquals(compiled.toString(), regressionTree.toString());
+		assertSamePredictions(regressionTree, compiled, samples);
+	}
+
+	@Test
+	public void testCompile_modelTree() {
+		AbstractRegressionTree compiled = modelTree.compile();
+		Assert.assertNotSame(compiled, modelTree);
+		Assert.assertTrue(compiled instanceof ModelTree);
+		assertSamePredictions(modelTree, compiled, samples);
+	}
+
+	@Test
+	public void testCompile_splitMethods() {
+		FlatTree flat = FlatTree.of(regressionTree.getRoot());
+		TreeCompiler.Evaluator evaluator = TreeCompiler.compile(flat, 64);
+		Assert.assertNotNull(evaluator);
+		for (double[] sample : samples) {
+			Assert.assertEquals(evaluator.predict(sample), regressionTree.predict(sample));
+		}
+	}
+
+	@Test
+	public void testCompile_tooLarge() {
+		FlatTree flat = FlatTree.of(modelTree.getRoot());
+		Assert.assertNull(TreeCompiler.compile(flat, 16));
+	}
+
+	@Test
+	public void testExtraTrees() {
+		Instances<Double> set = newTrainingSet(120, 42L);
+		RegressionTree.Trainer trainer = RegressionTree.newTrainer().setTrainingSet(set).setNumRandomThresholds(2)
+				.setSeed(5L);
+		RegressionTree a = trainer.setForkJoinPool(new ForkJoinPool(1)).train();
+		RegressionTree b = trainer.setForkJoinPool(new ForkJoinPool(4)).train();
+		RegressionTree c = trainer.setSeed(6L).train();
+		Assert.assertTrue(a.getRoot() instanceof InternalNode);
+		Assert.assertEquals(b.toString(), a.toString());
+		Assert.assertFalse(c.toString().equals(a.toString()));
+		assertSamePredictions(a, b, samples);
+	}
+
+	@Test
+	public void testBestFirst() {
+		Instances<Double> set = newTrainingSet(120, 42L);
+		RegressionTree unlimited = RegressionTree.newTrainer().setTrainingSet(set).setMaxLeaves(Integer.MAX_VALUE - 1)
+				.setMinRowsInSplit(1).setNumThreads(2).train();
+		Assert.assertEquals(unlimited.toString(), regressionTree.toString());
+
+		RegressionTree stump = RegressionTree.newTrainer().setTrainingSet(set).setMaxLeaves(2).setNumThreads(2)
+				.train();
+		InternalNode root = (InternalNode) stump.getRoot();
+		InternalNode expected = (InternalNode) regressionTree.getRoot();
+		Assert.assertEquals(root.feature, expected.feature);
+		Assert.assertEquals(root.value, expected.value);
+
+		RegressionTree.Trainer trainer = RegressionTree.newTrainer().setTrainingSet(set).setMaxLeaves(8)
+				.setNumThreads(2);
+		Assert.assertEquals(trainer.train().getFlatTree().getNumLeaves(), 8);
+		Assert.assertEquals(trainer.setMaxDepth(2).train().getFlatTree().getNumLeaves(), 4);
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class EarlyExitScorerTest {
+
+	private GradientBoostedTrees model;
+	private EarlyExitScorer scorer;
+	private double[][] samples;
+
+	@BeforeClass
+	public void setUp() {
+		model = GradientBoostedTrees.newTrainer().setTrainingSet(AbstractRegressionTreeTest.newTrainingSet(300, 42L))
+				.setNumRounds(60).setMaxDepth(3).setNumThreads(2).train();
+		scorer = EarlyExitScorer.of(model);
+		samples = AbstractRegressionTreeTest.newSamples(500, 7L);
+	}
+
+	@Test
+	public void testPredict() {
+		for (double[] sample : samples) {
+			Assert.assertEquals(scorer.predict(sample), model.predict(sample), 1e-9);
+		}
+	}
+
+	@Test
+	public void testExceeds() {
+		double[] scores = new double[samples.length];
+		model.predict(samples, scores);
+		double[] sorted = scores.clone();
+		Arrays.sort(sorted);
+		double threshold = (sorted[sorted.length * 9 / 10] + sorted[sorted.length * 9 / 10 + 1]) / 2D;
+
+		boolean[] results = new boolean[samples.length];
+		int count = scorer.exceeds(samples, threshold, results);
+		Assert.assertEquals(count, samples.length / 10 - 1);
+
+		int numTrees = 0;
+		for (int i = 0; i < samples.length; i++) {
+			Assert.assertEquals(results[i], scores[i] >= threshold);
+			Assert.assertEquals(scorer.exceeds(samples[i], threshold), results[i]);
+			EarlyExitScorer.Estimate estimate = scorer.estimate(samples[i], threshold, 0D);
+			Assert.assertTrue(estimate.getLower() <= scores[i] + 1e-9 && scores[i] - 1e-9 <= estimate.getUpper());
+			numTrees += estimate.getNumTrees();
+		}
+
+		Assert.assertTrue(numTrees < samples.length * scorer.getNumTrees() / 2);
+	}
+
+	@Test
+	public void testEstimate() {
+		for (double tolerance : new double[] { 0D, 0.5D, 5D }) {
+			for (double[] sample : samples) {
+				EarlyExitScorer.Estimate estimate = scorer.estimate(sample, tolerance);
+				double score = model.predict(sample);
+				Assert.assertTrue(estimate.getUpper() - estimate.getLower() <= tolerance + 1e-9);
+				Assert.assertEquals(estimate.getValue(), score, tolerance / 2D + 1e-9);
+				if (tolerance == 0D) {
+					Assert.assertEquals(estimate.getNumTrees(), scorer.getNumTrees());
+				}
+			}
+		}
+	}
+
+}
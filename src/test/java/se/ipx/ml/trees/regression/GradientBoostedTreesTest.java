@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import static se.ipx.ml.util.Util.variance;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.data.Instances;
+
+public class GradientBoostedTreesTest {
+
+	private Instances<Double> set;
+	private Instances<Double> validationSet;
+	private double[][] samples;
+
+	@BeforeClass
+	public void setUp() {
+		set = AbstractRegressionTreeTest.newTrainingSet(300, 42L);
+		validationSet = AbstractRegressionTreeTest.newTrainingSet(100, 43L);
+		samples = AbstractRegressionTreeTest.newSamples(200, 7L);
+	}
+
+	@Test
+	public void testTrain() {
+		GradientBoostedTrees model = GradientBoostedTrees.newTrainer().setTrainingSet(set).setNumRounds(50)
+				.setMaxDepth(3).setNumThreads(2).train();
+		Assert.assertEquals(model.getTrees().size(), 50);
+		Assert.assertEquals(model.getValidationErrors().length, 0);
+
+		double error = 0D;
+		for (int i = 0; i < set.getNumInstances(); i++) {
+			double residual = set.getTargets().getValue(i)
+					- model.predict(set.getFeatureVector(i).getValue(0), set.getFeatureVector(i).getValue(1), set
+							.getFeatureVector(i).getValue(2));
+			error += residual * residual;
+		}
+
+		Assert.assertTrue(error / set.getNumInstances() < 0.1D * variance(set.getTargets()));
+
+		double[] predictions = new double[samples.length];
+		model.predict(samples, predictions);
+		for (int i = 0; i < samples.length; i++) {
+			Assert.assertEquals(predictions[i], model.predict(samples[i]), 1e-12);
+		}
+	}
+
+	@Test
+	public void testEarlyStopping() {
+		GradientBoostedTrees model = GradientBoostedTrees.newTrainer().setTrainingSet(set)
+				.setValidationSet(validationSet).setNumRounds(500).setNumThreads(2).setLearningRate(0.5D).setEarlyStoppingRounds(5)
+				.setSeed(1L).train();
+		double[] errors = model.getValidationErrors();
+		int numTrees = model.getTrees().size();
+		Assert.assertTrue(errors.length < 500);
+		Assert.assertEquals(errors.length, numTrees + 5);
+		for (int i = 0; i < errors.length; i++) {
+			Assert.assertTrue(errors[i] >= errors[numTrees - 1]);
+		}
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void testEarlyStopping_noValidationSet() {
+		GradientBoostedTrees.newTrainer().setTrainingSet(set).setEarlyStoppingRounds(5).train();
+	}
+
+	@Test
+	public void testReproducible() {
+		GradientBoostedTrees.Trainer trainer = GradientBoostedTrees.newTrainer().setTrainingSet(set).setNumRounds(10)
+				.setSampleRate(0.6D).setMaxFeatures(2).setSeed(3L);
+		GradientBoostedTrees a = trainer.setForkJoinPool(new ForkJoinPool(1)).train();
+		GradientBoostedTrees b = trainer.setForkJoinPool(new ForkJoinPool(4)).train();
+		for (int i = 0; i < a.getTrees().size(); i++) {
+			Assert.assertEquals(a.getTrees().get(i).toString(), b.getTrees().get(i).toString());
+		}
+
+		for (double[] sample : samples) {
+			Assert.assertEquals(a.predict(sample), b.predict(sample));
+		}
+	}
+
+	@Test
+	public void testMaxDepth() {
+		GradientBoostedTrees model = GradientBoostedTrees.newTrainer().setTrainingSet(set).setNumRounds(5)
+				.setMaxDepth(2).setNumThreads(2).train();
+		for (RegressionTree tree : model.getTrees()) {
+			Assert.assertTrue(depth(tree.getRoot()) <= 2);
+		}
+	}
+
+	private static int depth(AbstractRegressionTree.Node node) {
+		if (node instanceof AbstractRegressionTree.InternalNode) {
+			AbstractRegressionTree.InternalNode internal = (AbstractRegressionTree.InternalNode) node;
+			return 1 + Math.max(depth(internal.left), depth(internal.right));
+		}
+
+		return 0;
+	}
+
+}
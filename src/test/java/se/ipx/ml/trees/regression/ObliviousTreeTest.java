@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.data.Vector;
+
+public class ObliviousTreeTest {
+
+	private Instances<Double> set;
+	private double[][] samples;
+
+	@BeforeClass
+	public void setUp() {
+		set = AbstractRegressionTreeTest.newTrainingSet(300, 42L);
+		samples = AbstractRegressionTreeTest.newSamples(500, 7L);
+		samples[0][1] = Double.NaN;
+	}
+
+	@Test
+	public void testPredict() {
+		ObliviousTree tree = ObliviousTree.newTrainer().setTrainingSet(set).setMaxDepth(4).setNumThreads(2).train();
+		Assert.assertEquals(tree.getDepth(), 4);
+		RegressionTree expanded = tree.toRegressionTree();
+		double[] predictions = new double[samples.length];
+		tree.predict(samples, predictions);
+		for (int i = 0; i < samples.length; i++) {
+			double[] sample = samples[i];
+			Assert.assertEquals(tree.predict(sample), expanded.predict(sample));
+			Assert.assertEquals(predictions[i], tree.predict(sample));
+			Assert.assertEquals(tree.predict(sample[0], sample[1], sample[2]).doubleValue(), predictions[i]);
+		}
+	}
+
+	@Test
+	public void testExplain_emptyCells() {
+		ObliviousTree tree = ObliviousTree.newTrainer().setTrainingSet(set).setMaxDepth(8).setMinError(0D)
+				.setNumThreads(2).train();
+		Assert.assertEquals(tree.getDepth(), 8);
+		RegressionTree expanded = tree.toRegressionTree();
+		FlatTree flat = expanded.getFlatTree();
+		boolean empty = false;
+		for (int i = 0; i < flat.getNumNodes(); i++) {
+			empty |= flat.leftCovers[i] == 0 || flat.rightCovers[i] == 0;
+		}
+
+		Assert.assertTrue(empty);
+		Assert.assertTrue(flat.getNumLeaves() < 1 << 8);
+
+		double mean = 0D;
+		for (int i = 0; i < set.getNumInstances(); i++) {
+			mean += set.getTargets().getValue(i) / set.getNumInstances();
+		}
+
+		double[][] explanations = expanded.explain(samples);
+		for (int i = 0; i < samples.length; i++) {
+			Assert.assertEquals(explanations[i][set.getNumFeatures()], mean, 1e-9);
+			double sum = 0D;
+			for (double value : explanations[i]) {
+				sum += value;
+			}
+
+			Assert.assertEquals(sum, tree.predict(samples[i]), 1e-9);
+			Assert.assertEquals(expanded.predict(samples[i]), tree.predict(samples[i]));
+		}
+	}
+
+	@Test
+	public void testTrain_monitor() {
+		TrainingMonitor monitor = new TrainingMonitor();
+		ObliviousTree tree = ObliviousTree.newTrainer().setTrainingSet(set).setMaxDepth(3).setMonitor(monitor)
+				.setNumThreads(2).train();
+		Assert.assertEquals(monitor.getTreesBuilt(), 1L);
+		Assert.assertEquals(monitor.getMaxDepth(), tree.getDepth());
+		Assert.assertEquals(monitor.getPendingRows(), 0L);
+		Assert.assertTrue(monitor.getCandidatesEvaluated() > 0L);
+	}
+
+	@Test
+	public void testTrain_bestSplitPerLevel() {
+		ObliviousTree tree = ObliviousTree.newTrainer().setTrainingSet(set).setMaxDepth(2).setNumThreads(2).train();
+		Assert.assertEquals(tree.getDepth(), 2);
+		double error = getError(tree.getFeature(0), tree.getThreshold(0), tree.getFeature(1), tree.getThreshold(1));
+		for (int feature = 0; feature < set.getNumFeatures(); feature++) {
+			for (Double value : set.getFeatures(feature).getUniqueValues()) {
+				Assert.assertTrue(error <= getError(tree.getFeature(0), tree.getThreshold(0), feature, value) + 1e-6);
+			}
+		}
+	}
+
+	@Test
+	public void testTrain_minError() {
+		ObliviousTree tree = ObliviousTree.newTrainer().setTrainingSet(set).setMaxDepth(8).setMinError(1e6)
+				.setNumThreads(2).train();
+		Assert.assertEquals(tree.getDepth(), 0);
+		Assert.assertEquals(tree.predict(samples[1]), tree.predict(samples[2]));
+	}
+
+	private double getError(int feature0, double threshold0, int feature1, double threshold1) {
+		double[] sums = new double[4];
+		double[] squares = new double[4];
+		int[] counts = new int[4];
+		Set<Integer> leaves = new HashSet<Integer>();
+		for (int i = 0; i < set.getNumInstances(); i++) {
+			Vector<Double> row = set.getFeatureVector(i);
+			int leaf = (row.getValue(feature0) >= threshold0 ? 0 : 2) + (row.getValue(feature1) >= threshold1 ? 0 : 1);
+			double y = set.getTargets().getValue(i);
+			sums[leaf] += y;
+			squares[leaf] += y * y;
+			counts[leaf]++;
+			leaves.add(leaf);
+		}
+
+		double error = 0D;
+		for (int leaf : leaves) {
+			error += squares[leaf] - sums[leaf] * sums[leaf] / counts[leaf];
+		}
+
+		return error;
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.trees.DoubleDecisionTree;
+
+public class QuickScorerTest {
+
+	private Instances<Double> set;
+	private double[][] samples;
+
+	@BeforeClass
+	public void setUp() {
+		set = AbstractRegressionTreeTest.newTrainingSet(300, 42L);
+		samples = AbstractRegressionTreeTest.newSamples(500, 7L);
+		samples[0][1] = Double.NaN;
+		samples[1][0] = Double.NaN;
+		samples[1][2] = Double.NaN;
+	}
+
+	@Test
+	public void testGradientBoostedTrees() {
+		GradientBoostedTrees model = GradientBoostedTrees.newTrainer().setTrainingSet(set).setNumRounds(40)
+				.setMaxDepth(4).setNumThreads(2).train();
+		QuickScorer scorer = QuickScorer.of(model);
+		Assert.assertEquals(scorer.getNumTrees(), 40);
+		assertSamePredictions(model, scorer);
+	}
+
+	@Test
+	public void testRandomForest_largeTrees() {
+		RandomForest forest = RandomForest.newTrainer().setTrainingSet(set).setMinRowsInSplit(1).setNumTrees(10)
+				.setNumThreads(2).setSeed(1L).train();
+		int maxLeaves = 0;
+		for (RegressionTree tree : forest.getTrees()) {
+			maxLeaves = Math.max(maxLeaves, tree.getFlatTree().getNumLeaves());
+		}
+
+		Assert.assertTrue(maxLeaves > 128);
+		assertSamePredictions(forest, QuickScorer.of(forest));
+	}
+
+	@Test
+	public void testMixedTrees() {
+		RegressionTree regressionTree = RegressionTree.newTrainer().setTrainingSet(set).setNumThreads(2).train();
+		ModelTree modelTree = ModelTree.newTrainer().setTrainingSet(set).setMinRowsInSplit(6).setNumThreads(2)
+				.train();
+		List<AbstractRegressionTree> trees = new ArrayList<AbstractRegressionTree>();
+		trees.add(regressionTree.deduplicate());
+		trees.add(modelTree);
+		trees.add(RegressionTree.newTrainer().setTrainingSet(set).setMinRowsInSplit(400).setNumThreads(2).train());
+		double[] weights = { 0.5D, -2D, 1D };
+		QuickScorer scorer = QuickScorer.of(trees, weights, 3D);
+
+		double[] predictions = new double[samples.length];
+		scorer.predict(samples, predictions);
+		for (int i = 0; i < samples.length; i++) {
+			double[] sample = samples[i];
+			double expected = 3D;
+			for (int t = 0; t < trees.size(); t++) {
+				expected += weights[t] * trees.get(t).predict(sample);
+			}
+
+			if (Double.isNaN(expected)) {
+				Assert.assertTrue(Double.isNaN(predictions[i]));
+			} else {
+				Assert.assertEquals(scorer.predict(sample), expected, 1e-9);
+				Assert.assertEquals(predictions[i], scorer.predict(sample));
+			}
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testOf_missingWeights() {
+		RegressionTree tree = RegressionTree.newTrainer().setTrainingSet(set).setNumThreads(2).train();
+		QuickScorer.of(Arrays.asList(tree, tree), new double[] { 1D });
+	}
+
+	private void assertSamePredictions(DoubleDecisionTree expected, QuickScorer scorer) {
+		double[] predictions = new double[samples.length];
+		scorer.predict(samples, predictions);
+		for (int i = 0; i < samples.length; i++) {
+			double[] sample = samples[i];
+			Assert.assertEquals(scorer.predict(sample), expected.predict(sample), 1e-9);
+			Assert.assertEquals(predictions[i], scorer.predict(sample));
+			if (i > 1) {
+				Assert.assertEquals(scorer.predict(sample[0], sample[1], sample[2]).doubleValue(), predictions[i]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import static se.ipx.ml.util.Util.variance;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.ErrorCalculationResult;
+
+public class RandomForestTest {
+
+	private Instances<Double> set;
+	private double[][] samples;
+
+	@BeforeClass
+	public void setUp() {
+		set = AbstractRegressionTreeTest.newTrainingSet(300, 42L);
+		samples = AbstractRegressionTreeTest.newSamples(200, 7L);
+	}
+
+	@Test
+	public void testTrain() {
+		RandomForest forest = RandomForest.newTrainer().setTrainingSet(set).setNumTrees(20).setNumThreads(2)
+				.setSeed(1L).train();
+		Assert.assertEquals(forest.getTrees().size(), 20);
+		Assert.assertEquals(forest.getOutOfBagErrors().length, 20);
+		Assert.assertTrue(forest.getOutOfBagError() < 0.2D * variance(set.getTargets()));
+
+		double[] predictions = new double[samples.length];
+		forest.predict(samples, predictions);
+		for (int i = 0; i < samples.length; i++) {
+			double[] sample = samples[i];
+			Assert.assertEquals(predictions[i], forest.predict(sample), 1e-12);
+			Assert.assertEquals(forest.predict(sample[0], sample[1], sample[2]).doubleValue(), forest.predict(sample));
+		}
+	}
+
+	@Test
+	public void testReproducible() {
+		RandomForest.Trainer trainer = RandomForest.newTrainer().setTrainingSet(set).setNumTrees(8).setBootstrap(false)
+				.setSampleRate(0.7D).setMaxFeatures(1).setSeed(3L);
+		RandomForest a = trainer.setForkJoinPool(new ForkJoinPool(1)).train();
+		RandomForest b = trainer.setForkJoinPool(new ForkJoinPool(4)).train();
+		for (int i = 0; i < a.getTrees().size(); i++) {
+			Assert.assertEquals(a.getTrees().get(i).toString(), b.getTrees().get(i).toString());
+		}
+
+		for (double[] sample : samples) {
+			Assert.assertEquals(a.predict(sample), b.predict(sample));
+		}
+	}
+
+	@Test
+	public void testPresortedSplit() {
+		final RowView view = TrainingData.of(set).view();
+		final RandomForest.Trainer trainer = RandomForest.newTrainer();
+		Double error = new ForkJoinPool(1).invoke(new RecursiveTask<Double>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Double compute() {
+				double total = 0D;
+				for (int feature = 0; feature < view.getNumFeatures(); feature++) {
+					ErrorCalculationResult sweep = trainer.findBestSplit(view, feature, 3);
+					ErrorCalculationResult exhaustive = new RegressionTree.Trainer().findBestSplit(view, feature, 3);
+					Assert.assertEquals(sweep.error, exhaustive.error, 1e-6);
+					total += sweep.error;
+				}
+
+				return total;
+			}
+
+		});
+
+		Assert.assertTrue(error > 0D);
+		Assert.assertEquals(trainer.getError(view), new RegressionTree.Trainer().getError(view), 1e-6);
+	}
+
+	@Test
+	public void testPresortedRandomSplit() {
+		final RowView view = TrainingData.of(set).view();
+		final RandomForest.Trainer trainer = RandomForest.newTrainer().setNumRandomThresholds(5);
+		final RegressionTree.Trainer exhaustive = RegressionTree.newTrainer().setNumRandomThresholds(5);
+		new ForkJoinPool(1).invoke(new RecursiveTask<Void>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Void compute() {
+				for (int feature = 0; feature < view.getNumFeatures(); feature++) {
+					ErrorCalculationResult sweep = trainer.findRandomSplit(view, feature, 3, new Random(feature));
+					ErrorCalculationResult expected = exhaustive.findRandomSplit(view, feature, 3, new Random(feature));
+					Assert.assertEquals(sweep.error, expected.error, 1e-6);
+				}
+
+				return null;
+			}
+
+		});
+	}
+
+}
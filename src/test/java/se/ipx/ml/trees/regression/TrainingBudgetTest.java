@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.data.Instances;
+import se.ipx.ml.trees.regression.AbstractRegressionTree.ErrorCalculationResult;
+import se.ipx.ml.trees.regression.RegressionTree.RegressionLeafNode;
+
+public class TrainingBudgetTest {
+
+	private Instances<Double> set;
+
+	@BeforeClass
+	public void setUp() {
+		set = AbstractRegressionTreeTest.newTrainingSet(300, 42L);
+	}
+
+	@Test
+	public void testCancel() {
+		TrainingBudget budget = new TrainingBudget();
+		Assert.assertFalse(budget.isExhausted());
+		budget.cancel();
+		Assert.assertTrue(budget.isExhausted());
+		RegressionTree tree = RegressionTree.newTrainer().setTrainingSet(set).setBudget(budget).setNumThreads(2)
+				.train();
+		Assert.assertTrue(tree.getRoot() instanceof RegressionLeafNode);
+		ModelTree modelTree = ModelTree.newTrainer().setTrainingSet(set).setBudget(budget).setMaxLeaves(8)
+				.setNumThreads(2).train();
+		Assert.assertEquals(modelTree.getFlatTree().getNumLeaves(), 1);
+	}
+
+	@Test
+	public void testCancel_duringSplitSearch() {
+		final TrainingBudget budget = new TrainingBudget();
+		RegressionTree.Trainer trainer = new RegressionTree.Trainer() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected ErrorCalculationResult findBestSplit(Instances<Double> set, int feature, int minRows) {
+				ErrorCalculationResult result = super.findBestSplit(set, feature, minRows);
+				if (feature == set.getNumFeatures() - 1) {
+					budget.cancel();
+				}
+
+				return result;
+			}
+
+		};
+
+		RegressionTree tree = trainer.setTrainingSet(set).setBudget(budget).setNumThreads(2).train();
+		Assert.assertTrue(tree.getRoot() instanceof RegressionLeafNode);
+	}
+
+	@Test(expectedExceptions = CancellationException.class)
+	public void testCancel_failFast() {
+		TrainingBudget budget = new TrainingBudget().setFailFast(true);
+		budget.cancel();
+		RegressionTree.newTrainer().setTrainingSet(set).setBudget(budget).setNumThreads(2).train();
+	}
+
+	@Test
+	public void testTimeLimit() {
+		TrainingBudget budget = new TrainingBudget().setTimeLimit(0L, TimeUnit.NANOSECONDS);
+		Assert.assertTrue(budget.isExhausted());
+		GradientBoostedTrees model = GradientBoostedTrees.newTrainer().setTrainingSet(set).setBudget(budget)
+				.setNumThreads(2).train();
+		Assert.assertEquals(model.getTrees().size(), 0);
+		ObliviousTree tree = ObliviousTree.newTrainer().setTrainingSet(set).setBudget(budget).setNumThreads(2)
+				.train();
+		Assert.assertEquals(tree.getDepth(), 0);
+		Assert.assertFalse(new TrainingBudget().setTimeLimit(1L, TimeUnit.HOURS).isExhausted());
+	}
+
+	@Test(expectedExceptions = CancellationException.class)
+	public void testMaxHeapUsage_failFast() {
+		TrainingBudget budget = new TrainingBudget().setMaxHeapUsage(1L).setFailFast(true);
+		RandomForest.newTrainer().setTrainingSet(set).setNumTrees(4).setBudget(budget).setNumThreads(2).train();
+	}
+
+	@Test
+	public void testCancel_whileTraining() throws InterruptedException {
+		final TrainingBudget budget = new TrainingBudget();
+		final Instances<Double> large = AbstractRegressionTreeTest.newTrainingSet(6000, 1L);
+		Thread canceller = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100L);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				budget.cancel();
+			}
+
+		};
+
+		long start = System.nanoTime();
+		canceller.start();
+		RegressionTree tree = RegressionTree.newTrainer().setTrainingSet(large).setMinRowsInSplit(1).setMinError(0D)
+				.setBudget(budget).setNumThreads(2).train();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		canceller.join();
+		Assert.assertTrue(elapsed < 5000L, elapsed + " ms");
+		Assert.assertFalse(Double.isNaN(tree.predict(new double[] { 1D, 2D, 3D })));
+	}
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2012 Fredrik Ekelund <fredrik@ipx.se>
+ *
+ * This file is part of Decision Trees.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.ipx.ml.trees.regression;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import se.ipx.ml.data.Instances;
+
+public class TrainingMonitorTest {
+
+	private Instances<Double> set;
+
+	@BeforeClass
+	public void setUp() {
+		set = AbstractRegressionTreeTest.newTrainingSet(300, 42L);
+	}
+
+	@Test
+	public void testRegressionTree() {
+		final AtomicInteger nodes = new AtomicInteger();
+		final AtomicInteger leaves = new AtomicInteger();
+		final AtomicInteger trees = new AtomicInteger();
+		TrainingMonitor monitor = new TrainingMonitor(new TrainingMonitor.Listener() {
+
+			@Override
+			public void nodeBuilt(TrainingMonitor monitor, int depth, int numRows, boolean leaf) {
+				nodes.incrementAndGet();
+				if (leaf) {
+					leaves.incrementAndGet();
+				}
+			}
+
+			@Override
+			public void treeBuilt(TrainingMonitor monitor) {
+				trees.incrementAndGet();
+			}
+
+		});
+
+		RegressionTree tree = RegressionTree.newTrainer().setTrainingSet(set).setMonitor(monitor).setNumThreads(2)
+				.train();
+		FlatTree flat = tree.getFlatTree();
+		Assert.assertEquals(monitor.getTreesBuilt(), 1L);
+		Assert.assertEquals(monitor.getNodesBuilt(), flat.getNumNodes() + flat.getNumLeaves());
+		Assert.assertEquals(monitor.getLeavesBuilt(), flat.getNumLeaves());
+		Assert.assertEquals(monitor.getPendingRows(), 0L);
+		Assert.assertTrue(monitor.getMaxDepth() > 0);
+		Assert.assertTrue(monitor.getRowsProcessed() > set.getNumInstances());
+		Assert.assertTrue(monitor.getCandidatesEvaluated() > flat.getNumNodes());
+		Assert.assertEquals(nodes.get(), monitor.getNodesBuilt());
+		Assert.assertEquals(leaves.get(), monitor.getLeavesBuilt());
+		Assert.assertEquals(trees.get(), 1);
+
+		monitor.reset();
+		Assert.assertEquals(monitor.getNodesBuilt(), 0L);
+		Assert.assertEquals(monitor.getMaxDepth(), 0);
+	}
+
+	@Test
+	public void testBestFirst() {
+		TrainingMonitor monitor = new TrainingMonitor();
+		RegressionTree.newTrainer().setTrainingSet(set).setMaxLeaves(8).setMonitor(monitor).setNumThreads(2).train();
+		Assert.assertEquals(monitor.getLeavesBuilt(), 8L);
+		Assert.assertEquals(monitor.getNodesBuilt(), 15L);
+		Assert.assertEquals(monitor.getPendingRows(), 0L);
+	}
+
+	@Test
+	public void testRandomForest() throws Exception {
+		TrainingMonitor monitor = new TrainingMonitor();
+		RandomForest.newTrainer().setTrainingSet(set).setNumTrees(5).setMonitor(monitor).setNumThreads(2).setSeed(1L)
+				.train();
+		Assert.assertEquals(monitor.getTreesBuilt(), 5L);
+		Assert.assertEquals(monitor.getPendingRows(), 0L);
+		Assert.assertTrue(monitor.getCandidatesEvaluated() > 0L);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("se.ipx.ml:type=TrainingMonitor,name=test");
+		server.registerMBean(monitor, name);
+		try {
+			Assert.assertEquals(server.getAttribute(name, "TreesBuilt"), 5L);
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+}